@@ -20,30 +20,43 @@ import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
+import me.xiaopan.sketch.cache.BitmapPool;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.cache.EncodedMemoryCache;
+import me.xiaopan.sketch.cache.LruBitmapPool;
 import me.xiaopan.sketch.cache.LruDiskCache;
+import me.xiaopan.sketch.cache.LruEncodedMemoryCache;
 import me.xiaopan.sketch.cache.LruMemoryCache;
 import me.xiaopan.sketch.cache.MemoryCache;
+import me.xiaopan.sketch.cache.MemoryGovernor;
+import me.xiaopan.sketch.cache.MemoryVariantIndex;
 import me.xiaopan.sketch.decode.DefaultImageDecoder;
 import me.xiaopan.sketch.decode.ImageDecoder;
 import me.xiaopan.sketch.display.DefaultImageDisplayer;
 import me.xiaopan.sketch.display.ImageDisplayer;
+import me.xiaopan.sketch.feature.DownloadResumer;
 import me.xiaopan.sketch.feature.ErrorCallback;
 import me.xiaopan.sketch.feature.HelperFactory;
 import me.xiaopan.sketch.feature.ImagePreprocessor;
 import me.xiaopan.sketch.feature.ImageSizeCalculator;
+import me.xiaopan.sketch.feature.HttpCacheRevalidator;
+import me.xiaopan.sketch.feature.ProcessedImageCache;
 import me.xiaopan.sketch.feature.MobileNetworkGlobalPauseDownload;
 import me.xiaopan.sketch.feature.RequestFactory;
 import me.xiaopan.sketch.feature.ResizeCalculator;
+import me.xiaopan.sketch.feature.SegmentedDownloader;
 import me.xiaopan.sketch.http.HttpClientStack;
 import me.xiaopan.sketch.http.HttpStack;
 import me.xiaopan.sketch.http.HurlStack;
 import me.xiaopan.sketch.process.ImageProcessor;
 import me.xiaopan.sketch.process.ResizeImageProcessor;
 import me.xiaopan.sketch.request.RequestExecutor;
+import me.xiaopan.sketch.util.ByteArrayPool;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class Configuration {
+    public static final int DEFAULT_MAX_DOWNLOAD_SIZE = 30 * 1024 * 1024;
+
     protected String logName = "Configuration";
 
     private Context context;    // 上下文
@@ -51,6 +64,10 @@ public class Configuration {
     private HttpStack httpStack;    // 网络
     private MemoryCache memoryCache;    //图片内存缓存
     private MemoryCache placeholderImageMemoryCache;    // 占位图内存缓存器
+    private BitmapPool bitmapPool;    // Bitmap复用池
+    private EncodedMemoryCache encodedMemoryCache;    // 未解码图片内存缓存
+    private MemoryVariantIndex memoryVariantIndex;    // 内存缓存尺寸索引
+    private MemoryGovernor memoryGovernor;    // 内存调控器
     private ImageDecoder imageDecoder;    //图片解码器
     private HelperFactory helperFactory;    // 协助器工厂
     private ErrorCallback errorCallback;    // 错误回调
@@ -60,7 +77,13 @@ public class Configuration {
     private RequestExecutor requestExecutor;    //请求执行器
     private ResizeCalculator resizeCalculator;  // resize计算器
     private ImagePreprocessor imagePreprocessor;    // 本地图片预处理器
+    private ProcessedImageCache processedImageCache;    // 处理后图片的磁盘缓存
+    private HttpCacheRevalidator httpCacheRevalidator;    // 按照HTTP缓存协议更新磁盘缓存
+    private DownloadResumer downloadResumer;    // 断点续传
+    private SegmentedDownloader segmentedDownloader;    // 分段并行下载
     private ImageSizeCalculator imageSizeCalculator; // 图片尺寸计算器
+    private ByteArrayPool byteArrayPool;    // byte数组复用池，不使用磁盘缓存下载时用到
+    private int maxDownloadSize = DEFAULT_MAX_DOWNLOAD_SIZE;    // 单个图片最大下载大小
 
     private boolean globalPauseLoad;   // 全局暂停加载新图片，开启后将只从内存缓存中找寻图片，只影响display请求
     private boolean globalPauseDownload;   // 全局暂停下载新图片，开启后将不再从网络下载新图片，只影响display请求
@@ -85,10 +108,20 @@ public class Configuration {
         this.requestExecutor = new RequestExecutor();
         this.resizeCalculator = new ResizeCalculator();
         this.imagePreprocessor = new ImagePreprocessor();
+        this.processedImageCache = new ProcessedImageCache();
+        this.httpCacheRevalidator = new HttpCacheRevalidator();
+        this.downloadResumer = new DownloadResumer();
+        this.segmentedDownloader = new SegmentedDownloader();
         this.imageSizeCalculator = new ImageSizeCalculator();
+        this.byteArrayPool = new ByteArrayPool();
         this.defaultImageDisplayer = new DefaultImageDisplayer();
         this.resizeImageProcessor = new ResizeImageProcessor();
         this.placeholderImageMemoryCache = LruMemoryCache.createPlaceholder(context);
+        this.bitmapPool = LruBitmapPool.create(context);
+        this.encodedMemoryCache = LruEncodedMemoryCache.create(context);
+        this.memoryVariantIndex = new MemoryVariantIndex();
+        this.memoryGovernor = new MemoryGovernor(this);
+        this.memoryGovernor.register();
 
         if (Sketch.isDebugMode()) {
             Log.i(Sketch.TAG, getInfo());
@@ -169,9 +202,11 @@ public class Configuration {
         if (memoryCache != null) {
             MemoryCache oldMemoryCache = this.memoryCache;
             this.memoryCache = memoryCache;
+            this.memoryCache.setBudgetRatio(memoryGovernor.getBudgetRatio());
             if (oldMemoryCache != null) {
                 oldMemoryCache.close();
             }
+            memoryVariantIndex.clear();
             if (Sketch.isDebugMode()) {
                 Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
                         "set", " - ", "memoryCache", " (", memoryCache.getIdentifier(), ")"));
@@ -195,6 +230,7 @@ public class Configuration {
         if (newPlaceholderImageMemoryCache != null) {
             MemoryCache oldPlaceholderImageMemoryCache = placeholderImageMemoryCache;
             placeholderImageMemoryCache = newPlaceholderImageMemoryCache;
+            placeholderImageMemoryCache.setBudgetRatio(memoryGovernor.getBudgetRatio());
             if (oldPlaceholderImageMemoryCache != null) {
                 oldPlaceholderImageMemoryCache.close();
             }
@@ -206,6 +242,106 @@ public class Configuration {
         return this;
     }
 
+    /**
+     * 获取Bitmap复用池
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * 设置Bitmap复用池
+     */
+    @SuppressWarnings("unused")
+    public Configuration setBitmapPool(BitmapPool newBitmapPool) {
+        if (newBitmapPool != null) {
+            BitmapPool oldBitmapPool = bitmapPool;
+            bitmapPool = newBitmapPool;
+            bitmapPool.setBudgetRatio(memoryGovernor.getBudgetRatio());
+            if (oldBitmapPool != null) {
+                oldBitmapPool.close();
+            }
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "bitmapPool", " (", bitmapPool.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取未解码图片内存缓存
+     */
+    public EncodedMemoryCache getEncodedMemoryCache() {
+        return encodedMemoryCache;
+    }
+
+    /**
+     * 设置未解码图片内存缓存
+     */
+    @SuppressWarnings("unused")
+    public Configuration setEncodedMemoryCache(EncodedMemoryCache newEncodedMemoryCache) {
+        if (newEncodedMemoryCache != null) {
+            EncodedMemoryCache oldEncodedMemoryCache = encodedMemoryCache;
+            encodedMemoryCache = newEncodedMemoryCache;
+            encodedMemoryCache.setBudgetRatio(memoryGovernor.getBudgetRatio());
+            if (oldEncodedMemoryCache != null) {
+                oldEncodedMemoryCache.close();
+            }
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "encodedMemoryCache", " (", encodedMemoryCache.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取内存缓存尺寸索引
+     */
+    public MemoryVariantIndex getMemoryVariantIndex() {
+        return memoryVariantIndex;
+    }
+
+    /**
+     * 获取内存调控器
+     */
+    public MemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+    /**
+     * 获取内存缓存当前的容量预算
+     */
+    @SuppressWarnings("unused")
+    public long getMemoryCacheBudget() {
+        return memoryCache != null ? memoryCache.getBudget() : 0;
+    }
+
+    /**
+     * 获取占位图内存缓存当前的容量预算
+     */
+    @SuppressWarnings("unused")
+    public long getPlaceholderImageMemoryCacheBudget() {
+        return placeholderImageMemoryCache != null ? placeholderImageMemoryCache.getBudget() : 0;
+    }
+
+    /**
+     * 获取Bitmap复用池当前的容量预算
+     */
+    @SuppressWarnings("unused")
+    public long getBitmapPoolBudget() {
+        return bitmapPool != null ? bitmapPool.getBudget() : 0;
+    }
+
+    /**
+     * 获取未解码图片内存缓存当前的容量预算
+     */
+    @SuppressWarnings("unused")
+    public long getEncodedMemoryCacheBudget() {
+        return encodedMemoryCache != null ? encodedMemoryCache.getBudget() : 0;
+    }
+
     /**
      * 获取图片解码器
      */
@@ -565,6 +701,142 @@ public class Configuration {
         return this;
     }
 
+    /**
+     * 获取处理后图片的磁盘缓存
+     */
+    public ProcessedImageCache getProcessedImageCache() {
+        return processedImageCache;
+    }
+
+    /**
+     * 设置处理后图片的磁盘缓存
+     */
+    @SuppressWarnings("unused")
+    public Configuration setProcessedImageCache(ProcessedImageCache processedImageCache) {
+        if (processedImageCache != null) {
+            this.processedImageCache = processedImageCache;
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "processedImageCache", " (", processedImageCache.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取HTTP缓存更新器
+     */
+    public HttpCacheRevalidator getHttpCacheRevalidator() {
+        return httpCacheRevalidator;
+    }
+
+    /**
+     * 设置HTTP缓存更新器
+     */
+    @SuppressWarnings("unused")
+    public Configuration setHttpCacheRevalidator(HttpCacheRevalidator httpCacheRevalidator) {
+        if (httpCacheRevalidator != null) {
+            this.httpCacheRevalidator = httpCacheRevalidator;
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "httpCacheRevalidator", " (", httpCacheRevalidator.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取断点续传器
+     */
+    public DownloadResumer getDownloadResumer() {
+        return downloadResumer;
+    }
+
+    /**
+     * 设置断点续传器
+     */
+    @SuppressWarnings("unused")
+    public Configuration setDownloadResumer(DownloadResumer downloadResumer) {
+        if (downloadResumer != null) {
+            this.downloadResumer = downloadResumer;
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "downloadResumer", " (", downloadResumer.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取分段下载器
+     */
+    public SegmentedDownloader getSegmentedDownloader() {
+        return segmentedDownloader;
+    }
+
+    /**
+     * 设置分段下载器
+     */
+    @SuppressWarnings("unused")
+    public Configuration setSegmentedDownloader(SegmentedDownloader segmentedDownloader) {
+        if (segmentedDownloader != null) {
+            this.segmentedDownloader = segmentedDownloader;
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "segmentedDownloader", " (", segmentedDownloader.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取byte数组复用池
+     */
+    public ByteArrayPool getByteArrayPool() {
+        return byteArrayPool;
+    }
+
+    /**
+     * 设置byte数组复用池
+     */
+    @SuppressWarnings("unused")
+    public Configuration setByteArrayPool(ByteArrayPool byteArrayPool) {
+        if (byteArrayPool != null) {
+            ByteArrayPool oldByteArrayPool = this.byteArrayPool;
+            this.byteArrayPool = byteArrayPool;
+            if (oldByteArrayPool != null) {
+                oldByteArrayPool.clear();
+            }
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "byteArrayPool", " (", byteArrayPool.getIdentifier(), ")"));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取单个图片最大下载大小，超过的话下载失败，默认30M
+     */
+    public int getMaxDownloadSize() {
+        return maxDownloadSize;
+    }
+
+    /**
+     * 设置单个图片最大下载大小，没有Content-Length的响应只能边下边检查，不使用磁盘缓存时全都在内存里，所以需要限制一下
+     */
+    @SuppressWarnings("unused")
+    public Configuration setMaxDownloadSize(int maxDownloadSize) {
+        if (maxDownloadSize > 0 && this.maxDownloadSize != maxDownloadSize) {
+            this.maxDownloadSize = maxDownloadSize;
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName, ": ",
+                        "set", " - ", "maxDownloadSize", " (", maxDownloadSize, ")"));
+            }
+        }
+        return this;
+    }
+
     /**
      * 获取错误回调
      */
@@ -612,6 +884,34 @@ public class Configuration {
             placeholderImageMemoryCache.appendIdentifier(builder);
         }
 
+        if (bitmapPool != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("bitmapPool");
+            builder.append("：");
+            bitmapPool.appendIdentifier(builder);
+        }
+
+        if (encodedMemoryCache != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("encodedMemoryCache");
+            builder.append("：");
+            encodedMemoryCache.appendIdentifier(builder);
+        }
+
+        if (memoryVariantIndex != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("memoryVariantIndex");
+            builder.append("：");
+            memoryVariantIndex.appendIdentifier(builder);
+        }
+
+        if (memoryGovernor != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("memoryGovernor");
+            builder.append("：");
+            memoryGovernor.appendIdentifier(builder);
+        }
+
         if (imageDecoder != null) {
             if (builder.length() > 0) builder.append("\n");
             builder.append("imageDecoder");
@@ -682,6 +982,46 @@ public class Configuration {
             imagePreprocessor.appendIdentifier(builder);
         }
 
+        if (processedImageCache != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("processedImageCache");
+            builder.append("：");
+            processedImageCache.appendIdentifier(builder);
+        }
+
+        if (httpCacheRevalidator != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("httpCacheRevalidator");
+            builder.append("：");
+            httpCacheRevalidator.appendIdentifier(builder);
+        }
+
+        if (downloadResumer != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("downloadResumer");
+            builder.append("：");
+            downloadResumer.appendIdentifier(builder);
+        }
+
+        if (segmentedDownloader != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("segmentedDownloader");
+            builder.append("：");
+            segmentedDownloader.appendIdentifier(builder);
+        }
+
+        if (byteArrayPool != null) {
+            if (builder.length() > 0) builder.append("\n");
+            builder.append("byteArrayPool");
+            builder.append("：");
+            byteArrayPool.appendIdentifier(builder);
+        }
+
+        if (builder.length() > 0) builder.append("\n");
+        builder.append("maxDownloadSize");
+        builder.append("：");
+        builder.append(maxDownloadSize);
+
         if (errorCallback != null) {
             if (builder.length() > 0) builder.append("\n");
             builder.append("errorCallback");
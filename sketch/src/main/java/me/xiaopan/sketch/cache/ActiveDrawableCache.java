@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.graphics.drawable.Drawable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.xiaopan.sketch.drawable.RecycleDrawable;
+
+/**
+ * 活动图片缓存，用弱引用持有那些已经被挤出LRU缓存但依然在显示或等待显示的图片
+ * <br>只要图片还没有被回收就依然可以命中，这样同一张图片在另一个列表里或者旋转屏幕后再次显示时就不用重新解码了
+ */
+public class ActiveDrawableCache {
+    private final Map<CacheKey, DrawableReference> referenceMap = new HashMap<CacheKey, DrawableReference>();
+    private final ReferenceQueue<Drawable> referenceQueue = new ReferenceQueue<Drawable>();
+
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * 放进去一张刚被挤出LRU缓存的图片
+     */
+    public synchronized void put(CacheKey key, Drawable drawable) {
+        if (key == null || drawable == null) {
+            return;
+        }
+        cleanReferenceQueue();
+        referenceMap.put(key, new DrawableReference(key, drawable, referenceQueue));
+    }
+
+    /**
+     * 根据给定的key获取图片，命中后就从活动缓存中删除，由调用者负责放回LRU缓存
+     */
+    public synchronized Drawable get(CacheKey key) {
+        cleanReferenceQueue();
+
+        DrawableReference reference = referenceMap.remove(key);
+        Drawable drawable = reference != null ? reference.get() : null;
+        if (drawable == null || ((RecycleDrawable) drawable).isRecycled()) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return drawable;
+    }
+
+    /**
+     * 根据给定的key删除图片
+     */
+    public synchronized void remove(CacheKey key) {
+        referenceMap.remove(key);
+    }
+
+    /**
+     * 获取当前持有的引用数量（包括已经被GC但还未清理的）
+     */
+    public synchronized int size() {
+        cleanReferenceQueue();
+        return referenceMap.size();
+    }
+
+    /**
+     * 获取命中次数
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 获取未命中次数
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear() {
+        referenceMap.clear();
+        cleanReferenceQueue();
+    }
+
+    /**
+     * 清理已经被GC的引用
+     */
+    private void cleanReferenceQueue() {
+        DrawableReference reference;
+        while ((reference = (DrawableReference) referenceQueue.poll()) != null) {
+            if (referenceMap.get(reference.key) == reference) {
+                referenceMap.remove(reference.key);
+            }
+        }
+    }
+
+    private static class DrawableReference extends WeakReference<Drawable> {
+        private final CacheKey key;
+
+        DrawableReference(CacheKey key, Drawable drawable, ReferenceQueue<Drawable> queue) {
+            super(drawable, queue);
+            this.key = key;
+        }
+    }
+}
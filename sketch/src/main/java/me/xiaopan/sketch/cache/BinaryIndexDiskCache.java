@@ -0,0 +1,761 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 使用二进制索引的磁盘缓存，打开速度快，读取时不用竞争全局锁
+ * <br>索引由快照文件和追加日志两部分组成，都是二进制格式；打开时不会同步解析索引，而是放到后台线程加载，
+ * 加载完成之前exist()和get()直接检查文件是否存在；
+ * <br>读取只会把key放进一个无锁队列，攒够一批后由后台线程统一调整访问顺序；淘汰以及压缩日志也都在后台线程执行
+ * <br>通过Configuration.setDiskCache(new BinaryIndexDiskCache(context, configuration, appVersionCode, maxSize))启用
+ */
+public class BinaryIndexDiskCache implements DiskCache {
+    public static final String DIR_NAME = "sketch_binary";
+
+    private static final String SNAPSHOT_FILE = "index.bin";
+    private static final String SNAPSHOT_FILE_TMP = "index.bin.tmp";
+    private static final String LOG_FILE = "index.log";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x534b4249;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int READ_BATCH_SIZE = 64;
+    private static final int MIN_COMPACT_OP_COUNT = 2000;
+
+    protected String logName = "BinaryIndexDiskCache";
+
+    // 查找用的索引，读取时不需要加锁
+    private final Map<String, Long> indexMap = new ConcurrentHashMap<String, Long>();
+    // 访问顺序，最久未使用的在最前面，只在持有this锁时修改
+    private final LinkedHashMap<String, Long> accessOrderMap = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private final ConcurrentLinkedQueue<String> pendingReadQueue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+    private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private int maxSize;
+    private int appVersionCode;
+    private volatile File cacheDir;
+    private Context context;
+    private Configuration configuration;
+    private Map<String, ReentrantLock> editLockMap;
+
+    private volatile boolean loaded;
+    private volatile long size;
+    private volatile boolean closed;
+    private DataOutputStream logWriter;
+    private int logOpCount;
+
+    public BinaryIndexDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+    }
+
+    /**
+     * 安装磁盘缓存，当缓存目录不存在的时候会再次安装；索引在后台线程加载
+     */
+    private synchronized void installDiskCache(boolean force) {
+        if (!force && cacheDir != null && cacheDir.exists()) {
+            return;
+        }
+
+        closeLogWriter();
+        loaded = false;
+        indexMap.clear();
+        accessOrderMap.clear();
+        size = 0;
+
+        try {
+            cacheDir = SketchUtils.getCacheDir(context, DIR_NAME, true, DISK_CACHE_RESERVED_SPACE_SIZE, true, false, 10);
+        } catch (SketchUtils.NoSpaceException e) {
+            e.printStackTrace();
+            cacheDir = e.dir;
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+            return;
+        }
+
+        // 日志马上就打开，索引加载完成之前的提交也要记下来，它们会追加在旧日志的后面，所以要先记下旧日志的长度
+        final long oldLogLength = new File(cacheDir, LOG_FILE).length();
+        openLogWriter();
+
+        final File installDir = cacheDir;
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex(installDir, oldLogLength);
+            }
+        });
+    }
+
+    /**
+     * 目录还在就不用加锁，这样读取时不会和后台线程竞争
+     */
+    private void ensureInstalled() {
+        File dir = cacheDir;
+        if (dir == null || !dir.exists()) {
+            installDiskCache(false);
+        }
+    }
+
+    private void submit(Runnable runnable) {
+        if (closed) {
+            return;
+        }
+        try {
+            executorService.submit(runnable);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读取快照和日志，重建索引
+     *
+     * @param oldLogLength 安装时日志的长度，之后的内容是本次安装后追加的
+     */
+    private synchronized void loadIndex(File installDir, long oldLogLength) {
+        if (installDir != cacheDir || loaded) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        boolean snapshotValid = readSnapshot(new File(installDir, SNAPSHOT_FILE));
+        boolean logComplete = true;
+        if (snapshotValid) {
+            // 旧日志的最后一条可能只写了一半，本次追加的记录在它后面，所以分两段读，不能跨过残缺的记录去读
+            File logFile = new File(installDir, LOG_FILE);
+            logComplete = readLog(logFile, 0, oldLogLength);
+            readLog(logFile, oldLogLength, logFile.length());
+        } else {
+            // 快照损坏或者版本不一致，之前的缓存文件都不能用了
+            SketchUtils.cleanDir(installDir);
+            indexMap.clear();
+            accessOrderMap.clear();
+            size = 0;
+        }
+
+        // 删除上次没有提交的临时文件
+        File[] files = installDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_FILE_SUFFIX)) {
+                    SketchUtils.deleteFile(file);
+                }
+            }
+        }
+
+        loaded = true;
+        // 日志里有残缺的记录就马上写一次快照把日志清空，不然下次打开时还会读到残缺的记录
+        if (!snapshotValid || !logComplete) {
+            writeSnapshot();
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "loadIndex",
+                    " - ", "entryCount=", indexMap.size(),
+                    " - ", "size=", Formatter.formatFileSize(context, size),
+                    " - ", "useTime=", System.currentTimeMillis() - startTime, "ms"));
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * 读取快照，快照不存在说明是全新的缓存或者还没有压缩过，只读日志就行了
+     *
+     * @return false：快照已损坏或版本不一致
+     */
+    private boolean readSnapshot(File snapshotFile) {
+        if (!snapshotFile.exists()) {
+            return true;
+        }
+
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 16 * 1024));
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION || inputStream.readInt() != appVersionCode) {
+                return false;
+            }
+            int count = inputStream.readInt();
+            for (int w = 0; w < count; w++) {
+                String key = inputStream.readUTF();
+                long length = inputStream.readLong();
+                putIndex(key, length);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * 读取日志中[start, end)这一段，每条记录都完整读出来之后才会生效
+     *
+     * @return false：最后一条记录不完整或者内容不对
+     */
+    private boolean readLog(File logFile, long start, long end) {
+        if (start >= end || !logFile.exists()) {
+            return true;
+        }
+
+        DataInputStream inputStream = null;
+        try {
+            FileInputStream fileInputStream = new FileInputStream(logFile);
+            fileInputStream.getChannel().position(start);
+            LogInputStream logInputStream = new LogInputStream(new BufferedInputStream(fileInputStream, 16 * 1024), end - start);
+            inputStream = new DataInputStream(logInputStream);
+            while (logInputStream.getPosition() < end - start) {
+                byte op = inputStream.readByte();
+                String key = inputStream.readUTF();
+                if (op == OP_PUT) {
+                    putIndex(key, inputStream.readLong());
+                } else if (op == OP_REMOVE) {
+                    removeIndex(key);
+                } else {
+                    return false;
+                }
+                logOpCount++;
+            }
+            return true;
+        } catch (EOFException e) {
+            // 最后一条只写了一半
+            return false;
+        } catch (UTFDataFormatException e) {
+            // 最后一条只写了一半，key读到了后面的内容
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    private void putIndex(String key, long length) {
+        Long oldLength = indexMap.put(key, length);
+        accessOrderMap.put(key, length);
+        size += length - (oldLength != null ? oldLength : 0);
+    }
+
+    private Long removeIndex(String key) {
+        Long oldLength = indexMap.remove(key);
+        accessOrderMap.remove(key);
+        if (oldLength != null) {
+            size -= oldLength;
+        }
+        return oldLength;
+    }
+
+    private void openLogWriter() {
+        try {
+            logWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(cacheDir, LOG_FILE), true), 1024));
+        } catch (IOException e) {
+            e.printStackTrace();
+            logWriter = null;
+        }
+    }
+
+    private void closeLogWriter() {
+        if (logWriter != null) {
+            SketchUtils.close(logWriter);
+            logWriter = null;
+        }
+    }
+
+    private void appendLog(byte op, String key, long length) {
+        if (logWriter == null) {
+            return;
+        }
+        try {
+            logWriter.writeByte(op);
+            logWriter.writeUTF(key);
+            if (op == OP_PUT) {
+                logWriter.writeLong(length);
+            }
+            logWriter.flush();
+            logOpCount++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 把当前索引按访问顺序写成快照，然后清空日志
+     */
+    private void writeSnapshot() {
+        File tempFile = new File(cacheDir, SNAPSHOT_FILE_TMP);
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 16 * 1024));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(appVersionCode);
+            outputStream.writeInt(accessOrderMap.size());
+            for (Map.Entry<String, Long> entry : accessOrderMap.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeLong(entry.getValue());
+            }
+            outputStream.close();
+            outputStream = null;
+
+            File snapshotFile = new File(cacheDir, SNAPSHOT_FILE);
+            if (snapshotFile.exists() && !snapshotFile.delete()) {
+                return;
+            }
+            if (!tempFile.renameTo(snapshotFile)) {
+                return;
+            }
+
+            boolean reopen = logWriter != null;
+            closeLogWriter();
+            SketchUtils.deleteFile(new File(cacheDir, LOG_FILE));
+            logOpCount = 0;
+            if (reopen) {
+                openLogWriter();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+    }
+
+    /**
+     * 记录一次读取，攒够一批再交给后台线程调整访问顺序
+     */
+    private void recordRead(String key) {
+        pendingReadQueue.offer(key);
+        if (pendingReadCount.incrementAndGet() >= READ_BATCH_SIZE) {
+            pendingReadCount.set(0);
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BinaryIndexDiskCache.this) {
+                        drainPendingReads();
+                    }
+                }
+            });
+        }
+    }
+
+    private void drainPendingReads() {
+        String key;
+        while ((key = pendingReadQueue.poll()) != null) {
+            // 访问顺序的LinkedHashMap在get时会把key移到最后
+            accessOrderMap.get(key);
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的文件直到不超过最大容量，日志太长时顺便压缩成快照
+     */
+    private synchronized void trimToSize() {
+        if (!loaded || closed) {
+            return;
+        }
+
+        drainPendingReads();
+        Iterator<Map.Entry<String, Long>> iterator = accessOrderMap.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            indexMap.remove(eldest.getKey());
+            size -= eldest.getValue();
+            SketchUtils.deleteFile(new File(cacheDir, eldest.getKey()));
+            appendLog(OP_REMOVE, eldest.getKey(), 0);
+        }
+
+        if (logOpCount >= Math.max(MIN_COMPACT_OP_COUNT, indexMap.size())) {
+            writeSnapshot();
+        }
+    }
+
+    private void scheduleTrim() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize();
+            }
+        });
+    }
+
+    private File getCacheFile(String uri) {
+        String fileName = uriToDiskCacheKey(uri);
+        return fileName != null && cacheDir != null ? new File(cacheDir, fileName) : null;
+    }
+
+    /**
+     * 在后台线程安装，exist()在主线程上调用时用，不让主线程等待安装
+     */
+    private void installDiskCacheInBackground() {
+        if (!backgroundInstallStarted.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache(false);
+            }
+        }, logName + "Installer").start();
+    }
+
+    @Override
+    public boolean exist(String uri) {
+        // 同LruDiskCache，主线程上还没安装好就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
+        if (cacheDir == null) {
+            if (SketchUtils.isMainThread()) {
+                installDiskCacheInBackground();
+                return true;
+            }
+            installDiskCache(false);
+        }
+
+        String fileName = uriToDiskCacheKey(uri);
+        if (fileName == null) {
+            return false;
+        }
+        if (loaded) {
+            return indexMap.containsKey(fileName);
+        }
+
+        // 索引还没加载完，主线程上不访问文件系统，先当做存在处理
+        if (SketchUtils.isMainThread()) {
+            return true;
+        }
+
+        // 不在主线程就直接检查文件
+        File file = getCacheFile(uri);
+        return file != null && file.exists();
+    }
+
+    @Override
+    public Entry get(String uri) {
+        ensureInstalled();
+
+        File file = getCacheFile(uri);
+        if (file == null) {
+            return null;
+        }
+        if (loaded ? !indexMap.containsKey(file.getName()) : !file.exists()) {
+            return null;
+        }
+
+        recordRead(file.getName());
+        return new BinaryIndexDiskCacheEntry(this, uri, file);
+    }
+
+    @Override
+    public Editor edit(String uri) {
+        ensureInstalled();
+
+        File file = getCacheFile(uri);
+        if (file == null) {
+            return null;
+        }
+        File tempFile = new File(cacheDir, SketchUtils.concat(file.getName(), ".", System.nanoTime(), TMP_FILE_SUFFIX));
+        return new BinaryIndexDiskCacheEditor(this, file, tempFile);
+    }
+
+    /**
+     * 提交一个已经写好的临时文件
+     */
+    private synchronized boolean commit(File file, File tempFile) {
+        if (closed || !tempFile.exists()) {
+            SketchUtils.deleteFile(tempFile);
+            return false;
+        }
+        if (file.exists() && !file.delete()) {
+            SketchUtils.deleteFile(tempFile);
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            SketchUtils.deleteFile(tempFile);
+            return false;
+        }
+
+        long length = file.length();
+        putIndex(file.getName(), length);
+        appendLog(OP_PUT, file.getName(), length);
+
+        if (size > maxSize || logOpCount >= MIN_COMPACT_OP_COUNT) {
+            scheduleTrim();
+        }
+        return true;
+    }
+
+    private synchronized boolean remove(File file) {
+        if (removeIndex(file.getName()) != null) {
+            appendLog(OP_REMOVE, file.getName(), 0);
+        }
+        return !file.exists() || file.delete();
+    }
+
+    @Override
+    public File getCacheDir() {
+        ensureInstalled();
+        return cacheDir;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String uriToDiskCacheKey(String uri) {
+        if (SketchUtils.checkSuffix(uri, ".apk")) {
+            uri += ".icon";
+        }
+        try {
+            return URLEncoder.encode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        closeLogWriter();
+        if (cacheDir != null) {
+            SketchUtils.cleanDir(cacheDir);
+        }
+        pendingReadQueue.clear();
+        installDiskCache(true);
+    }
+
+    @Override
+    public synchronized void close() {
+        drainPendingReads();
+        if (loaded) {
+            writeSnapshot();
+        }
+        closeLogWriter();
+        closed = true;
+        executorService.shutdown();
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("appVersionCode").append("=").append(appVersionCode)
+                .append(")");
+    }
+
+    /**
+     * 最多只能读limit个字节，并记录已经读了多少，读日志时用来确保不会跨过本段的结尾
+     */
+    private static class LogInputStream extends FilterInputStream {
+        private final long limit;
+        private long position;
+
+        LogInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= limit) {
+                return -1;
+            }
+            int result = super.read();
+            if (result != -1) {
+                position++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (position >= limit) {
+                return -1;
+            }
+            int result = super.read(buffer, offset, (int) Math.min(count, limit - position));
+            if (result != -1) {
+                position += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long result = super.skip(Math.min(byteCount, limit - position));
+            position += result;
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), limit - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    public static class BinaryIndexDiskCacheEntry implements Entry {
+        private BinaryIndexDiskCache diskCache;
+        private String uri;
+        private File file;
+
+        public BinaryIndexDiskCacheEntry(BinaryIndexDiskCache diskCache, String uri, File file) {
+            this.diskCache = diskCache;
+            this.uri = uri;
+            this.file = file;
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public boolean delete() {
+            return diskCache.remove(file);
+        }
+    }
+
+    public static class BinaryIndexDiskCacheEditor implements FileEditor {
+        private BinaryIndexDiskCache diskCache;
+        private File file;
+        private File tempFile;
+
+        public BinaryIndexDiskCacheEditor(BinaryIndexDiskCache diskCache, File file, File tempFile) {
+            this.diskCache = diskCache;
+            this.file = file;
+            this.tempFile = tempFile;
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public File getFile() {
+            return tempFile;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!diskCache.commit(file, tempFile)) {
+                throw new IOException("commit failed: " + file.getPath());
+            }
+        }
+
+        @Override
+        public void abort() {
+            SketchUtils.deleteFile(tempFile);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.graphics.Bitmap;
+
+import me.xiaopan.sketch.Identifier;
+
+/**
+ * Bitmap复用池，用来回收不再使用的Bitmap，并在解码或处理图片时通过inBitmap等方式再次利用，以减少内存分配和GC
+ */
+public interface BitmapPool extends Identifier {
+    /**
+     * 放进去一张不再使用的Bitmap
+     *
+     * @return true：已放入复用池；false：不符合复用条件，调用者需要自行回收
+     */
+    boolean put(Bitmap bitmap);
+
+    /**
+     * 获取一张指定尺寸和配置的Bitmap，返回的Bitmap已经被擦除为透明
+     */
+    Bitmap get(int width, int height, Bitmap.Config config);
+
+    /**
+     * 获取一张指定尺寸和配置的Bitmap，返回的Bitmap的内容是不确定的，适用于会被完全覆盖的场景（例如inBitmap）
+     */
+    Bitmap getDirty(int width, int height, Bitmap.Config config);
+
+    /**
+     * 获取已用容量
+     */
+    long getSize();
+
+    /**
+     * 获取最大容量
+     */
+    long getMaxSize();
+
+    /**
+     * 设置容量预算比例，取值范围为0到1，实际可用容量为最大容量乘以此比例，超出的部分会被立即释放
+     */
+    void setBudgetRatio(float budgetRatio);
+
+    /**
+     * 获取当前容量预算，即实际可用的容量
+     */
+    long getBudget();
+
+    /**
+     * 获取命中次数
+     */
+    int getHitCount();
+
+    /**
+     * 获取未命中次数
+     */
+    int getMissCount();
+
+    /**
+     * 清除复用池，回收所有Bitmap
+     */
+    void clear();
+
+    /**
+     * 关闭
+     */
+    void close();
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import me.xiaopan.sketch.decode.ImageFormat;
+
+/**
+ * Bitmap复用池相关的工具方法
+ */
+public class BitmapPoolUtils {
+
+    /**
+     * 当前系统版本是否支持inBitmap
+     */
+    public static boolean sdkSupportInBitmap() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * 根据图片尺寸、格式以及inSampleSize从复用池中找一张合适的Bitmap设置到inBitmap上
+     * <br>KITKAT以下版本要求inSampleSize为1、图片格式为JPEG或PNG并且尺寸完全一致；
+     * <br>KITKAT及以上版本只要字节数足够即可
+     *
+     * @return true：设置成功
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static boolean setInBitmapFromPool(BitmapFactory.Options options, int outWidth, int outHeight,
+                                              ImageFormat imageFormat, BitmapPool bitmapPool) {
+        if (!sdkSupportInBitmap() || bitmapPool == null || outWidth <= 0 || outHeight <= 0) {
+            return false;
+        }
+
+        // 只要开启了复用池就让解码出来的Bitmap是可变的，这样以后才能被再次复用
+        options.inMutable = true;
+
+        int inSampleSize = options.inSampleSize > 1 ? options.inSampleSize : 1;
+        Bitmap inBitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // 解码器对宽高的取整方式各不一样，这里向上取整，宁可多要一点
+            int finalWidth = (int) Math.ceil(outWidth / (float) inSampleSize);
+            int finalHeight = (int) Math.ceil(outHeight / (float) inSampleSize);
+            inBitmap = bitmapPool.getDirty(finalWidth, finalHeight, options.inPreferredConfig);
+        } else if (inSampleSize == 1 && (imageFormat == ImageFormat.JPEG || imageFormat == ImageFormat.PNG)) {
+            inBitmap = bitmapPool.getDirty(outWidth, outHeight, options.inPreferredConfig);
+        } else {
+            inBitmap = null;
+        }
+
+        options.inBitmap = inBitmap;
+        return inBitmap != null;
+    }
+
+    /**
+     * inBitmap解码失败的时候把inBitmap还回复用池，以便用不带inBitmap的方式再解码一次
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static void inBitmapFailed(BitmapFactory.Options options, BitmapPool bitmapPool) {
+        if (!sdkSupportInBitmap() || options.inBitmap == null) {
+            return;
+        }
+
+        freeBitmapToPool(options.inBitmap, bitmapPool);
+        options.inBitmap = null;
+    }
+
+    /**
+     * 释放Bitmap，优先放入复用池，复用池不接收的话就直接回收
+     */
+    public static void freeBitmapToPool(Bitmap bitmap, BitmapPool bitmapPool) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (bitmapPool == null || !bitmapPool.put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * 优先从复用池中取一张指定尺寸和配置的Bitmap（已擦除为透明），取不到的话再新建一张
+     *
+     * @param bitmapPool 复用池，为null时直接新建
+     */
+    public static Bitmap getBitmapOrCreate(int width, int height, Bitmap.Config config, BitmapPool bitmapPool) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap bitmap = bitmapPool != null ? bitmapPool.get(width, height, config) : null;
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 获取每个像素所占的字节数
+     */
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else {
+            return 4;
+        }
+    }
+}
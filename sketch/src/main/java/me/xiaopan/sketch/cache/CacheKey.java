@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.process.ImageProcessor;
+
+/**
+ * 紧凑的缓存key，由uri（或自定义的id）加上各项选项的原始值组成，并预先算好64位的hash
+ * <br>生成key的过程不用拼接字符串，比较时先比较hash再逐项比较原始值，所以hash冲突也不会出错；
+ * <br>字符串形式的id只在需要打印日志的时候才通过{@link #getIdentifier()}生成
+ * <br>注意：作为缓存的key放进去之后就不能再修改了，可以修改的只有用来查找的key
+ */
+public class CacheKey implements Identifier {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int FLAG_MAX_SIZE = 1;
+    private static final int FLAG_RESIZE = 1 << 1;
+    private static final int FLAG_FORCE_USE_RESIZE = 1 << 2;
+    private static final int FLAG_LOW_QUALITY_IMAGE = 1 << 3;
+    private static final int FLAG_PREFER_QUALITY = 1 << 4;
+
+    private String source;
+    private long sourceHash;
+    private int flags;
+    private int maxSizeWidth;
+    private int maxSizeHeight;
+    private int resizeWidth;
+    private int resizeHeight;
+    private ImageView.ScaleType scaleType;
+    private Bitmap.Config bitmapConfig;
+    private String processorId;
+    private String partition;   // 所属的内存缓存分区，只用来选择分区，不参与比较
+
+    private long hash;
+
+    public CacheKey() {
+    }
+
+    /**
+     * 创建一个只有uri或自定义id的key
+     */
+    public CacheKey(String source) {
+        reset(source);
+    }
+
+    public CacheKey(CacheKey cacheKey) {
+        set(cacheKey);
+    }
+
+    /**
+     * 重置，清除所有选项
+     */
+    public CacheKey reset(String source) {
+        this.source = source;
+        this.sourceHash = hashString(FNV_OFFSET_BASIS, source);
+        this.flags = 0;
+        this.maxSizeWidth = 0;
+        this.maxSizeHeight = 0;
+        this.resizeWidth = 0;
+        this.resizeHeight = 0;
+        this.scaleType = null;
+        this.bitmapConfig = null;
+        this.processorId = null;
+        this.partition = null;
+        computeHash();
+        return this;
+    }
+
+    /**
+     * 复制另一个key的全部内容
+     */
+    public CacheKey set(CacheKey cacheKey) {
+        this.source = cacheKey.source;
+        this.sourceHash = cacheKey.sourceHash;
+        this.flags = cacheKey.flags;
+        this.maxSizeWidth = cacheKey.maxSizeWidth;
+        this.maxSizeHeight = cacheKey.maxSizeHeight;
+        this.resizeWidth = cacheKey.resizeWidth;
+        this.resizeHeight = cacheKey.resizeHeight;
+        this.scaleType = cacheKey.scaleType;
+        this.bitmapConfig = cacheKey.bitmapConfig;
+        this.processorId = cacheKey.processorId;
+        this.partition = cacheKey.partition;
+        this.hash = cacheKey.hash;
+        return this;
+    }
+
+    public CacheKey setMaxSize(int width, int height) {
+        this.flags |= FLAG_MAX_SIZE;
+        this.maxSizeWidth = width;
+        this.maxSizeHeight = height;
+        computeHash();
+        return this;
+    }
+
+    public CacheKey setResize(int width, int height, ImageView.ScaleType scaleType) {
+        this.flags |= FLAG_RESIZE;
+        this.resizeWidth = width;
+        this.resizeHeight = height;
+        this.scaleType = scaleType;
+        computeHash();
+        return this;
+    }
+
+    public CacheKey setForceUseResize(boolean forceUseResize) {
+        return setFlag(FLAG_FORCE_USE_RESIZE, forceUseResize);
+    }
+
+    public CacheKey setLowQualityImage(boolean lowQualityImage) {
+        return setFlag(FLAG_LOW_QUALITY_IMAGE, lowQualityImage);
+    }
+
+    public CacheKey setInPreferQualityOverSpeed(boolean inPreferQualityOverSpeed) {
+        return setFlag(FLAG_PREFER_QUALITY, inPreferQualityOverSpeed);
+    }
+
+    public CacheKey setBitmapConfig(Bitmap.Config bitmapConfig) {
+        this.bitmapConfig = bitmapConfig;
+        computeHash();
+        return this;
+    }
+
+    /**
+     * 设置ImageProcessor，每次都重新获取identifier，因为ImageProcessor的参数是可以修改的；
+     * 内置的ImageProcessor会缓存自己的identifier，参数修改时才重新生成，所以这里不会拼接字符串
+     */
+    public CacheKey setImageProcessor(ImageProcessor imageProcessor) {
+        this.processorId = imageProcessor != null ? imageProcessor.getIdentifier() : null;
+        computeHash();
+        return this;
+    }
+
+    /**
+     * 设置所属的内存缓存分区，只有{@link PartitionedMemoryCache}会用到
+     */
+    public CacheKey setPartition(String partition) {
+        this.partition = partition;
+        return this;
+    }
+
+    public String getPartition() {
+        return partition;
+    }
+
+    private CacheKey setFlag(int flag, boolean value) {
+        if (value) {
+            flags |= flag;
+        } else {
+            flags &= ~flag;
+        }
+        computeHash();
+        return this;
+    }
+
+    private static long hashString(long hash, String value) {
+        if (value == null) {
+            return hash;
+        }
+        for (int w = 0, length = value.length(); w < length; w++) {
+            hash ^= value.charAt(w);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hashInt(long hash, int value) {
+        hash ^= value;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    /**
+     * 每次修改后都重新计算hash，这样放进缓存后的key在任何线程读到的hash都是确定的
+     */
+    private void computeHash() {
+        long newHash = sourceHash;
+        newHash = hashInt(newHash, flags);
+        newHash = hashInt(newHash, maxSizeWidth);
+        newHash = hashInt(newHash, maxSizeHeight);
+        newHash = hashInt(newHash, resizeWidth);
+        newHash = hashInt(newHash, resizeHeight);
+        newHash = hashInt(newHash, scaleType != null ? scaleType.ordinal() + 1 : 0);
+        newHash = hashInt(newHash, bitmapConfig != null ? bitmapConfig.ordinal() + 1 : 0);
+        newHash = hashInt(newHash, processorId != null ? processorId.hashCode() : 0);
+        hash = newHash;
+    }
+
+    /**
+     * 获取64位的hash值
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * 获取maxSize的宽，没有设置maxSize时返回0
+     */
+    public int getMaxSizeWidth() {
+        return (flags & FLAG_MAX_SIZE) != 0 ? maxSizeWidth : 0;
+    }
+
+    /**
+     * 获取maxSize的高，没有设置maxSize时返回0
+     */
+    public int getMaxSizeHeight() {
+        return (flags & FLAG_MAX_SIZE) != 0 ? maxSizeHeight : 0;
+    }
+
+    /**
+     * 是否可以通过缩放得到同一张图片的其它尺寸，也就是没有经过resize和ImageProcessor处理的原样解码结果
+     */
+    public boolean isScalable() {
+        return (flags & (FLAG_RESIZE | FLAG_FORCE_USE_RESIZE)) == 0 && processorId == null;
+    }
+
+    /**
+     * 是否和另一个key是同一张图片的不同尺寸，即只有maxSize、resize或ImageProcessor不一样
+     */
+    public boolean isVariantOf(CacheKey other) {
+        int qualityFlags = FLAG_LOW_QUALITY_IMAGE | FLAG_PREFER_QUALITY;
+        return other != null
+                && sourceHash == other.sourceHash
+                && (flags & qualityFlags) == (other.flags & qualityFlags)
+                && bitmapConfig == other.bitmapConfig
+                && (source != null ? source.equals(other.source) : other.source == null);
+    }
+
+    /**
+     * 是否是空的key，即没有uri也没有自定义id
+     */
+    public boolean isEmpty() {
+        return source == null;
+    }
+
+    @Override
+    public int hashCode() {
+        long value = getHash();
+        return (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+
+        CacheKey other = (CacheKey) o;
+        return getHash() == other.getHash()
+                && flags == other.flags
+                && maxSizeWidth == other.maxSizeWidth
+                && maxSizeHeight == other.maxSizeHeight
+                && resizeWidth == other.resizeWidth
+                && resizeHeight == other.resizeHeight
+                && scaleType == other.scaleType
+                && bitmapConfig == other.bitmapConfig
+                && (source != null ? source.equals(other.source) : other.source == null)
+                && (processorId != null ? processorId.equals(other.processorId) : other.processorId == null);
+    }
+
+    @Override
+    public String toString() {
+        return getIdentifier();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    /**
+     * 按照原来的请求ID的格式拼接出字符串形式的key，只用于打印日志
+     */
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        builder.append(source);
+        if ((flags & FLAG_MAX_SIZE) != 0) {
+            builder.append("_");
+            builder.append("MaxSize(").append(maxSizeWidth).append("x").append(maxSizeHeight).append(")");
+        }
+        if ((flags & FLAG_RESIZE) != 0) {
+            builder.append("_");
+            builder.append("Resize(").append(resizeWidth).append("x").append(resizeHeight);
+            if (scaleType != null) {
+                builder.append(":").append(scaleType.name());
+            }
+            builder.append(")");
+        }
+        if ((flags & FLAG_FORCE_USE_RESIZE) != 0) {
+            builder.append("_");
+            builder.append("forceUseResize");
+        }
+        if ((flags & FLAG_LOW_QUALITY_IMAGE) != 0) {
+            builder.append("_");
+            builder.append("lowQualityImage");
+        }
+        if ((flags & FLAG_PREFER_QUALITY) != 0) {
+            builder.append("_");
+            builder.append("preferQuality");
+        }
+        if (bitmapConfig != null) {
+            builder.append("_");
+            builder.append(bitmapConfig.name());
+        }
+        if (processorId != null) {
+            builder.append("_");
+            builder.append(processorId);
+        }
+        return builder;
+    }
+}
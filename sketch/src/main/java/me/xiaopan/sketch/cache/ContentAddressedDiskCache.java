@@ -0,0 +1,699 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 按内容寻址的磁盘缓存，相同内容的图片不管有多少个uri都只存一份
+ * <br>数据文件以内容的SHA-1摘要命名，另有一份uri到摘要的索引，一个数据文件可以被多个uri引用；
+ * 删除某个uri时只是减少引用，没有uri引用了才会删除数据文件，容量超出时按数据文件最近使用的顺序淘汰，连同引用它的uri一起删除
+ * <br>下载时一边写一边计算摘要（见{@link DiskCache.DigestEditor}），新uri的内容如果已经存在就直接丢掉临时文件，只记录索引，不会再写一份
+ * <br>通过Configuration.setDiskCache(new ContentAddressedDiskCache(context, configuration, appVersionCode, maxSize))启用
+ */
+public class ContentAddressedDiskCache implements DiskCache {
+    public static final String DIR_NAME = "sketch_content";
+    public static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_FILE_TMP = "index.tmp";
+    private static final String BLOB_DIR_NAME = "blobs";
+    private static final String TEMP_DIR_NAME = "tmp";
+    private static final String MAGIC = "me.xiaopan.sketch.ContentAddressedDiskCache";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String REMOVE = "REMOVE";
+    private static final int FAN_OUT_LENGTH = 2;
+    private static final int MIN_REBUILD_LINE_COUNT = 2000;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected String logName = "ContentAddressedDiskCache";
+
+    private int maxSize;
+    private int appVersionCode;
+    private volatile File cacheDir;
+    private Context context;
+    private Configuration configuration;
+    private Map<String, ReentrantLock> editLockMap;
+
+    private final Map<String, String> digestMap = new ConcurrentHashMap<String, String>();
+    private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+    private final LinkedHashMap<String, Blob> blobMap = new LinkedHashMap<String, Blob>(0, 0.75f, true);
+    private final AtomicLong tempFileSequence = new AtomicLong();
+    private Writer indexWriter;
+    private int indexLineCount;
+    private long size;
+    private int dedupCount;
+
+    public ContentAddressedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+    }
+
+    /**
+     * 安装磁盘缓存，当缓存目录不存在的时候回再次安装
+     */
+    private synchronized void installDiskCache(boolean force) {
+        // 好好的就不安装了
+        if (!force && indexWriter != null && cacheDir != null && cacheDir.exists()) {
+            return;
+        }
+
+        closeIndexWriter();
+        digestMap.clear();
+        blobMap.clear();
+        indexLineCount = 0;
+        size = 0;
+
+        // 根目录下没有DiskLruCache的日志文件，所以不能让getCacheDir把它当做旧的缓存目录清理掉
+        try {
+            cacheDir = SketchUtils.getCacheDir(context, DIR_NAME, true, DISK_CACHE_RESERVED_SPACE_SIZE, true, false, 10);
+        } catch (SketchUtils.NoSpaceException e) {
+            e.printStackTrace();
+            cacheDir = e.dir;
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+            return;
+        }
+
+        try {
+            try {
+                readIndex();
+            } catch (IOException e) {
+                // 索引损坏了，数据文件也就对不上号了，全部清掉重新来
+                e.printStackTrace();
+                digestMap.clear();
+                blobMap.clear();
+                indexLineCount = 0;
+                size = 0;
+                DiskLruCache.deleteContents(cacheDir);
+            }
+
+            // 上次没有提交的临时文件都没用了
+            DiskLruCache.deleteContents(new File(cacheDir, TEMP_DIR_NAME));
+
+            if (indexLineCount == 0 || indexRebuildRequired()) {
+                rebuildIndex();
+            } else {
+                indexWriter = new BufferedWriter(new FileWriter(new File(cacheDir, INDEX_FILE), true), 8 * 1024);
+            }
+            trimToSize();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeIndexWriter();
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+        }
+    }
+
+    /**
+     * 读取索引，只记录uri和摘要的对应关系，数据文件的大小从文件本身获取，对应的数据文件不存在的uri直接忽略
+     */
+    private void readIndex() throws IOException {
+        File indexFile = new File(cacheDir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            // 没有索引的话数据文件都是孤儿，删掉
+            DiskLruCache.deleteContents(new File(cacheDir, BLOB_DIR_NAME));
+            return;
+        }
+
+        LinkedHashMap<String, String> replayMap = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new FileReader(indexFile), 8 * 1024);
+        try {
+            if (!MAGIC.equals(reader.readLine())
+                    || !VERSION.equals(reader.readLine())
+                    || !String.valueOf(appVersionCode).equals(reader.readLine())) {
+                throw new IOException("unexpected index header");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && PUT.equals(parts[0])) {
+                    // 先删再放，保证顺序是最后一次写入的顺序
+                    replayMap.remove(parts[1]);
+                    replayMap.put(parts[1], parts[2]);
+                } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                    replayMap.remove(parts[1]);
+                } else if (line.length() != 0) {
+                    // 最后一行可能因为崩溃只写了一半，后面不会再有有效内容了
+                    break;
+                }
+                indexLineCount++;
+            }
+        } finally {
+            SketchUtils.close(reader);
+        }
+
+        for (Map.Entry<String, String> entry : replayMap.entrySet()) {
+            String key = entry.getKey();
+            String digest = entry.getValue();
+            Blob blob = blobMap.get(digest);
+            if (blob == null) {
+                File blobFile = getBlobFile(digest);
+                if (!blobFile.exists()) {
+                    continue;
+                }
+                blob = new Blob(blobFile.length());
+                blobMap.put(digest, blob);
+                size += blob.length;
+            }
+            blob.keys.add(key);
+            digestMap.put(key, digest);
+        }
+
+        // 删掉没有索引引用的数据文件
+        File[] fanOutDirs = new File(cacheDir, BLOB_DIR_NAME).listFiles();
+        if (fanOutDirs != null) {
+            for (File fanOutDir : fanOutDirs) {
+                File[] blobFiles = fanOutDir.listFiles();
+                if (blobFiles == null) {
+                    continue;
+                }
+                for (File blobFile : blobFiles) {
+                    if (!blobMap.containsKey(blobFile.getName())) {
+                        blobFile.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 重写索引文件，按数据文件最近使用的顺序写，这样下次打开时淘汰顺序也能保持
+     */
+    private void rebuildIndex() throws IOException {
+        closeIndexWriter();
+
+        File indexFileTmp = new File(cacheDir, INDEX_FILE_TMP);
+        Writer writer = new BufferedWriter(new FileWriter(indexFileTmp), 8 * 1024);
+        int lineCount = 0;
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n");
+            writer.write(String.valueOf(appVersionCode));
+            writer.write("\n");
+            for (Map.Entry<String, Blob> entry : blobMap.entrySet()) {
+                for (String key : entry.getValue().keys) {
+                    writer.write(PUT + " " + key + " " + entry.getKey() + "\n");
+                    lineCount++;
+                }
+            }
+        } finally {
+            SketchUtils.close(writer);
+        }
+
+        File indexFile = new File(cacheDir, INDEX_FILE);
+        if (!indexFileTmp.renameTo(indexFile)) {
+            // 有些系统上目标文件存在时不能重命名
+            if (!indexFile.delete() || !indexFileTmp.renameTo(indexFile)) {
+                throw new IOException("rename index file failed: " + indexFileTmp.getPath());
+            }
+        }
+
+        indexLineCount = lineCount;
+        indexWriter = new BufferedWriter(new FileWriter(indexFile, true), 8 * 1024);
+    }
+
+    private boolean indexRebuildRequired() {
+        int redundantLineCount = indexLineCount - digestMap.size();
+        return redundantLineCount >= MIN_REBUILD_LINE_COUNT && redundantLineCount >= digestMap.size();
+    }
+
+    private void writeIndexLine(String line) throws IOException {
+        if (indexWriter == null) {
+            throw new IOException("cache is closed");
+        }
+        indexWriter.write(line);
+        indexWriter.write("\n");
+        indexWriter.flush();
+        indexLineCount++;
+    }
+
+    private void closeIndexWriter() {
+        if (indexWriter != null) {
+            SketchUtils.close(indexWriter);
+            indexWriter = null;
+        }
+    }
+
+    private File getBlobFile(String digest) {
+        return new File(new File(new File(cacheDir, BLOB_DIR_NAME), digest.substring(0, FAN_OUT_LENGTH)), digest);
+    }
+
+    /**
+     * 提交一个写好的临时文件，内容已经存在的话直接删掉临时文件，否则把临时文件改名为数据文件
+     */
+    private synchronized void completeEdit(String key, File tempFile, String digest) throws IOException {
+        if (indexWriter == null) {
+            tempFile.delete();
+            throw new IOException("cache is closed");
+        }
+
+        Blob blob = blobMap.get(digest);
+        File blobFile = getBlobFile(digest);
+        boolean dedup = blob != null && blobFile.exists();
+        if (dedup) {
+            // 同样的内容已经存过了，不用再写一份
+            tempFile.delete();
+            dedupCount++;
+        } else {
+            // 先改名再记索引，改名失败的话索引里什么都不记，和内存里还保留着的旧映射保持一致；
+            // 改名后还没来得及记索引就崩溃的话会留下没人引用的数据文件，下次打开时会被清理掉
+            File parentDir = blobFile.getParentFile();
+            if ((!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) || !tempFile.renameTo(blobFile)) {
+                tempFile.delete();
+                throw new IOException("rename temp file failed: " + tempFile.getPath());
+            }
+
+            if (blob == null) {
+                blob = new Blob(0);
+                blobMap.put(digest, blob);
+            }
+            size -= blob.length;
+            blob.length = blobFile.length();
+            size += blob.length;
+        }
+
+        String oldDigest = digestMap.put(key, digest);
+        if (oldDigest != null && !oldDigest.equals(digest)) {
+            release(key, oldDigest);
+        }
+        blob.keys.add(key);
+        writeIndexLine(PUT + " " + key + " " + digest);
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "commit",
+                    " - ", dedup ? "dedup" : "new content",
+                    " - ", "references=", blob.keys.size(),
+                    " - ", "digest=", digest,
+                    " - ", key));
+        }
+
+        trimToSize();
+        if (indexRebuildRequired()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * 删除一个uri的引用，数据文件没有uri引用了才会删除
+     */
+    private synchronized boolean remove(String key) {
+        String digest = digestMap.remove(key);
+        if (digest == null) {
+            return false;
+        }
+        release(key, digest);
+        try {
+            writeIndexLine(REMOVE + " " + key);
+            if (indexRebuildRequired()) {
+                rebuildIndex();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private void release(String key, String digest) {
+        Blob blob = blobMap.get(digest);
+        if (blob == null) {
+            return;
+        }
+        blob.keys.remove(key);
+        if (blob.keys.isEmpty()) {
+            blobMap.remove(digest);
+            deleteBlob(digest, blob);
+        }
+    }
+
+    private void deleteBlob(String digest, Blob blob) {
+        File blobFile = getBlobFile(digest);
+        if (blobFile.exists() && !blobFile.delete()) {
+            Log.w(Sketch.TAG, SketchUtils.concat(logName, " - ", "delete blob failed", " - ", blobFile.getPath()));
+        }
+        size -= blob.length;
+    }
+
+    /**
+     * 容量超出时按最近使用的顺序淘汰数据文件，引用它的uri一起删除
+     */
+    private void trimToSize() throws IOException {
+        while (size > maxSize && !blobMap.isEmpty()) {
+            Iterator<Map.Entry<String, Blob>> iterator = blobMap.entrySet().iterator();
+            Map.Entry<String, Blob> eldest = iterator.next();
+            iterator.remove();
+
+            String digest = eldest.getKey();
+            Blob blob = eldest.getValue();
+            for (String key : blob.keys) {
+                digestMap.remove(key);
+                writeIndexLine(REMOVE + " " + key);
+            }
+            deleteBlob(digest, blob);
+        }
+    }
+
+    /**
+     * 在后台线程安装，exist()在主线程上调用时用，不让主线程等待安装
+     */
+    private void installDiskCacheInBackground() {
+        if (!backgroundInstallStarted.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache(false);
+            }
+        }, logName + "Installer").start();
+    }
+
+    @Override
+    public boolean exist(String uri) {
+        // 同LruDiskCache，主线程上还没安装好就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
+        if (cacheDir == null) {
+            if (SketchUtils.isMainThread()) {
+                installDiskCacheInBackground();
+                return true;
+            }
+            installDiskCache(false);
+        }
+
+        // digestMap读取时不需要加锁，不等待this锁
+        String key = uriToDiskCacheKey(uri);
+        return key != null && digestMap.containsKey(key);
+    }
+
+    @Override
+    public synchronized Entry get(String uri) {
+        installDiskCache(false);
+
+        String key = uriToDiskCacheKey(uri);
+        String digest = key != null ? digestMap.get(key) : null;
+        if (digest == null || blobMap.get(digest) == null) {
+            return null;
+        }
+
+        File blobFile = getBlobFile(digest);
+        if (!blobFile.exists()) {
+            remove(key);
+            return null;
+        }
+        return new ContentAddressedEntry(this, uri, key, blobFile);
+    }
+
+    @Override
+    public Editor edit(String uri) {
+        installDiskCache(false);
+
+        String key = uriToDiskCacheKey(uri);
+        File tempDir;
+        synchronized (this) {
+            if (key == null || indexWriter == null) {
+                return null;
+            }
+            tempDir = new File(cacheDir, TEMP_DIR_NAME);
+        }
+        if (!tempDir.exists() && !tempDir.mkdirs() && !tempDir.exists()) {
+            return null;
+        }
+        File tempFile = new File(tempDir, SketchUtils.concat(System.nanoTime(), "_", tempFileSequence.incrementAndGet(), ".tmp"));
+        return new ContentAddressedEditor(this, key, tempFile);
+    }
+
+    @Override
+    public File getCacheDir() {
+        installDiskCache(false);
+        return cacheDir;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String uriToDiskCacheKey(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        if (SketchUtils.checkSuffix(uri, ".apk")) {
+            uri += ".icon";
+        }
+        try {
+            return URLEncoder.encode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * 获取因为内容已经存在而省掉的写入次数
+     */
+    public synchronized int getDedupCount() {
+        return dedupCount;
+    }
+
+    @Override
+    public synchronized void clear() {
+        closeIndexWriter();
+        if (cacheDir != null) {
+            try {
+                DiskLruCache.deleteContents(cacheDir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        installDiskCache(true);
+    }
+
+    @Override
+    public synchronized void close() {
+        closeIndexWriter();
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("appVersionCode").append("=").append(appVersionCode)
+                .append(")");
+    }
+
+    private static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int w = 0; w < bytes.length; w++) {
+            chars[w * 2] = HEX_DIGITS[(bytes[w] >> 4) & 0x0f];
+            chars[w * 2 + 1] = HEX_DIGITS[bytes[w] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 写入方没有给出摘要的时候（例如保存处理后的图片）只能把临时文件再读一遍计算摘要
+     */
+    private static byte[] computeDigest(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int readLength;
+            while ((readLength = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, readLength);
+            }
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+        return messageDigest.digest();
+    }
+
+    private static class Blob {
+        private final Set<String> keys = new HashSet<String>(2);
+        private long length;
+
+        Blob(long length) {
+            this.length = length;
+        }
+    }
+
+    public static class ContentAddressedEntry implements Entry {
+        private ContentAddressedDiskCache cache;
+        private String uri;
+        private String key;
+        private File file;
+
+        public ContentAddressedEntry(ContentAddressedDiskCache cache, String uri, String key, File file) {
+            this.cache = cache;
+            this.uri = uri;
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * 只删除当前uri的引用，其它uri还在用的话数据文件会保留
+         */
+        @Override
+        public boolean delete() {
+            cache.remove(key);
+            return true;
+        }
+    }
+
+    public static class ContentAddressedEditor implements DigestEditor, FileEditor {
+        private ContentAddressedDiskCache cache;
+        private String key;
+        private File tempFile;
+        private byte[] digest;
+
+        public ContentAddressedEditor(ContentAddressedDiskCache cache, String key, File tempFile) {
+            this.cache = cache;
+            this.key = key;
+            this.tempFile = tempFile;
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public File getFile() {
+            return tempFile;
+        }
+
+        @Override
+        public String getDigestAlgorithm() {
+            return DIGEST_ALGORITHM;
+        }
+
+        @Override
+        public void setDigest(byte[] digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void commit() throws IOException, DiskLruCache.EditorChangedException {
+            if (!tempFile.exists()) {
+                throw new IOException("temp file not exists: " + tempFile.getPath());
+            }
+            byte[] finalDigest = digest != null ? digest : computeDigest(tempFile);
+            cache.completeEdit(key, tempFile, toHexString(finalDigest));
+        }
+
+        @Override
+        public void abort() {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(Sketch.TAG, SketchUtils.concat("ContentAddressedDiskCache", " - ", "delete temp file failed", " - ", tempFile.getPath()));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import java.util.List;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.util.DiskLruCache;
+
+/**
+ * 综合考虑大小、访问次数以及重新获取成本的磁盘缓存淘汰策略
+ * <br>每次从最久未使用的若干个缓存中挑出保留价值最低的淘汰，保留价值 = (访问次数 + 1) × 重新获取成本 × 新近程度 ÷ 大小，
+ * 这样只看过一次的大图会先于经常用到的头像被淘汰；
+ * <br>重新获取成本是写入时通过{@link DiskCache.CostEditor}给的，随缓存一起保存，没有给的都当作网络图片，成本最高；
+ * APK图标、处理后的图片可以在本地重新生成，写入时会标上较低的成本
+ */
+public class CostAwareEvictionPolicy implements DiskLruCache.EvictionPolicy, Identifier {
+    public static final int DEFAULT_SAMPLE_SIZE = 16;
+    public static final int NETWORK_REFETCH_COST = 4;
+    public static final int LOCAL_REFETCH_COST = 1;
+
+    // 小于这个大小的都按这个大小算，避免很小的文件因为大小差异被过度保护
+    private static final long MIN_SIZE_UNIT = 16 * 1024;
+
+    protected String logName = "CostAwareEvictionPolicy";
+
+    private int sampleSize;
+
+    public CostAwareEvictionPolicy() {
+        this(DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param sampleSize 每次从多少个最久未使用的缓存中挑选，越大越准确，但每次淘汰的开销也越大
+     */
+    public CostAwareEvictionPolicy(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    @Override
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    @Override
+    public int selectVictim(List<DiskLruCache.EvictionCandidate> candidates) {
+        int victimIndex = -1;
+        double minRetentionValue = Double.MAX_VALUE;
+        for (int w = 0, size = candidates.size(); w < size; w++) {
+            double retentionValue = getRetentionValue(candidates.get(w), size);
+            // 相同的时候淘汰更久未使用的
+            if (retentionValue < minRetentionValue) {
+                minRetentionValue = retentionValue;
+                victimIndex = w;
+            }
+        }
+        return victimIndex;
+    }
+
+    /**
+     * 计算保留价值，越低越先被淘汰
+     */
+    protected double getRetentionValue(DiskLruCache.EvictionCandidate candidate, int candidateCount) {
+        double sizeUnits = (double) Math.max(candidate.getSize(), MIN_SIZE_UNIT) / MIN_SIZE_UNIT;
+        double recency = 1 + (double) candidate.getLruRank() / candidateCount;
+        return (candidate.getAccessCount() + 1) * getRefetchCost(candidate) * recency / sizeUnits;
+    }
+
+    /**
+     * 获取重新获取的成本，写入时没有给的按网络图片算
+     */
+    protected int getRefetchCost(DiskLruCache.EvictionCandidate candidate) {
+        return candidate.getRefetchCost() > 0 ? candidate.getRefetchCost() : NETWORK_REFETCH_COST;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("sampleSize").append("=").append(sampleSize)
+                .append(")");
+    }
+}
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Identifier;
@@ -34,7 +35,8 @@ public interface DiskCache extends Identifier {
     int DISK_CACHE_RESERVED_SPACE_SIZE = 200 * 1024 * 1024;
 
     /**
-     * 是否存在
+     * 是否存在，会在主线程上调用，所以只能查内存不能阻塞，
+     * 还没安装好的时候就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
      */
     boolean exist(String uri);
 
@@ -101,4 +103,44 @@ public interface DiskCache extends Identifier {
 
         void abort();
     }
-}
\ No newline at end of file
+
+    /**
+     * 数据可以直接以ByteBuffer形式读取的Entry，例如打包存储在段文件中通过内存映射读取的缓存，
+     * 这样的Entry没有自己的文件，getFile()可能需要先把数据解压成一个单独的文件，应该尽量避免调用
+     */
+    interface BufferEntry extends Entry {
+        /**
+         * 获取数据，返回的ByteBuffer可以随意修改position和limit
+         */
+        ByteBuffer getBuffer() throws IOException;
+    }
+
+    /**
+     * 需要内容摘要的Editor，写入方在写数据的同时按getDigestAlgorithm()计算摘要，在commit()之前通过setDigest()交给它，
+     * 这样提交时就不用再把文件读一遍了
+     */
+    interface DigestEditor extends Editor {
+        String getDigestAlgorithm();
+
+        void setDigest(byte[] digest);
+    }
+
+    /**
+     * 数据写在一个单独文件里的Editor，可以不用newOutputStream()，直接通过getFile()写这个文件（例如按偏移量写入，或者把现成的文件移过来），
+     * 写完之后照常commit()；同时也是DigestEditor的话不用调setDigest()，commit()时会自己算
+     */
+    interface FileEditor extends Editor {
+        /**
+         * 获取newOutputStream()写入的文件，提交时这个文件的内容就是缓存的数据
+         */
+        File getFile() throws IOException;
+    }
+
+    /**
+     * 可以附带重新获取成本的Editor，成本随缓存一起保存，淘汰时交给淘汰策略参考（见{@link CostAwareEvictionPolicy}），
+     * 例如可以在本地重新生成的APK图标、处理后的图片成本就比较低
+     */
+    interface CostEditor extends Editor {
+        void setRefetchCost(int refetchCost);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import java.nio.ByteBuffer;
+
+import me.xiaopan.sketch.Identifier;
+
+/**
+ * 未解码图片数据的内存缓存，主要用于GIF和小图片，再次解码时就不用读磁盘了
+ * <br>key是磁盘缓存的key，磁盘缓存里对应的数据被替换或删除时要调用remove()；
+ * 普通图片的数据存放在堆内，GIF的数据存放在堆外的direct ByteBuffer中
+ */
+public interface EncodedMemoryCache extends Identifier {
+    /**
+     * 判断给定长度的数据是否值得放进来
+     *
+     * @param gif 是否是GIF图片
+     */
+    boolean isCacheable(long dataLength, boolean gif);
+
+    /**
+     * 放进去一份图片数据，放进去之后就不能再修改了
+     */
+    void put(String key, ByteBuffer data);
+
+    /**
+     * 根据给定的key获取图片数据，读取时请使用duplicate()，不要修改它的position
+     */
+    ByteBuffer get(String key);
+
+    /**
+     * 根据给定的key删除图片数据
+     */
+    ByteBuffer remove(String key);
+
+    /**
+     * 获取已用容量
+     */
+    long getSize();
+
+    /**
+     * 获取最大容量
+     */
+    long getMaxSize();
+
+    /**
+     * 设置容量预算比例，取值范围为0到1，实际可用容量为最大容量乘以此比例，超出的部分会被立即释放
+     */
+    void setBudgetRatio(float budgetRatio);
+
+    /**
+     * 获取当前容量预算，即实际可用的容量
+     */
+    long getBudget();
+
+    /**
+     * 清除缓存
+     */
+    void clear();
+
+    /**
+     * 关闭
+     */
+    void close();
+}
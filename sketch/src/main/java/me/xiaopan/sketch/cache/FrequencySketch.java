@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+/**
+ * 基于Count-Min Sketch的访问频率估算器
+ * <br>每个计数器占4位，一个long存16个计数器，每个元素对应4个计数器，估算值取其中最小的；
+ * <br>累计增加次数达到元素容量的10倍时所有计数器减半，这样很久以前的热点会慢慢冷却下来
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param maximumSize 预计的元素数量
+     */
+    public FrequencySketch(int maximumSize) {
+        int tableSize = 1;
+        while (tableSize < Math.max(maximumSize, 16)) {
+            tableSize <<= 1;
+        }
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * Math.max(maximumSize, 16);
+    }
+
+    /**
+     * 获取估算的访问频率，取值范围为0到15
+     */
+    public synchronized int frequency(long hash) {
+        int frequency = MAX_COUNT;
+        for (int w = 0; w < SEEDS.length; w++) {
+            long h = mix(hash + SEEDS[w]);
+            int offset = (int) (h >>> 60) << 2;
+            int count = (int) ((table[(int) h & tableMask] >>> offset) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 增加一次访问
+     */
+    public synchronized void increment(long hash) {
+        boolean added = false;
+        for (int w = 0; w < SEEDS.length; w++) {
+            long h = mix(hash + SEEDS[w]);
+            int index = (int) h & tableMask;
+            int offset = (int) (h >>> 60) << 2;
+            if (((table[index] >>> offset) & 0xF) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    private void reset() {
+        for (int w = 0; w < table.length; w++) {
+            table[w] = (table[w] >>> 1) & RESET_MASK;
+        }
+        size = size >>> 1;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.drawable.RecycleBitmapDrawable;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 基于LRU算法的Bitmap复用池
+ * <br>KITKAT及以上版本按照字节数和Config分组，只要字节数足够就可以通过reconfigure复用；
+ * <br>KITKAT以下版本inBitmap要求尺寸完全一致，所以按照宽、高和Config分组
+ */
+public class LruBitmapPool implements BitmapPool {
+    // KITKAT及以上版本最多允许复用字节数为所需字节数8倍的Bitmap，再大就太浪费了
+    private static final int MAX_SIZE_MULTIPLE = 8;
+
+    protected String logName = "LruBitmapPool";
+
+    private final GroupedLinkedMap<Key, Bitmap> groupedMap = new GroupedLinkedMap<Key, Bitmap>();
+    private final Map<Bitmap.Config, TreeMap<Integer, Integer>> sortedSizes = new HashMap<Bitmap.Config, TreeMap<Integer, Integer>>();
+    private final boolean sizeStrategy = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private Context context;
+    private long maxSize;
+    private long budget;
+    private long size;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    public LruBitmapPool(Context context, long maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.budget = maxSize;
+    }
+
+    public static LruBitmapPool create(Context context) {
+        return new LruBitmapPool(context, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    @Override
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!BitmapPoolUtils.sdkSupportInBitmap() || bitmap == null || bitmap.isRecycled()
+                || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        int bitmapSize = RecycleBitmapDrawable.getByteCount(bitmap);
+        if (bitmapSize <= 0 || bitmapSize > budget) {
+            return false;
+        }
+
+        Key key = keyOf(bitmap);
+        groupedMap.put(key, bitmap);
+        if (sizeStrategy) {
+            incrementSize(key.config, key.size);
+        }
+
+        putCount++;
+        size += bitmapSize;
+
+        if (Sketch.isDebugMode()) {
+            Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "put",
+                    " - ", RecycleBitmapDrawable.getInfo(bitmap, null),
+                    " - ", "poolSize=", Formatter.formatFileSize(context, size)));
+        }
+
+        trimToSize(budget);
+        return true;
+    }
+
+    @Override
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getDirty(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public synchronized Bitmap getDirty(int width, int height, Bitmap.Config config) {
+        if (!BitmapPoolUtils.sdkSupportInBitmap() || width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap bitmap;
+        if (sizeStrategy) {
+            bitmap = getBySize(width, height, config);
+        } else {
+            bitmap = groupedMap.get(new Key(width, height, 0, config));
+        }
+
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        size -= RecycleBitmapDrawable.getByteCount(bitmap);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            bitmap.setHasAlpha(true);
+        }
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap getBySize(int width, int height, Bitmap.Config config) {
+        int needSize = width * height * BitmapPoolUtils.getBytesPerPixel(config);
+
+        TreeMap<Integer, Integer> sizes = sortedSizes.get(config);
+        Integer possibleSize = sizes != null ? sizes.ceilingKey(needSize) : null;
+        if (possibleSize == null || possibleSize > needSize * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+
+        Bitmap bitmap = groupedMap.get(new Key(0, 0, possibleSize, config));
+        if (bitmap != null) {
+            decrementSize(config, possibleSize);
+            try {
+                bitmap.reconfigure(width, height, config);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                bitmap.recycle();
+                size -= possibleSize;
+                return null;
+            }
+        }
+        return bitmap;
+    }
+
+    private Key keyOf(Bitmap bitmap) {
+        if (sizeStrategy) {
+            return new Key(0, 0, RecycleBitmapDrawable.getByteCount(bitmap), bitmap.getConfig());
+        } else {
+            return new Key(bitmap.getWidth(), bitmap.getHeight(), 0, bitmap.getConfig());
+        }
+    }
+
+    private void incrementSize(Bitmap.Config config, int bitmapSize) {
+        TreeMap<Integer, Integer> sizes = sortedSizes.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, Integer>();
+            sortedSizes.put(config, sizes);
+        }
+        Integer current = sizes.get(bitmapSize);
+        sizes.put(bitmapSize, current == null ? 1 : current + 1);
+    }
+
+    private void decrementSize(Bitmap.Config config, int bitmapSize) {
+        TreeMap<Integer, Integer> sizes = sortedSizes.get(config);
+        if (sizes == null) {
+            return;
+        }
+        Integer current = sizes.get(bitmapSize);
+        if (current == null || current <= 1) {
+            sizes.remove(bitmapSize);
+        } else {
+            sizes.put(bitmapSize, current - 1);
+        }
+    }
+
+    /**
+     * 从最久未使用的分组开始回收，直到已用容量不超过给定值
+     */
+    protected synchronized void trimToSize(long targetSize) {
+        while (size > targetSize) {
+            Bitmap removed = groupedMap.removeLast();
+            if (removed == null) {
+                size = 0;
+                break;
+            }
+
+            int removedSize = RecycleBitmapDrawable.getByteCount(removed);
+            if (sizeStrategy) {
+                decrementSize(removed.getConfig(), removedSize);
+            }
+            size -= removedSize;
+            evictionCount++;
+
+            if (Sketch.isDebugMode()) {
+                Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "evicted",
+                        " - ", RecycleBitmapDrawable.getInfo(removed, null)));
+            }
+            removed.recycle();
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized void setBudgetRatio(float budgetRatio) {
+        budgetRatio = Math.max(0f, Math.min(1f, budgetRatio));
+        budget = (long) (maxSize * budgetRatio);
+        trimToSize(budget);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "setBudgetRatio",
+                    " - ", "budgetRatio=", budgetRatio,
+                    " - ", "budget=", Formatter.formatFileSize(context, budget),
+                    " - ", "poolSize=", Formatter.formatFileSize(context, size)));
+        }
+    }
+
+    @Override
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 获取放入次数
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * 获取因容量不足而被回收的次数
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "clear",
+                    " - ", "before clean BitmapPoolSize: ", Formatter.formatFileSize(context, size)));
+        }
+        trimToSize(0);
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public synchronized StringBuilder appendIdentifier(StringBuilder builder) {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("strategy").append("=").append(sizeStrategy ? "size" : "attribute")
+                .append(",")
+                .append("hitRate").append("=").append(hitPercent).append("%")
+                .append(")");
+    }
+
+    private static class Key {
+        private int width;
+        private int height;
+        private int size;
+        private Bitmap.Config config;
+
+        Key(int width, int height, int size, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.size = size;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && size == other.size && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = width;
+            result = 31 * result + height;
+            result = 31 * result + size;
+            result = 31 * result + (config != null ? config.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * 按Key分组的LRU链表，get时将分组移到头部，回收时从尾部分组开始回收
+     */
+    private static class GroupedLinkedMap<K, V> {
+        private final LinkedEntry<K, V> head = new LinkedEntry<K, V>(null);
+        private final Map<K, LinkedEntry<K, V>> keyToEntry = new HashMap<K, LinkedEntry<K, V>>();
+
+        void put(K key, V value) {
+            LinkedEntry<K, V> entry = keyToEntry.get(key);
+            if (entry == null) {
+                entry = new LinkedEntry<K, V>(key);
+                makeTail(entry);
+                keyToEntry.put(key, entry);
+            }
+            entry.values.add(value);
+        }
+
+        V get(K key) {
+            LinkedEntry<K, V> entry = keyToEntry.get(key);
+            if (entry == null) {
+                return null;
+            }
+            makeHead(entry);
+            return entry.removeLast();
+        }
+
+        V removeLast() {
+            LinkedEntry<K, V> last = head.prev;
+            while (last != head) {
+                V removed = last.removeLast();
+                if (removed != null) {
+                    return removed;
+                }
+
+                // 分组已经空了就删掉
+                removeEntry(last);
+                keyToEntry.remove(last.key);
+                last = last.prev;
+            }
+            return null;
+        }
+
+        private void makeHead(LinkedEntry<K, V> entry) {
+            removeEntry(entry);
+            entry.prev = head;
+            entry.next = head.next;
+            updateEntry(entry);
+        }
+
+        private void makeTail(LinkedEntry<K, V> entry) {
+            removeEntry(entry);
+            entry.prev = head.prev;
+            entry.next = head;
+            updateEntry(entry);
+        }
+
+        private static <K, V> void updateEntry(LinkedEntry<K, V> entry) {
+            entry.next.prev = entry;
+            entry.prev.next = entry;
+        }
+
+        private static <K, V> void removeEntry(LinkedEntry<K, V> entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+        }
+    }
+
+    private static class LinkedEntry<K, V> {
+        private final K key;
+        private final ArrayList<V> values = new ArrayList<V>();
+        LinkedEntry<K, V> next;
+        LinkedEntry<K, V> prev;
+
+        LinkedEntry(K key) {
+            this.key = key;
+            this.next = this;
+            this.prev = this;
+        }
+
+        V removeLast() {
+            int valueSize = values.size();
+            return valueSize > 0 ? values.remove(valueSize - 1) : null;
+        }
+    }
+}
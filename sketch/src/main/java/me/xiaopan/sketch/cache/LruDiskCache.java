@@ -28,28 +28,37 @@ import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.feature.DiskMaintenanceScheduler;
 import me.xiaopan.sketch.util.DiskLruCache;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class LruDiskCache implements DiskCache {
+    public static final float DEFAULT_SOFT_OVERSHOOT_RATIO = 0.1f;
+
     protected String logName = "LruDiskCache";
 
     private int maxSize;
     private int appVersionCode;
     private File cacheDir;
     private Context context;
-    private DiskLruCache cache;
+    private volatile DiskLruCache cache;
     private Configuration configuration;
     private Map<String, ReentrantLock> editLockMap;
+    private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+    private DiskLruCache.EvictionPolicy evictionPolicy = new CostAwareEvictionPolicy();
+    private DiskLruCache.MaintenanceScheduler maintenanceScheduler;
+    private float softOvershootRatio = DEFAULT_SOFT_OVERSHOOT_RATIO;
 
     public LruDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
         this.context = context;
         this.maxSize = maxSize;
         this.appVersionCode = appVersionCode;
         this.configuration = configuration;
+        this.maintenanceScheduler = new DiskMaintenanceScheduler(configuration);
     }
 
     /**
@@ -83,7 +92,10 @@ public class LruDiskCache implements DiskCache {
         }
 
         try {
-            cache = DiskLruCache.open(cacheDir, appVersionCode, 1, maxSize);
+            DiskLruCache newCache = DiskLruCache.open(cacheDir, appVersionCode, 1, maxSize);
+            newCache.setEvictionPolicy(evictionPolicy);
+            newCache.setMaintenanceScheduler(maintenanceScheduler, softOvershootRatio);
+            cache = newCache;
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -93,14 +105,38 @@ public class LruDiskCache implements DiskCache {
         }
     }
 
+    /**
+     * 在后台线程安装磁盘缓存，只会启动一次
+     */
+    private void installDiskCacheInBackground() {
+        if (!backgroundInstallStarted.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache(false);
+            }
+        }, logName + "Installer").start();
+    }
+
+    /**
+     * 判断是否存在，只查内存中的key集合，不访问文件系统，也不会等待DiskLruCache的锁
+     * <br>在主线程上调用时如果还没安装好，就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
+     */
     @Override
     public boolean exist(String uri) {
-        // 这里有些特殊，只有当没有尝试安装过的时候才会尝试安装，这是由于目前此方法只在helper中用到，而Helper对性能要求较高
-        if(cacheDir == null){
+        DiskLruCache diskLruCache = cache;
+        if (diskLruCache == null) {
+            if (SketchUtils.isMainThread()) {
+                installDiskCacheInBackground();
+                return true;
+            }
             installDiskCache(false);
+            diskLruCache = cache;
         }
 
-        return cache != null && cache.exist(uriToDiskCacheKey(uri));
+        return diskLruCache != null && diskLruCache.exist(uriToDiskCacheKey(uri));
     }
 
     @Override
@@ -142,6 +178,50 @@ public class LruDiskCache implements DiskCache {
         return cacheDir;
     }
 
+    /**
+     * 获取淘汰策略
+     */
+    @SuppressWarnings("unused")
+    public DiskLruCache.EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * 设置淘汰策略，默认是CostAwareEvictionPolicy，设为null的话按最近最少使用的顺序淘汰
+     */
+    @SuppressWarnings("unused")
+    public synchronized LruDiskCache setEvictionPolicy(DiskLruCache.EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        if (cache != null) {
+            cache.setEvictionPolicy(evictionPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * 获取维护调度器
+     */
+    @SuppressWarnings("unused")
+    public DiskLruCache.MaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+
+    /**
+     * 设置维护调度器，默认是DiskMaintenanceScheduler，在请求执行器空闲的时候淘汰缓存、整理日志，
+     * 设为null的话一超过最大容量就立即在后台淘汰
+     *
+     * @param softOvershootRatio 允许超出最大容量的比例，超出这个比例就不再等待空闲，立即维护
+     */
+    @SuppressWarnings("unused")
+    public synchronized LruDiskCache setMaintenanceScheduler(DiskLruCache.MaintenanceScheduler maintenanceScheduler, float softOvershootRatio) {
+        this.maintenanceScheduler = maintenanceScheduler;
+        this.softOvershootRatio = softOvershootRatio;
+        if (cache != null) {
+            cache.setMaintenanceScheduler(maintenanceScheduler, softOvershootRatio);
+        }
+        return this;
+    }
+
     @Override
     public long getMaxSize() {
         return maxSize;
@@ -220,6 +300,12 @@ public class LruDiskCache implements DiskCache {
                 .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
                 .append(",")
                 .append("appVersionCode").append("=").append(appVersionCode)
+                .append(",")
+                .append("evictionPolicy").append("=").append(evictionPolicy != null ? evictionPolicy.getClass().getSimpleName() : "LRU")
+                .append(",")
+                .append("maintenanceScheduler").append("=").append(maintenanceScheduler != null ? maintenanceScheduler.getClass().getSimpleName() : "immediate")
+                .append(",")
+                .append("softOvershootRatio").append("=").append(softOvershootRatio)
                 .append(")");
     }
 
@@ -259,7 +345,7 @@ public class LruDiskCache implements DiskCache {
         }
     }
 
-    public static class LruDiskCacheEditor implements Editor {
+    public static class LruDiskCacheEditor implements FileEditor, CostEditor {
         private DiskLruCache.Editor diskEditor;
 
         public LruDiskCacheEditor(DiskLruCache.Editor diskEditor) {
@@ -271,6 +357,16 @@ public class LruDiskCache implements DiskCache {
             return diskEditor.newOutputStream(0);
         }
 
+        @Override
+        public File getFile() throws IOException {
+            return diskEditor.getFile(0);
+        }
+
+        @Override
+        public void setRefetchCost(int refetchCost) {
+            diskEditor.setRefetchCost(refetchCost);
+        }
+
         @Override
         public void commit() throws IOException, DiskLruCache.EditorChangedException {
             diskEditor.commit();
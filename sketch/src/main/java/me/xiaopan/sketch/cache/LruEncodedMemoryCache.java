@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.LruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 按LRU淘汰的未解码图片缓存
+ * <br>堆外的direct ByteBuffer被移出缓存后要等GC回收才会真正释放，这期间占用的内存也算在预算里，
+ * 所以未释放的越多，缓存里能放的就越少
+ */
+public class LruEncodedMemoryCache implements EncodedMemoryCache {
+    // 非GIF图片只缓存64K以内的，太大的解码成本主要在解码本身而不在读磁盘
+    private static final int MAX_SMALL_IMAGE_SIZE = 64 * 1024;
+
+    private final LruCache<String, ByteBuffer> bufferLruCache;
+    private final ReferenceQueue<ByteBuffer> releasedQueue = new ReferenceQueue<ByteBuffer>();
+    private final Set<ReleasingReference> releasingReferences = new HashSet<ReleasingReference>();
+    private long releasingSize;
+    protected String logName = "LruEncodedMemoryCache";
+    private Context context;
+    private int maxSize;
+
+    public LruEncodedMemoryCache(Context context, int maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.bufferLruCache = new BufferLruCache(maxSize);
+    }
+
+    public static LruEncodedMemoryCache create(Context context) {
+        long encodedMemoryMaxSize = Runtime.getRuntime().maxMemory() / 32;
+
+        // 不能小于2M
+        encodedMemoryMaxSize = Math.max(encodedMemoryMaxSize, 2 * 1024 * 1024);
+
+        return new LruEncodedMemoryCache(context, (int) encodedMemoryMaxSize);
+    }
+
+    @Override
+    public boolean isCacheable(long dataLength, boolean gif) {
+        if (dataLength <= 0) {
+            return false;
+        }
+        // GIF每帧都要重新读数据，所以只要不超过预算的四分之一就缓存
+        return gif ? dataLength <= getBudget() / 4 : dataLength <= MAX_SMALL_IMAGE_SIZE;
+    }
+
+    @Override
+    public void put(String key, ByteBuffer data) {
+        if (key == null || data == null) {
+            return;
+        }
+        int oldCacheSize = 0;
+        if (Sketch.isDebugMode()) {
+            oldCacheSize = bufferLruCache.size();
+        }
+        bufferLruCache.put(key, data);
+        trimToAvailable();
+        if (Sketch.isDebugMode()) {
+            int newCacheSize = bufferLruCache.size();
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "put",
+                    " - ", "beforeCacheSize=", Formatter.formatFileSize(context, oldCacheSize),
+                    " - ", "dataSize=", Formatter.formatFileSize(context, data.capacity()),
+                    " - ", "afterCacheSize=", Formatter.formatFileSize(context, newCacheSize),
+                    " - ", key));
+        }
+    }
+
+    @Override
+    public ByteBuffer get(String key) {
+        return key != null ? bufferLruCache.get(key) : null;
+    }
+
+    @Override
+    public ByteBuffer remove(String key) {
+        ByteBuffer buffer = bufferLruCache.remove(key);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "remove",
+                    " - ", "EncodedMemoryCacheSize: ", Formatter.formatFileSize(context, bufferLruCache.size())));
+        }
+        return buffer;
+    }
+
+    @Override
+    public long getSize() {
+        return bufferLruCache.size();
+    }
+
+    /**
+     * 获取已经移出缓存但还没被GC回收的堆外内存大小
+     */
+    public synchronized long getReleasingSize() {
+        drainReleasedQueue();
+        return releasingSize;
+    }
+
+    /**
+     * 把还没释放的堆外内存从预算里扣掉，多出来的淘汰掉
+     */
+    private void trimToAvailable() {
+        long available = bufferLruCache.maxSize() - getReleasingSize();
+        if (bufferLruCache.size() > available) {
+            bufferLruCache.trimToSize((int) Math.max(available, 0));
+        }
+    }
+
+    private synchronized void trackReleasing(ByteBuffer buffer) {
+        drainReleasedQueue();
+        ReleasingReference reference = new ReleasingReference(buffer, releasedQueue);
+        releasingReferences.add(reference);
+        releasingSize += reference.size;
+    }
+
+    private void drainReleasedQueue() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = releasedQueue.poll()) != null) {
+            if (releasingReferences.remove(reference)) {
+                releasingSize -= ((ReleasingReference) reference).size;
+            }
+        }
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void setBudgetRatio(float budgetRatio) {
+        budgetRatio = Math.max(0f, Math.min(1f, budgetRatio));
+        int budget = Math.max(1, (int) (maxSize * budgetRatio));
+        bufferLruCache.resize(budget);
+        trimToAvailable();
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "setBudgetRatio",
+                    " - ", "budgetRatio=", budgetRatio,
+                    " - ", "budget=", Formatter.formatFileSize(context, budget),
+                    " - ", "EncodedMemoryCacheSize: ", Formatter.formatFileSize(context, bufferLruCache.size())));
+        }
+    }
+
+    @Override
+    public long getBudget() {
+        return bufferLruCache.maxSize();
+    }
+
+    @Override
+    public void clear() {
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "clear",
+                    " - ", "before clean EncodedMemoryCacheSize: ", Formatter.formatFileSize(context, bufferLruCache.size())));
+        }
+        bufferLruCache.evictAll();
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        int accesses = bufferLruCache.hitCount() + bufferLruCache.missCount();
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, getMaxSize()))
+                .append(",")
+                .append("releasingSize").append("=").append(Formatter.formatFileSize(context, getReleasingSize()))
+                .append(",")
+                .append("hitRate").append("=").append(accesses != 0 ? (100 * bufferLruCache.hitCount() / accesses) : 0).append("%")
+                .append(")");
+    }
+
+    private class BufferLruCache extends LruCache<String, ByteBuffer> {
+
+        public BufferLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        public int sizeOf(String key, ByteBuffer value) {
+            int bufferSize = value.capacity();
+            return bufferSize == 0 ? 1 : bufferSize;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, ByteBuffer oldValue, ByteBuffer newValue) {
+            if (oldValue != null && oldValue.isDirect() && oldValue != newValue) {
+                trackReleasing(oldValue);
+            }
+        }
+    }
+
+    /**
+     * 记录移出缓存的堆外ByteBuffer，被GC回收后会进入releasedQueue
+     */
+    private static class ReleasingReference extends PhantomReference<ByteBuffer> {
+        private final int size;
+
+        ReleasingReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.size = buffer.capacity();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -32,13 +33,16 @@ import me.xiaopan.sketch.util.LruCache;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class LruMemoryCache implements MemoryCache {
-    private final LruCache<String, Drawable> drawableLruCache;
+    private final LruCache<CacheKey, Drawable> drawableLruCache;
+    private final ActiveDrawableCache activeDrawableCache = new ActiveDrawableCache();
     protected String logName = "LruMemoryCache";
     private Context context;
-    private Map<String, ReentrantLock> editLockMap;
+    private int maxSize;
+    private Map<CacheKey, ReentrantLock> editLockMap;
 
     public LruMemoryCache(Context context, int maxSize) {
         this.context = context;
+        this.maxSize = maxSize;
         this.drawableLruCache = new DrawableLruCache(maxSize);
     }
 
@@ -56,7 +60,7 @@ public class LruMemoryCache implements MemoryCache {
     }
 
     @Override
-    public void put(String key, Drawable value) {
+    public void put(CacheKey key, Drawable value) {
         if (!(value instanceof RecycleDrawable)) {
             throw new IllegalArgumentException("drawable must be implemented RecycleDrawableInterface");
         }
@@ -64,6 +68,19 @@ public class LruMemoryCache implements MemoryCache {
         if (Sketch.isDebugMode()) {
             oldCacheSize = drawableLruCache.size();
         }
+        activeDrawableCache.remove(key);
+        if (!admit(key, value)) {
+            // 没有被接纳的图片依然可能正在显示，所以放进活动缓存，显示期间还能命中
+            activeDrawableCache.put(key, value);
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "put",
+                        " - ", "rejected",
+                        " - ", ((RecycleDrawable) value).getInfo(),
+                        " - ", key));
+            }
+            return;
+        }
         drawableLruCache.put(key, value);
         if (Sketch.isDebugMode()) {
             int newCacheSize = drawableLruCache.size();
@@ -76,12 +93,57 @@ public class LruMemoryCache implements MemoryCache {
     }
 
     @Override
-    public Drawable get(String key) {
-        return drawableLruCache.get(key);
+    public Drawable get(CacheKey key) {
+        onAccess(key);
+        Drawable drawable = drawableLruCache.get(key);
+        if (drawable != null) {
+            return drawable;
+        }
+
+        // LRU缓存里没有就再到活动缓存里找找，找到了就放回LRU缓存
+        drawable = activeDrawableCache.get(key);
+        if (drawable != null) {
+            // 先放回LRU缓存增加缓存引用，再检查是否已回收，防止检查之后被回收；用来查找的key可能会被修改，所以要复制一份
+            drawableLruCache.put(new CacheKey(key), drawable);
+            if (((RecycleDrawable) drawable).isRecycled()) {
+                drawableLruCache.remove(key);
+                return null;
+            }
+
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "hit active drawable",
+                        " - ", ((RecycleDrawable) drawable).getInfo(),
+                        " - ", key));
+            }
+        }
+        return drawable;
+    }
+
+    /**
+     * 每次访问时回调，子类可以借此统计访问频率
+     */
+    protected void onAccess(CacheKey key) {
+
+    }
+
+    /**
+     * 是否接纳一张新图片，返回false的话就不放入缓存，默认全部接纳
+     */
+    protected boolean admit(CacheKey key, Drawable value) {
+        return true;
+    }
+
+    /**
+     * 获取要腾出给定大小的空间时会被淘汰的key，按照淘汰的顺序排列
+     */
+    protected List<CacheKey> getEvictionKeys(int size) {
+        return drawableLruCache.eldestKeys(size);
     }
 
     @Override
-    public Drawable remove(String key) {
+    public Drawable remove(CacheKey key) {
+        activeDrawableCache.remove(key);
         Drawable drawable = drawableLruCache.remove(key);
         if (Sketch.isDebugMode()) {
             Log.i(Sketch.TAG, SketchUtils.concat(logName,
@@ -98,6 +160,25 @@ public class LruMemoryCache implements MemoryCache {
 
     @Override
     public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void setBudgetRatio(float budgetRatio) {
+        budgetRatio = Math.max(0f, Math.min(1f, budgetRatio));
+        int budget = Math.max(1, (int) (maxSize * budgetRatio));
+        drawableLruCache.resize(budget);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "setBudgetRatio",
+                    " - ", "budgetRatio=", budgetRatio,
+                    " - ", "budget=", Formatter.formatFileSize(context, budget),
+                    " - ", "MemoryCacheSize: ", Formatter.formatFileSize(context, drawableLruCache.size())));
+        }
+    }
+
+    @Override
+    public long getBudget() {
         return drawableLruCache.maxSize();
     }
 
@@ -109,6 +190,7 @@ public class LruMemoryCache implements MemoryCache {
                     " - ", "before clean MemoryCacheSize: ", Formatter.formatFileSize(context, drawableLruCache.size())));
         }
         drawableLruCache.evictAll();
+        activeDrawableCache.clear();
     }
 
     @Override
@@ -116,6 +198,38 @@ public class LruMemoryCache implements MemoryCache {
         clear();
     }
 
+    /**
+     * 获取LRU缓存的命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getHitCount() {
+        return drawableLruCache.hitCount();
+    }
+
+    /**
+     * 获取LRU缓存的未命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getMissCount() {
+        return drawableLruCache.missCount();
+    }
+
+    /**
+     * 获取活动缓存的命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveHitCount() {
+        return activeDrawableCache.getHitCount();
+    }
+
+    /**
+     * 获取活动缓存的未命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveMissCount() {
+        return activeDrawableCache.getMissCount();
+    }
+
     @Override
     public String getIdentifier() {
         return appendIdentifier(new StringBuilder()).toString();
@@ -126,18 +240,27 @@ public class LruMemoryCache implements MemoryCache {
         return builder.append(logName)
                 .append("(")
                 .append("maxSize").append("=").append(Formatter.formatFileSize(context, getMaxSize()))
+                .append(",")
+                .append("hitRate").append("=").append(hitPercent(drawableLruCache.hitCount(), drawableLruCache.missCount())).append("%")
+                .append(",")
+                .append("activeHitRate").append("=").append(hitPercent(activeDrawableCache.getHitCount(), activeDrawableCache.getMissCount())).append("%")
                 .append(")");
     }
 
+    private static int hitPercent(int hitCount, int missCount) {
+        int accesses = hitCount + missCount;
+        return accesses != 0 ? (100 * hitCount / accesses) : 0;
+    }
+
     @Override
-    public synchronized ReentrantLock getEditLock(String key) {
+    public synchronized ReentrantLock getEditLock(CacheKey key) {
         if (key == null) {
             return null;
         }
         if (editLockMap == null) {
             synchronized (LruMemoryCache.this) {
                 if (editLockMap == null) {
-                    editLockMap = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+                    editLockMap = Collections.synchronizedMap(new WeakHashMap<CacheKey, ReentrantLock>());
                 }
             }
         }
@@ -149,26 +272,30 @@ public class LruMemoryCache implements MemoryCache {
         return lock;
     }
 
-    private class DrawableLruCache extends LruCache<String, Drawable> {
+    private class DrawableLruCache extends LruCache<CacheKey, Drawable> {
 
         public DrawableLruCache(int maxSize) {
             super(maxSize);
         }
 
         @Override
-        public Drawable put(String key, Drawable value) {
+        public Drawable put(CacheKey key, Drawable value) {
             ((RecycleDrawable) value).setIsCached(logName + ":put", true);
             return super.put(key, value);
         }
 
         @Override
-        public int sizeOf(String key, Drawable value) {
+        public int sizeOf(CacheKey key, Drawable value) {
             int bitmapSize = ((RecycleDrawable) value).getByteCount();
             return bitmapSize == 0 ? 1 : bitmapSize;
         }
 
         @Override
-        protected void entryRemoved(boolean evicted, String key, Drawable oldValue, Drawable newValue) {
+        protected void entryRemoved(boolean evicted, CacheKey key, Drawable oldValue, Drawable newValue) {
+            // 因容量不足被挤出去的先放进活动缓存，如果依然在显示或等待显示的话就不会被回收，下次还能命中
+            if (evicted) {
+                activeDrawableCache.put(key, oldValue);
+            }
             ((RecycleDrawable) oldValue).setIsCached(logName + ":entryRemoved", false);
         }
     }
@@ -27,19 +27,19 @@ import me.xiaopan.sketch.Identifier;
  */
 public interface MemoryCache extends Identifier {
     /**
-     * 放进去一张图片
+     * 放进去一张图片，key放进去之后就不能再修改了
      */
-    void put(String key, Drawable value);
+    void put(CacheKey key, Drawable value);
 
     /**
      * 根据给定的key获取图片
      */
-    Drawable get(String key);
+    Drawable get(CacheKey key);
 
     /**
      * 根据给定的key删除图片
      */
-    Drawable remove(String key);
+    Drawable remove(CacheKey key);
 
     /**
      * 获取已用容量
@@ -51,6 +51,16 @@ public interface MemoryCache extends Identifier {
      */
     long getMaxSize();
 
+    /**
+     * 设置容量预算比例，取值范围为0到1，实际可用容量为最大容量乘以此比例，超出的部分会被立即释放
+     */
+    void setBudgetRatio(float budgetRatio);
+
+    /**
+     * 获取当前容量预算，即实际可用的容量
+     */
+    long getBudget();
+
     /**
      * 清除缓存
      */
@@ -64,5 +74,5 @@ public interface MemoryCache extends Identifier {
     /**
      * 获取编辑锁
      */
-    ReentrantLock getEditLock(String key);
+    ReentrantLock getEditLock(CacheKey key);
 }
\ No newline at end of file
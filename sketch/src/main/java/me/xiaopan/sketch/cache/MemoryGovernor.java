@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 内存调控器，根据系统的内存压力调整内存缓存、占位图内存缓存以及Bitmap复用池的容量预算
+ * <br>收到onTrimMemory或onLowMemory时按照级别立即缩减预算，压力过去后再每隔一段时间逐步恢复；
+ * <br>应用进入后台时会降到一个可配置的下限，回到前台后再逐步恢复到最大容量
+ */
+public class MemoryGovernor implements Identifier {
+    // 每次恢复的比例
+    private static final float GROW_STEP = 0.25f;
+    // 最后一次收到内存压力通知后多久开始恢复，以及每次恢复的间隔
+    private static final int GROW_INTERVAL = 10 * 1000;
+
+    protected String logName = "MemoryGovernor";
+
+    private me.xiaopan.sketch.Configuration configuration;
+    private Handler handler;
+    private Runnable growRunnable;
+    private Object callbacks;
+
+    private float budgetRatio = 1f;
+    private float backgroundBudgetRatio = 0.25f;
+    private boolean foreground = true;
+    private int startedActivityCount;
+
+    public MemoryGovernor(me.xiaopan.sketch.Configuration configuration) {
+        this.configuration = configuration;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.growRunnable = new Runnable() {
+            @Override
+            public void run() {
+                grow();
+            }
+        };
+    }
+
+    /**
+     * 注册到系统，开始接收内存压力通知，ICE_CREAM_SANDWICH以下版本不支持
+     */
+    public void register() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH || callbacks != null) {
+            return;
+        }
+        callbacks = SystemCallbacks.register(configuration.getContext(), this);
+    }
+
+    /**
+     * 取消注册
+     */
+    @SuppressWarnings("unused")
+    public void unregister() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH || callbacks == null) {
+            return;
+        }
+        SystemCallbacks.unregister(configuration.getContext(), callbacks);
+        callbacks = null;
+        handler.removeCallbacks(growRunnable);
+    }
+
+    /**
+     * 根据内存压力级别缩减预算，没有注册到系统时也可以手动调用
+     *
+     * @param level ComponentCallbacks2中定义的TRIM_MEMORY_*级别
+     */
+    public void onTrimMemory(int level) {
+        // UI_HIDDEN以及BACKGROUND、MODERATE、COMPLETE都说明已经在后台了，回到前台时才会再逐步恢复
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            foreground = false;
+        }
+
+        float ratio;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            ratio = 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            ratio = backgroundBudgetRatio / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            ratio = backgroundBudgetRatio;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            ratio = 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            ratio = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            ratio = 0.75f;
+        } else {
+            return;
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.w(Sketch.TAG, SketchUtils.concat(logName, " - ", "onTrimMemory", " - ", "level=", level, " - ", "ratio=", ratio));
+        }
+
+        if (ratio < budgetRatio) {
+            applyBudgetRatio(ratio);
+        }
+        scheduleGrow();
+    }
+
+    /**
+     * 内存极低，释放所有的缓存
+     */
+    public void onLowMemory() {
+        if (Sketch.isDebugMode()) {
+            Log.w(Sketch.TAG, SketchUtils.concat(logName, " - ", "onLowMemory"));
+        }
+
+        applyBudgetRatio(0f);
+        scheduleGrow();
+    }
+
+    /**
+     * 应用回到前台
+     */
+    public void onForeground() {
+        foreground = true;
+        scheduleGrow();
+    }
+
+    /**
+     * 应用进入后台，降到后台预算下限
+     */
+    public void onBackground() {
+        foreground = false;
+        if (budgetRatio > backgroundBudgetRatio) {
+            applyBudgetRatio(backgroundBudgetRatio);
+        }
+    }
+
+    private void scheduleGrow() {
+        handler.removeCallbacks(growRunnable);
+        handler.postDelayed(growRunnable, GROW_INTERVAL);
+    }
+
+    private void grow() {
+        float targetRatio = foreground ? 1f : backgroundBudgetRatio;
+        if (budgetRatio >= targetRatio) {
+            return;
+        }
+
+        applyBudgetRatio(Math.min(targetRatio, budgetRatio + GROW_STEP));
+        if (budgetRatio < targetRatio) {
+            handler.postDelayed(growRunnable, GROW_INTERVAL);
+        }
+    }
+
+    private void applyBudgetRatio(float newBudgetRatio) {
+        budgetRatio = newBudgetRatio;
+
+        MemoryCache memoryCache = configuration.getMemoryCache();
+        if (memoryCache != null) {
+            memoryCache.setBudgetRatio(newBudgetRatio);
+        }
+        MemoryCache placeholderImageMemoryCache = configuration.getPlaceholderImageMemoryCache();
+        if (placeholderImageMemoryCache != null) {
+            placeholderImageMemoryCache.setBudgetRatio(newBudgetRatio);
+        }
+        BitmapPool bitmapPool = configuration.getBitmapPool();
+        if (bitmapPool != null) {
+            bitmapPool.setBudgetRatio(newBudgetRatio);
+        }
+        EncodedMemoryCache encodedMemoryCache = configuration.getEncodedMemoryCache();
+        if (encodedMemoryCache != null) {
+            encodedMemoryCache.setBudgetRatio(newBudgetRatio);
+        }
+    }
+
+    /**
+     * 获取当前的预算比例
+     */
+    public float getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * 获取应用在后台时的预算比例下限
+     */
+    public float getBackgroundBudgetRatio() {
+        return backgroundBudgetRatio;
+    }
+
+    /**
+     * 设置应用在后台时的预算比例下限，取值范围为0到1，默认为0.25
+     */
+    @SuppressWarnings("unused")
+    public void setBackgroundBudgetRatio(float backgroundBudgetRatio) {
+        this.backgroundBudgetRatio = Math.max(0f, Math.min(1f, backgroundBudgetRatio));
+        if (!foreground && budgetRatio > this.backgroundBudgetRatio) {
+            applyBudgetRatio(this.backgroundBudgetRatio);
+        }
+    }
+
+    public boolean isForeground() {
+        return foreground;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("budgetRatio").append("=").append(budgetRatio)
+                .append(",")
+                .append("backgroundBudgetRatio").append("=").append(backgroundBudgetRatio)
+                .append(")");
+    }
+
+    /**
+     * 系统回调，单独放在一个类里以免在低版本上加载MemoryGovernor时因为找不到ComponentCallbacks2而崩溃
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class SystemCallbacks implements ComponentCallbacks2, Application.ActivityLifecycleCallbacks {
+        private MemoryGovernor governor;
+
+        private SystemCallbacks(MemoryGovernor governor) {
+            this.governor = governor;
+        }
+
+        static Object register(Context context, MemoryGovernor governor) {
+            SystemCallbacks callbacks = new SystemCallbacks(governor);
+            Context appContext = context.getApplicationContext();
+            appContext.registerComponentCallbacks(callbacks);
+            if (appContext instanceof Application) {
+                ((Application) appContext).registerActivityLifecycleCallbacks(callbacks);
+            }
+            return callbacks;
+        }
+
+        static void unregister(Context context, Object callbacks) {
+            SystemCallbacks systemCallbacks = (SystemCallbacks) callbacks;
+            Context appContext = context.getApplicationContext();
+            appContext.unregisterComponentCallbacks(systemCallbacks);
+            if (appContext instanceof Application) {
+                ((Application) appContext).unregisterActivityLifecycleCallbacks(systemCallbacks);
+            }
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            governor.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            governor.onLowMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            if (governor.startedActivityCount++ == 0) {
+                governor.onForeground();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            if (governor.startedActivityCount > 0 && --governor.startedActivityCount == 0) {
+                governor.onBackground();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+
+        }
+    }
+}
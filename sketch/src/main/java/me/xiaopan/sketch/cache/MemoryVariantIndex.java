@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.xiaopan.sketch.Identifier;
+
+/**
+ * 内存缓存的尺寸索引，记录同一个uri在内存缓存中有哪些尺寸的原样解码结果
+ * <br>请求的key在内存缓存中没有时，可以通过它找到一张更大的同一张图片，缩小后就能直接用，不用再读磁盘和解码了
+ * <br>索引不会跟着内存缓存一起淘汰，找到的key在内存缓存中已经没有了的话调用{@link #remove(CacheKey)}删掉即可
+ */
+public class MemoryVariantIndex implements Identifier {
+    private static final int DEFAULT_MAX_SOURCE_COUNT = 512;
+    private static final int MAX_VARIANT_COUNT = 8;
+
+    protected String logName = "MemoryVariantIndex";
+
+    private final Map<String, List<Variant>> variantsMap;
+    private int hitCount;
+    private int missCount;
+
+    public MemoryVariantIndex() {
+        this(DEFAULT_MAX_SOURCE_COUNT);
+    }
+
+    /**
+     * @param maxSourceCount 最多记录多少个uri，超出后最久未使用的会被删掉
+     */
+    public MemoryVariantIndex(final int maxSourceCount) {
+        this.variantsMap = new LinkedHashMap<String, List<Variant>>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Variant>> eldest) {
+                return size() > maxSourceCount;
+            }
+        };
+    }
+
+    /**
+     * 记录一个已经放入内存缓存的图片，只记录可以缩放的原样解码结果
+     *
+     * @param key    放入内存缓存时用的key，不能再被修改
+     * @param width  图片的宽
+     * @param height 图片的高
+     */
+    public synchronized void put(CacheKey key, int width, int height) {
+        if (key == null || key.isEmpty() || !key.isScalable() || width <= 0 || height <= 0) {
+            return;
+        }
+
+        List<Variant> variants = variantsMap.get(key.getSource());
+        if (variants == null) {
+            variants = new ArrayList<Variant>(2);
+            variantsMap.put(key.getSource(), variants);
+        }
+
+        Iterator<Variant> iterator = variants.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().key.equals(key)) {
+                iterator.remove();
+            }
+        }
+        if (variants.size() >= MAX_VARIANT_COUNT) {
+            variants.remove(0);
+        }
+        variants.add(new Variant(key, width, height));
+    }
+
+    /**
+     * 查找可以缩小成给定key的图片，按照从小到大的顺序返回
+     * <br>要求是同一张图片并且缩小到maxSize以内时不需要放大，没有设置maxSize的请求要的是原图，所以不会找
+     */
+    public synchronized List<CacheKey> find(CacheKey key) {
+        int maxWidth = key.getMaxSizeWidth();
+        int maxHeight = key.getMaxSizeHeight();
+        List<Variant> variants = key.isEmpty() || maxWidth <= 0 || maxHeight <= 0 ? null : variantsMap.get(key.getSource());
+        if (variants == null || variants.isEmpty()) {
+            missCount++;
+            return null;
+        }
+
+        List<Variant> candidates = null;
+        for (Variant variant : variants) {
+            if ((variant.width >= maxWidth || variant.height >= maxHeight) && !variant.key.equals(key) && variant.key.isVariantOf(key)) {
+                if (candidates == null) {
+                    candidates = new ArrayList<Variant>(variants.size());
+                }
+                candidates.add(variant);
+            }
+        }
+        if (candidates == null) {
+            missCount++;
+            return null;
+        }
+
+        Collections.sort(candidates, new Comparator<Variant>() {
+            @Override
+            public int compare(Variant lhs, Variant rhs) {
+                long lhsPixels = (long) lhs.width * lhs.height;
+                long rhsPixels = (long) rhs.width * rhs.height;
+                return lhsPixels < rhsPixels ? -1 : (lhsPixels == rhsPixels ? 0 : 1);
+            }
+        });
+
+        List<CacheKey> keys = new ArrayList<CacheKey>(candidates.size());
+        for (Variant variant : candidates) {
+            keys.add(variant.key);
+        }
+        hitCount++;
+        return keys;
+    }
+
+    /**
+     * 删除一个已经不在内存缓存中的图片
+     */
+    public synchronized void remove(CacheKey key) {
+        List<Variant> variants = key != null ? variantsMap.get(key.getSource()) : null;
+        if (variants == null) {
+            return;
+        }
+
+        Iterator<Variant> iterator = variants.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().key.equals(key)) {
+                iterator.remove();
+            }
+        }
+        if (variants.isEmpty()) {
+            variantsMap.remove(key.getSource());
+        }
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear() {
+        variantsMap.clear();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public synchronized StringBuilder appendIdentifier(StringBuilder builder) {
+        int accesses = hitCount + missCount;
+        return builder.append(logName)
+                .append("(")
+                .append("sourceCount").append("=").append(variantsMap.size())
+                .append(",")
+                .append("hitRate").append("=").append(accesses != 0 ? (100 * hitCount / accesses) : 0).append("%")
+                .append(")");
+    }
+
+    private static class Variant {
+        private final CacheKey key;
+        private final int width;
+        private final int height;
+
+        Variant(CacheKey key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,825 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.feature.DownloadResumer;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 多个进程共用的磁盘缓存
+ * <br>LruDiskCache会给每个进程单独建一个目录，同一张图片在每个进程里都要下载、存储一次；
+ * 这个缓存所有进程用同一个目录，同一台设备上每张图片只存一份
+ * <br>索引是一个只追加的二进制日志，修改日志、删除文件之前都要先拿到index.lock的文件锁；
+ * 数据先写到临时文件里，提交时通过重命名原子地替换，其它进程要么读到旧文件要么读到新文件；
+ * <br>每个进程记住自己读到了日志的哪个位置，发现日志变了就只读新追加的部分；
+ * 日志被其它进程压缩或清空后，代数会变，这时才重新读一遍整个日志
+ * <br>编辑锁只在进程内有效，两个进程同时下载同一张图片的话后提交的覆盖先提交的
+ * <br>通过Configuration.setDiskCache(new MultiProcessDiskCache(context, configuration, appVersionCode, maxSize))启用，
+ * 所有进程都要这样设置
+ */
+public class MultiProcessDiskCache implements DiskCache {
+    public static final String DIR_NAME = "sketch_shared";
+
+    private static final String LOG_FILE = "index.log";
+    private static final String LOG_FILE_TMP = "index.log.tmp";
+    private static final String LOCK_FILE = "index.lock";
+    private static final String FILES_DIR = "files";
+    private static final String TMP_DIR = "tmp";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x534b4d50;
+    private static final int VERSION = 1;
+    // MAGIC、VERSION、appVersionCode、代数
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 8;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MIN_COMPACT_RECORD_COUNT = 2000;
+    // 超过这个时间还没提交的临时文件肯定是崩溃的进程留下的，其它进程正在写的不会这么久
+    private static final long STALE_TMP_FILE_AGE = 60 * 60 * 1000;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected String logName = "MultiProcessDiskCache";
+
+    // 查找用的索引，读取时不需要加锁
+    private final Map<String, Long> indexMap = new ConcurrentHashMap<String, Long>();
+    // 本进程的访问顺序，最久未使用的在最前面，只在持有this锁时修改
+    private final LinkedHashMap<String, Long> accessOrderMap = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+
+    private int maxSize;
+    private int appVersionCode;
+    private Context context;
+    private Configuration configuration;
+    private Map<String, ReentrantLock> editLockMap;
+
+    private volatile File cacheDir;
+    private File filesDir;
+    private File tmpDir;
+    private File logFile;
+    private RandomAccessFile lockFile;
+    private volatile long size;
+    private volatile boolean closed;
+
+    // 以下都只在持有this锁时访问
+    private long generation = -1;
+    private long logPosition;
+    private long logLastModified;
+    private int logRecordCount;
+
+    public MultiProcessDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+    }
+
+    /**
+     * 安装磁盘缓存，当缓存目录不存在的时候会再次安装
+     */
+    private synchronized void installDiskCache(boolean force) {
+        if (closed || (!force && cacheDir != null && cacheDir.exists())) {
+            return;
+        }
+
+        closeLockFile();
+        resetIndex();
+        generation = -1;
+
+        // 所有进程用同一个目录，所以不加进程名字；空间不够时也不能清空，其它进程可能正在用
+        File newCacheDir;
+        try {
+            newCacheDir = SketchUtils.getCacheDir(context, DIR_NAME, false, DISK_CACHE_RESERVED_SPACE_SIZE, false, false, 10);
+        } catch (SketchUtils.NoSpaceException e) {
+            e.printStackTrace();
+            cacheDir = e.dir;
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+            return;
+        }
+
+        filesDir = new File(newCacheDir, FILES_DIR);
+        tmpDir = new File(newCacheDir, TMP_DIR);
+        logFile = new File(newCacheDir, LOG_FILE);
+        if ((!filesDir.exists() && !filesDir.mkdirs()) || (!tmpDir.exists() && !tmpDir.mkdirs())) {
+            cacheDir = newCacheDir;
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(new IOException("create dir failed"), newCacheDir);
+            }
+            return;
+        }
+
+        try {
+            lockFile = new RandomAccessFile(new File(newCacheDir, LOCK_FILE), "rw");
+        } catch (IOException e) {
+            e.printStackTrace();
+            lockFile = null;
+        }
+        cacheDir = newCacheDir;
+
+        long startTime = System.currentTimeMillis();
+        FileLock lock = lockIndex();
+        try {
+            syncIndex();
+            cleanStaleTmpFiles();
+            trimToSize();
+        } finally {
+            unlockIndex(lock);
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "install",
+                    " - ", "entryCount=", indexMap.size(),
+                    " - ", "size=", Formatter.formatFileSize(context, size),
+                    " - ", "useTime=", System.currentTimeMillis() - startTime, "ms"));
+        }
+    }
+
+    /**
+     * 目录还在就不用加锁
+     */
+    private void ensureInstalled() {
+        File dir = cacheDir;
+        if (dir == null || !dir.exists()) {
+            installDiskCache(false);
+        }
+    }
+
+    /**
+     * 获取跨进程的文件锁，必须在持有this锁时调用，因为同一个进程里重复获取文件锁会抛异常
+     *
+     * @return null：文件系统不支持文件锁，这时退化成只在进程内同步
+     */
+    private FileLock lockIndex() {
+        if (lockFile == null) {
+            return null;
+        }
+        try {
+            return lockFile.getChannel().lock();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (OverlappingFileLockException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void unlockIndex(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeLockFile() {
+        if (lockFile != null) {
+            SketchUtils.close(lockFile);
+            lockFile = null;
+        }
+    }
+
+    private void resetIndex() {
+        indexMap.clear();
+        accessOrderMap.clear();
+        size = 0;
+        logPosition = HEADER_LENGTH;
+        logLastModified = 0;
+        logRecordCount = 0;
+    }
+
+    private void putIndex(String key, long length) {
+        Long oldLength = indexMap.put(key, length);
+        accessOrderMap.put(key, length);
+        size += length - (oldLength != null ? oldLength : 0);
+    }
+
+    private Long removeIndex(String key) {
+        Long oldLength = indexMap.remove(key);
+        accessOrderMap.remove(key);
+        if (oldLength != null) {
+            size -= oldLength;
+        }
+        return oldLength;
+    }
+
+    /**
+     * 持有文件锁时调用，读取其它进程的修改，日志不存在或已损坏就清空缓存重新开始
+     */
+    private void syncIndex() {
+        if (!refresh()) {
+            SketchUtils.cleanDir(filesDir);
+            resetIndex();
+            rewriteLog(false);
+        }
+    }
+
+    /**
+     * 不持有文件锁时调用，只有日志变了才去读，所以可以在每次没找到的时候调用
+     */
+    private synchronized void refreshIfChanged() {
+        if (closed || logFile == null) {
+            return;
+        }
+        if (logFile.length() != logPosition || logFile.lastModified() != logLastModified) {
+            refresh();
+        }
+    }
+
+    /**
+     * 读取日志里新追加的记录，日志的代数变了就从头读
+     *
+     * @return false：日志不存在、已损坏或者版本不一致
+     */
+    private boolean refresh() {
+        if (!logFile.exists()) {
+            return false;
+        }
+
+        long lastModified = logFile.lastModified();
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 16 * 1024));
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION || inputStream.readInt() != appVersionCode) {
+                return false;
+            }
+
+            long logGeneration = inputStream.readLong();
+            if (logGeneration != generation || !skipFully(inputStream, logPosition - HEADER_LENGTH)) {
+                // 其它进程压缩或清空了日志，之前读到的都不算数了
+                resetIndex();
+                generation = logGeneration;
+                SketchUtils.close(inputStream);
+                inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 16 * 1024));
+                if (!skipFully(inputStream, HEADER_LENGTH)) {
+                    return false;
+                }
+            }
+
+            int oldRecordCount = logRecordCount;
+            readRecords(inputStream);
+            logLastModified = lastModified;
+
+            if (Sketch.isDebugMode() && logRecordCount - oldRecordCount > 0) {
+                Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "refresh",
+                        " - ", "newRecordCount=", logRecordCount - oldRecordCount,
+                        " - ", "entryCount=", indexMap.size()));
+            }
+            return true;
+        } catch (EOFException e) {
+            // 文件头都不完整
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    private static boolean skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                // skip()返回0不一定是到了结尾，读一个字节确认一下
+                if (inputStream.read() == -1) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+
+    /**
+     * 读取记录直到结尾，最后一条可能正在被其它进程写，只读了一半的不算，下次从它开始读
+     */
+    private void readRecords(DataInputStream inputStream) throws IOException {
+        try {
+            while (true) {
+                byte op = inputStream.readByte();
+                int keyLength = inputStream.readUnsignedShort();
+                byte[] keyBytes = new byte[keyLength];
+                inputStream.readFully(keyBytes);
+                String key = new String(keyBytes, "UTF-8");
+
+                long recordLength = 1 + 2 + keyLength;
+                if (op == OP_PUT) {
+                    long length = inputStream.readLong();
+                    recordLength += 8;
+                    putIndex(key, length);
+                } else if (op == OP_REMOVE) {
+                    removeIndex(key);
+                } else {
+                    // 不认识的记录，后面的都不可信，下次有进程写日志时会被截掉
+                    break;
+                }
+                logPosition += recordLength;
+                logRecordCount++;
+            }
+        } catch (EOFException e) {
+            // 读到结尾了
+        }
+    }
+
+    /**
+     * 持有文件锁并且刚刚调用过syncIndex()时调用，打开日志准备追加
+     */
+    private RandomAccessFile openLogForAppend() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(logFile, "rw");
+        if (randomAccessFile.length() != logPosition) {
+            // 有进程写到一半崩溃了，截掉半条记录，不然后面追加的都读不出来
+            randomAccessFile.setLength(logPosition);
+        }
+        randomAccessFile.seek(logPosition);
+        return randomAccessFile;
+    }
+
+    private void appendRecord(RandomAccessFile randomAccessFile, byte op, String key, long length) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(1 + 2 + keyBytes.length + 8);
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        outputStream.writeByte(op);
+        outputStream.writeShort(keyBytes.length);
+        outputStream.write(keyBytes);
+        if (op == OP_PUT) {
+            outputStream.writeLong(length);
+        }
+        outputStream.flush();
+
+        // 一次写完整条记录，其它进程最多读到半条，不会读到错位的数据
+        byte[] record = byteArrayOutputStream.toByteArray();
+        randomAccessFile.write(record);
+        logPosition += record.length;
+        logRecordCount++;
+    }
+
+    private void closeLog(RandomAccessFile randomAccessFile) {
+        if (randomAccessFile != null) {
+            SketchUtils.close(randomAccessFile);
+            logLastModified = logFile.lastModified();
+        }
+    }
+
+    /**
+     * 持有文件锁时调用，把当前索引重新写成一个新的日志，代数加一，其它进程发现代数变了会重新读取
+     *
+     * @param keepEntries false：写一个空的日志
+     */
+    private void rewriteLog(boolean keepEntries) {
+        File tempFile = new File(cacheDir, LOG_FILE_TMP);
+        long newGeneration = Math.max(generation + 1, System.currentTimeMillis());
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 16 * 1024));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(appVersionCode);
+            outputStream.writeLong(newGeneration);
+            int recordCount = 0;
+            if (keepEntries) {
+                for (Map.Entry<String, Long> entry : accessOrderMap.entrySet()) {
+                    byte[] keyBytes = entry.getKey().getBytes("UTF-8");
+                    outputStream.writeByte(OP_PUT);
+                    outputStream.writeShort(keyBytes.length);
+                    outputStream.write(keyBytes);
+                    outputStream.writeLong(entry.getValue());
+                    recordCount++;
+                }
+            }
+            outputStream.close();
+            outputStream = null;
+
+            // 直接重命名覆盖，其它进程不会看到日志不存在的中间状态
+            if (!tempFile.renameTo(logFile)) {
+                SketchUtils.deleteFile(tempFile);
+                return;
+            }
+
+            generation = newGeneration;
+            logPosition = logFile.length();
+            logLastModified = logFile.lastModified();
+            logRecordCount = recordCount;
+        } catch (IOException e) {
+            e.printStackTrace();
+            SketchUtils.deleteFile(tempFile);
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+    }
+
+    /**
+     * 持有文件锁时调用，记录太多的时候压缩日志
+     */
+    private void compactLogIfNeeded() {
+        if (logRecordCount >= Math.max(MIN_COMPACT_RECORD_COUNT, indexMap.size() * 2)) {
+            rewriteLog(true);
+        }
+    }
+
+    /**
+     * 持有文件锁时调用，淘汰本进程最久未使用的文件直到不超过最大容量
+     */
+    private void trimToSize() {
+        if (size <= maxSize) {
+            return;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = openLogForAppend();
+            Iterator<Map.Entry<String, Long>> iterator = accessOrderMap.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                String key = eldest.getKey();
+                SketchUtils.deleteFile(new File(filesDir, key));
+                appendRecord(randomAccessFile, OP_REMOVE, key, 0);
+                iterator.remove();
+                indexMap.remove(key);
+                size -= eldest.getValue();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeLog(randomAccessFile);
+        }
+    }
+
+    /**
+     * 删除崩溃的进程留下的临时文件
+     */
+    private void cleanStaleTmpFiles() {
+        File[] files = tmpDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_TMP_FILE_AGE) {
+                SketchUtils.deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * 提交一个已经写好的临时文件
+     */
+    private synchronized boolean commit(String key, File tempFile) {
+        if (closed || cacheDir == null || !tempFile.exists()) {
+            SketchUtils.deleteFile(tempFile);
+            return false;
+        }
+
+        FileLock lock = lockIndex();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            syncIndex();
+
+            File file = new File(filesDir, key);
+            if (!tempFile.renameTo(file)) {
+                SketchUtils.deleteFile(tempFile);
+                return false;
+            }
+
+            long length = file.length();
+            randomAccessFile = openLogForAppend();
+            appendRecord(randomAccessFile, OP_PUT, key, length);
+            putIndex(key, length);
+            closeLog(randomAccessFile);
+            randomAccessFile = null;
+
+            trimToSize();
+            compactLogIfNeeded();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeLog(randomAccessFile);
+            unlockIndex(lock);
+        }
+    }
+
+    private synchronized boolean remove(String key) {
+        if (closed || cacheDir == null) {
+            return false;
+        }
+
+        File file = new File(filesDir, key);
+        FileLock lock = lockIndex();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            syncIndex();
+
+            boolean deleted = !file.exists() || file.delete();
+            if (deleted && removeIndex(key) != null) {
+                randomAccessFile = openLogForAppend();
+                appendRecord(randomAccessFile, OP_REMOVE, key, 0);
+            }
+            return deleted;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeLog(randomAccessFile);
+            unlockIndex(lock);
+        }
+    }
+
+    /**
+     * 在后台线程安装，exist()在主线程上调用时用，不让主线程等待安装
+     */
+    private void installDiskCacheInBackground() {
+        if (!backgroundInstallStarted.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache(false);
+            }
+        }, logName + "Installer").start();
+    }
+
+    @Override
+    public boolean exist(String uri) {
+        // 同LruDiskCache，主线程上还没安装好就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
+        if (cacheDir == null) {
+            if (SketchUtils.isMainThread()) {
+                installDiskCacheInBackground();
+                return true;
+            }
+            installDiskCache(false);
+        }
+
+        // 只查内存，其它进程刚提交的要等get()的时候才能发现
+        String key = uriToDiskCacheKey(uri);
+        return key != null && indexMap.containsKey(key);
+    }
+
+    @Override
+    public Entry get(String uri) {
+        ensureInstalled();
+
+        String key = uriToDiskCacheKey(uri);
+        if (key == null || filesDir == null) {
+            return null;
+        }
+
+        if (!indexMap.containsKey(key)) {
+            // 可能是其它进程刚下载的
+            refreshIfChanged();
+            if (!indexMap.containsKey(key)) {
+                return null;
+            }
+        }
+
+        File file = new File(filesDir, key);
+        if (!file.exists()) {
+            // 被其它进程淘汰了，或者被手动删了
+            remove(key);
+            return null;
+        }
+
+        synchronized (this) {
+            accessOrderMap.get(key);
+        }
+        return new MultiProcessDiskCacheEntry(this, uri, key, file);
+    }
+
+    @Override
+    public Editor edit(String uri) {
+        ensureInstalled();
+
+        String key = uriToDiskCacheKey(uri);
+        if (key == null || tmpDir == null) {
+            return null;
+        }
+        // 临时文件名里带上进程号，避免和其它进程的冲突
+        File tempFile = new File(tmpDir, SketchUtils.concat(key, ".", android.os.Process.myPid(), ".", System.nanoTime(), TMP_FILE_SUFFIX));
+        return new MultiProcessDiskCacheEditor(this, key, tempFile);
+    }
+
+    @Override
+    public File getCacheDir() {
+        ensureInstalled();
+        return cacheDir;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 生成固定长度的key，是uri的MD5值的十六进制形式
+     */
+    @Override
+    public String uriToDiskCacheKey(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        if (SketchUtils.checkSuffix(uri, ".apk")) {
+            uri += ".icon";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(uri.getBytes("UTF-8"));
+            char[] chars = new char[digest.length * 2];
+            for (int w = 0; w < digest.length; w++) {
+                chars[w * 2] = HEX_DIGITS[(digest[w] >> 4) & 0x0f];
+                chars[w * 2 + 1] = HEX_DIGITS[digest[w] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 清除缓存，所有进程的都会被清除
+     */
+    @Override
+    public synchronized void clear() {
+        if (closed || cacheDir == null || filesDir == null) {
+            return;
+        }
+
+        FileLock lock = lockIndex();
+        try {
+            SketchUtils.cleanDir(filesDir);
+            SketchUtils.deleteFile(new File(cacheDir, DownloadResumer.PARTIAL_DIR_NAME));
+            resetIndex();
+            rewriteLog(false);
+        } finally {
+            unlockIndex(lock);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeLockFile();
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("appVersionCode").append("=").append(appVersionCode)
+                .append(")");
+    }
+
+    public static class MultiProcessDiskCacheEntry implements Entry {
+        private MultiProcessDiskCache diskCache;
+        private String uri;
+        private String key;
+        private File file;
+
+        public MultiProcessDiskCacheEntry(MultiProcessDiskCache diskCache, String uri, String key, File file) {
+            this.diskCache = diskCache;
+            this.uri = uri;
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public boolean delete() {
+            return diskCache.remove(key);
+        }
+    }
+
+    public static class MultiProcessDiskCacheEditor implements FileEditor {
+        private MultiProcessDiskCache diskCache;
+        private String key;
+        private File tempFile;
+
+        public MultiProcessDiskCacheEditor(MultiProcessDiskCache diskCache, String key, File tempFile) {
+            this.diskCache = diskCache;
+            this.key = key;
+            this.tempFile = tempFile;
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public File getFile() {
+            return tempFile;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (!diskCache.commit(key, tempFile)) {
+                throw new IOException("commit failed: " + key);
+            }
+        }
+
+        @Override
+        public void abort() {
+            SketchUtils.deleteFile(tempFile);
+        }
+    }
+}
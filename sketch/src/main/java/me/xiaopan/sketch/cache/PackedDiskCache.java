@@ -0,0 +1,1274 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.ByteBufferInputStream;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 打包存储小文件的磁盘缓存，专门针对大量几十K的缩略图
+ * <br>不超过阈值（默认64K）的缓存依次追加到几个大的段文件中，用一份二进制索引记录它们所在的段和偏移，
+ * 读取时通过内存映射直接拿到ByteBuffer交给解码器，不用为每个缓存都打开、关闭一个文件；
+ * 超过阈值的缓存还是单独存一个文件
+ * <br>淘汰只是把段中的数据标记为无效，后台线程会把无效数据过半的段中还有效的数据复制到一个新段，然后删掉整个旧段；
+ * 复制时不持有锁，只在最后更新索引时短暂加锁；还没压缩掉的无效数据也占着磁盘，所以也算在maxSize里
+ * <br>当前段创建时就按段的大小分配好并整个映射一次，读取时直接复用这个映射；数据写入段文件后先force()到磁盘再写索引，
+ * 这样崩溃之后索引里的记录指向的数据一定是完整的
+ * <br>通过Configuration.setDiskCache(new PackedDiskCache(context, configuration, appVersionCode, maxSize))启用
+ */
+public class PackedDiskCache implements DiskCache {
+    public static final String DIR_NAME = "sketch_packed";
+    public static final int DEFAULT_MAX_PACKED_SIZE = 64 * 1024;
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_FILE_TMP = "index.tmp";
+    private static final String SEGMENT_DIR_NAME = "segments";
+    private static final String SEGMENT_FILE_SUFFIX = ".pack";
+    private static final String FILE_DIR_NAME = "files";
+    private static final String EXTRACTED_DIR_NAME = "extracted";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x534b5044;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT_PACKED = 1;
+    private static final byte OP_PUT_FILE = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final int MIN_REBUILD_OP_COUNT = 2000;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected String logName = "PackedDiskCache";
+
+    // 最久未使用的在最前面
+    private final LinkedHashMap<String, Record> recordMap = new LinkedHashMap<String, Record>(0, 0.75f, true);
+    // recordMap的key，给exist()用，读取时不需要加锁，只在持有this锁时修改
+    private final Map<String, Boolean> keyMap = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+    private final Map<Integer, Segment> segmentMap = new HashMap<Integer, Segment>();
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                cleanup();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private int maxSize;
+    private int maxPackedSize;
+    private int segmentSize;
+    private int appVersionCode;
+    private volatile File cacheDir;
+    private Context context;
+    private Configuration configuration;
+    private Map<String, ReentrantLock> editLockMap;
+
+    private DataOutputStream indexWriter;
+    private int indexOpCount;
+    private Segment activeSegment;
+    private RandomAccessFile activeSegmentFile;
+    private long size;
+
+    public PackedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        this(context, configuration, appVersionCode, maxSize, DEFAULT_MAX_PACKED_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxPackedSize 不超过此大小的缓存才会打包存储
+     * @param segmentSize   单个段文件的大小上限
+     */
+    public PackedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize, int maxPackedSize, int segmentSize) {
+        if (maxPackedSize <= 0 || segmentSize < maxPackedSize) {
+            throw new IllegalArgumentException("maxPackedSize must be positive and not greater than segmentSize");
+        }
+        this.context = context;
+        this.maxSize = maxSize;
+        this.maxPackedSize = maxPackedSize;
+        this.segmentSize = segmentSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+    }
+
+    /**
+     * 安装磁盘缓存，当缓存目录不存在的时候会再次安装
+     */
+    private synchronized void installDiskCache(boolean force) {
+        // 好好的就不安装了
+        if (!force && indexWriter != null && cacheDir != null && cacheDir.exists()) {
+            return;
+        }
+
+        closeFiles();
+        resetState();
+
+        // 根目录下没有DiskLruCache的日志文件，所以不能让getCacheDir把它当做旧的缓存目录清理掉
+        try {
+            cacheDir = SketchUtils.getCacheDir(context, DIR_NAME, true, DISK_CACHE_RESERVED_SPACE_SIZE, true, false, 10);
+        } catch (SketchUtils.NoSpaceException e) {
+            e.printStackTrace();
+            cacheDir = e.dir;
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+            return;
+        }
+
+        try {
+            boolean rebuildRequired;
+            try {
+                rebuildRequired = readIndex();
+            } catch (IOException e) {
+                // 索引损坏了，数据也就对不上号了，全部清掉重新来
+                e.printStackTrace();
+                resetState();
+                DiskLruCache.deleteContents(cacheDir);
+                rebuildRequired = true;
+            }
+
+            DiskLruCache.deleteContents(new File(cacheDir, EXTRACTED_DIR_NAME));
+            deleteUnusedFiles();
+
+            if (rebuildRequired || indexRebuildRequired()) {
+                rebuildIndex();
+            } else {
+                indexWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(cacheDir, INDEX_FILE), true), 8 * 1024));
+            }
+            submitCleanup();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeFiles();
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+        }
+    }
+
+    private void resetState() {
+        recordMap.clear();
+        keyMap.clear();
+        segmentMap.clear();
+        activeSegment = null;
+        indexOpCount = 0;
+        size = 0;
+    }
+
+    /**
+     * 读取索引，数据已经不存在的记录直接忽略
+     *
+     * @return 索引是否需要重写，例如最后一条记录因为崩溃只写了一半
+     */
+    private boolean readIndex() throws IOException {
+        File indexFile = new File(cacheDir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return true;
+        }
+
+        LinkedHashMap<String, Record> replayMap = new LinkedHashMap<String, Record>();
+        boolean truncated = false;
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 8 * 1024));
+        try {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION || inputStream.readInt() != appVersionCode) {
+                throw new IOException("unexpected index header");
+            }
+
+            while (true) {
+                int op = inputStream.read();
+                if (op == -1) {
+                    break;
+                }
+                try {
+                    String key = inputStream.readUTF();
+                    if (op == OP_PUT_PACKED) {
+                        int segmentId = inputStream.readInt();
+                        int offset = inputStream.readInt();
+                        int length = inputStream.readInt();
+                        replayMap.remove(key);
+                        replayMap.put(key, new Record(segmentId, offset, length));
+                    } else if (op == OP_PUT_FILE) {
+                        int length = inputStream.readInt();
+                        replayMap.remove(key);
+                        replayMap.put(key, new Record(-1, 0, length));
+                    } else if (op == OP_REMOVE) {
+                        replayMap.remove(key);
+                    } else {
+                        truncated = true;
+                        break;
+                    }
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+                indexOpCount++;
+            }
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+
+        for (Map.Entry<String, Record> entry : replayMap.entrySet()) {
+            String key = entry.getKey();
+            Record record = entry.getValue();
+            if (record.isPacked()) {
+                Segment segment = segmentMap.get(record.segmentId);
+                if (segment == null) {
+                    File segmentFile = getSegmentFile(record.segmentId);
+                    if (!segmentFile.exists()) {
+                        continue;
+                    }
+                    segment = new Segment(record.segmentId, segmentFile.length());
+                    segmentMap.put(record.segmentId, segment);
+                    size += segment.length;
+                }
+                if ((long) record.offset + record.length > segment.length) {
+                    continue;
+                }
+                segment.keys.add(key);
+                segment.liveBytes += record.length;
+            } else if (!getEntryFile(key).exists()) {
+                continue;
+            } else {
+                size += record.length;
+            }
+            recordMap.put(key, record);
+            keyMap.put(key, Boolean.TRUE);
+        }
+        return truncated;
+    }
+
+    /**
+     * 删除没有被索引引用的段文件、单独的文件以及没提交的临时文件
+     */
+    private void deleteUnusedFiles() {
+        File[] segmentFiles = new File(cacheDir, SEGMENT_DIR_NAME).listFiles();
+        if (segmentFiles != null) {
+            for (File file : segmentFiles) {
+                String name = file.getName();
+                int segmentId = -1;
+                if (name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    try {
+                        segmentId = Integer.parseInt(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+                    } catch (NumberFormatException e) {
+                        segmentId = -1;
+                    }
+                }
+                if (segmentId < 0 || !segmentMap.containsKey(segmentId)) {
+                    deleteFile(file);
+                }
+            }
+        }
+
+        Set<String> fileNames = new HashSet<String>();
+        for (Map.Entry<String, Record> entry : recordMap.entrySet()) {
+            if (!entry.getValue().isPacked()) {
+                fileNames.add(getEntryFile(entry.getKey()).getName());
+            }
+        }
+        File[] entryFiles = new File(cacheDir, FILE_DIR_NAME).listFiles();
+        if (entryFiles != null) {
+            for (File file : entryFiles) {
+                if (!fileNames.contains(file.getName())) {
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        closeIndexWriter();
+
+        File indexFileTmp = new File(cacheDir, INDEX_FILE_TMP);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileTmp), 8 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(appVersionCode);
+            for (Map.Entry<String, Record> entry : recordMap.entrySet()) {
+                writeRecord(outputStream, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+
+        File indexFile = new File(cacheDir, INDEX_FILE);
+        if (!indexFileTmp.renameTo(indexFile)) {
+            // 有些系统上目标文件存在时不能重命名
+            if (!indexFile.delete() || !indexFileTmp.renameTo(indexFile)) {
+                throw new IOException("rename index file failed: " + indexFileTmp.getPath());
+            }
+        }
+
+        indexOpCount = recordMap.size();
+        indexWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true), 8 * 1024));
+    }
+
+    private boolean indexRebuildRequired() {
+        int redundantOpCount = indexOpCount - recordMap.size();
+        return redundantOpCount >= MIN_REBUILD_OP_COUNT && redundantOpCount >= recordMap.size();
+    }
+
+    private static void writeRecord(DataOutputStream outputStream, String key, Record record) throws IOException {
+        if (record.isPacked()) {
+            outputStream.writeByte(OP_PUT_PACKED);
+            outputStream.writeUTF(key);
+            outputStream.writeInt(record.segmentId);
+            outputStream.writeInt(record.offset);
+            outputStream.writeInt(record.length);
+        } else {
+            outputStream.writeByte(OP_PUT_FILE);
+            outputStream.writeUTF(key);
+            outputStream.writeInt(record.length);
+        }
+    }
+
+    private void appendPut(String key, Record record) throws IOException {
+        if (indexWriter == null) {
+            throw new IOException("cache is closed");
+        }
+        writeRecord(indexWriter, key, record);
+        indexWriter.flush();
+        indexOpCount++;
+    }
+
+    private void appendRemove(String key) throws IOException {
+        if (indexWriter == null) {
+            throw new IOException("cache is closed");
+        }
+        indexWriter.writeByte(OP_REMOVE);
+        indexWriter.writeUTF(key);
+        indexWriter.flush();
+        indexOpCount++;
+    }
+
+    private void closeIndexWriter() {
+        if (indexWriter != null) {
+            SketchUtils.close(indexWriter);
+            indexWriter = null;
+        }
+    }
+
+    private void closeFiles() {
+        closeIndexWriter();
+        closeActiveSegment();
+    }
+
+    /**
+     * 关闭当前段，段文件是预先按段的大小分配的，把没用到的部分截掉
+     */
+    private void closeActiveSegment() {
+        if (activeSegmentFile != null) {
+            if (activeSegment != null) {
+                try {
+                    activeSegmentFile.setLength(activeSegment.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            SketchUtils.close(activeSegmentFile);
+            activeSegmentFile = null;
+        }
+        activeSegment = null;
+    }
+
+    private int nextSegmentId() {
+        int segmentId = 0;
+        for (Integer id : segmentMap.keySet()) {
+            segmentId = Math.max(segmentId, id + 1);
+        }
+        return segmentId;
+    }
+
+    private File getSegmentFile(int segmentId) {
+        return new File(new File(cacheDir, SEGMENT_DIR_NAME), segmentId + SEGMENT_FILE_SUFFIX);
+    }
+
+    private File getEntryFile(String key) {
+        return new File(new File(cacheDir, FILE_DIR_NAME), hashKey(key));
+    }
+
+    private File getExtractedFile(String key) {
+        return new File(new File(cacheDir, EXTRACTED_DIR_NAME), hashKey(key));
+    }
+
+    /**
+     * 把数据追加到当前段的末尾并force()到磁盘，当前段放不下了就新开一个段
+     */
+    private Record appendToSegment(byte[] data, int length) throws IOException {
+        if (activeSegment == null || activeSegment.length + length > segmentSize) {
+            closeActiveSegment();
+
+            int segmentId = nextSegmentId();
+            File segmentFile = getSegmentFile(segmentId);
+            File parentDir = segmentFile.getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) {
+                throw new IOException("failed to create directory: " + parentDir);
+            }
+            RandomAccessFile segmentRandomAccessFile = new RandomAccessFile(segmentFile, "rw");
+            Segment segment = new Segment(segmentId, 0);
+            try {
+                // 预先分配好整个段，只映射一次，之后的读取都复用这个映射
+                segmentRandomAccessFile.setLength(segmentSize);
+                segment.mappedBuffer = segmentRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+            } catch (IOException e) {
+                SketchUtils.close(segmentRandomAccessFile);
+                deleteFile(segmentFile);
+                throw e;
+            }
+            activeSegmentFile = segmentRandomAccessFile;
+            activeSegment = segment;
+            segmentMap.put(segmentId, activeSegment);
+        }
+
+        int offset = (int) activeSegment.length;
+        activeSegmentFile.seek(offset);
+        activeSegmentFile.write(data, 0, length);
+        // 数据确实落盘了才能写索引，否则崩溃后索引可能指向不完整的数据
+        activeSegmentFile.getChannel().force(false);
+        activeSegment.length += length;
+        size += length;
+        return new Record(activeSegment.id, offset, length);
+    }
+
+    /**
+     * 映射一条打包存储的记录，每个段只映射一次，之后复用
+     */
+    private ByteBuffer mapRecord(Record record) throws IOException {
+        Segment segment = segmentMap.get(record.segmentId);
+        if (segment == null) {
+            throw new IOException("segment not exists: " + record.segmentId);
+        }
+
+        if (segment.mappedBuffer == null) {
+            RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment.id), "r");
+            try {
+                segment.mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                SketchUtils.close(file);
+            }
+        }
+        ByteBuffer buffer = segment.mappedBuffer.duplicate();
+        buffer.position(record.offset);
+        buffer.limit(record.offset + record.length);
+        return buffer.slice();
+    }
+
+    /**
+     * 删除一条记录，打包存储的只是标记为无效，等后台线程压缩段的时候再真正删除
+     */
+    private void release(String key, Record record) {
+        if (record.isPacked()) {
+            Segment segment = segmentMap.get(record.segmentId);
+            if (segment != null) {
+                segment.keys.remove(key);
+                segment.liveBytes -= record.length;
+            }
+        } else {
+            File file = getEntryFile(key);
+            if (file.exists()) {
+                deleteFile(file);
+            }
+            size -= record.length;
+        }
+
+        File extractedFile = getExtractedFile(key);
+        if (extractedFile.exists()) {
+            deleteFile(extractedFile);
+        }
+    }
+
+    private synchronized void completeEdit(String key, SpillOutputStream outputStream) throws IOException {
+        if (indexWriter == null) {
+            outputStream.deleteTempFile();
+            throw new IOException("cache is closed");
+        }
+
+        Record record;
+        Record oldRecord = recordMap.remove(key);
+        keyMap.remove(key);
+        if (oldRecord != null) {
+            release(key, oldRecord);
+        }
+
+        if (!outputStream.isSpilled()) {
+            try {
+                record = appendToSegment(outputStream.getBuffer(), outputStream.getCount());
+            } catch (IOException e) {
+                if (oldRecord != null) {
+                    appendRemove(key);
+                }
+                throw e;
+            }
+            segmentMap.get(record.segmentId).keys.add(key);
+            segmentMap.get(record.segmentId).liveBytes += record.length;
+        } else {
+            File entryFile = getEntryFile(key);
+            File parentDir = entryFile.getParentFile();
+            if ((!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists())
+                    || !outputStream.getTempFile().renameTo(entryFile)) {
+                outputStream.deleteTempFile();
+                if (oldRecord != null) {
+                    appendRemove(key);
+                }
+                throw new IOException("rename temp file failed: " + outputStream.getTempFile().getPath());
+            }
+            record = new Record(-1, 0, (int) entryFile.length());
+            size += record.length;
+        }
+
+        recordMap.put(key, record);
+        keyMap.put(key, Boolean.TRUE);
+        appendPut(key, record);
+
+        if (size > maxSize || indexRebuildRequired() || hasCompactableSegment()) {
+            submitCleanup();
+        }
+    }
+
+    private synchronized boolean remove(String key) {
+        Record record = recordMap.remove(key);
+        if (record == null) {
+            return false;
+        }
+        keyMap.remove(key);
+        release(key, record);
+        try {
+            appendRemove(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (indexRebuildRequired() || hasCompactableSegment()) {
+            submitCleanup();
+        }
+        return true;
+    }
+
+    private void submitCleanup() {
+        try {
+            executorService.submit(cleanupRunnable);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的缓存，视情况重写索引，然后逐个压缩无效数据过半的段，压缩时复制数据不持有锁
+     */
+    private void cleanup() throws IOException {
+        while (true) {
+            Compaction compaction;
+            synchronized (this) {
+                if (indexWriter == null) {
+                    return;
+                }
+                trimToSize();
+                if (indexRebuildRequired()) {
+                    rebuildIndex();
+                }
+                compaction = prepareCompaction();
+                if (compaction == null) {
+                    return;
+                }
+            }
+
+            boolean copied = false;
+            try {
+                compaction.copy(maxPackedSize);
+                copied = true;
+            } finally {
+                synchronized (this) {
+                    finishCompaction(compaction, copied);
+                }
+            }
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的缓存，直到占用的磁盘空间不超过maxSize，无效数据也算在内，只是马上就要被压缩掉的不算
+     */
+    private void trimToSize() throws IOException {
+        while (!recordMap.isEmpty() && size - getReclaimableSize() > maxSize) {
+            Iterator<Map.Entry<String, Record>> iterator = recordMap.entrySet().iterator();
+            Map.Entry<String, Record> eldest = iterator.next();
+            iterator.remove();
+            keyMap.remove(eldest.getKey());
+            release(eldest.getKey(), eldest.getValue());
+            appendRemove(eldest.getKey());
+        }
+    }
+
+    /**
+     * 获取压缩后可以回收的大小
+     */
+    private long getReclaimableSize() {
+        long reclaimableSize = 0;
+        for (Segment segment : segmentMap.values()) {
+            if (segment != activeSegment && (segment.compacting || segment.isCompactable())) {
+                reclaimableSize += segment.length - segment.liveBytes;
+            }
+        }
+        return reclaimableSize;
+    }
+
+    private boolean hasCompactableSegment() {
+        for (Segment segment : segmentMap.values()) {
+            if (segment != activeSegment && segment.isCompactable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 挑一个需要压缩的段，记下其中还有效的记录，再预留一个新段用来存放复制过去的数据
+     *
+     * @return null：没有需要压缩的段
+     */
+    private Compaction prepareCompaction() {
+        Segment source = null;
+        for (Segment segment : segmentMap.values()) {
+            if (segment != activeSegment && segment.isCompactable()) {
+                source = segment;
+                break;
+            }
+        }
+        if (source == null) {
+            return null;
+        }
+
+        // 遍历不会改变访问顺序
+        List<String> keys = new ArrayList<String>();
+        List<Record> records = new ArrayList<Record>();
+        for (Map.Entry<String, Record> entry : recordMap.entrySet()) {
+            if (entry.getValue().segmentId == source.id) {
+                keys.add(entry.getKey());
+                records.add(entry.getValue());
+            }
+        }
+
+        Segment target = new Segment(nextSegmentId(), 0);
+        target.compacting = true;
+        segmentMap.put(target.id, target);
+        source.compacting = true;
+        return new Compaction(source, getSegmentFile(source.id), target, getSegmentFile(target.id), keys, records);
+    }
+
+    /**
+     * 复制完成后把索引切换到新段，复制期间被删除或者更新了的记录不再切换，然后删掉旧段
+     *
+     * @param copied 是否复制成功了，失败的话删掉新段，旧段以后再压缩
+     */
+    private void finishCompaction(Compaction compaction, boolean copied) throws IOException {
+        Segment source = compaction.source;
+        Segment target = compaction.target;
+        if (!copied || indexWriter == null || segmentMap.get(target.id) != target || segmentMap.get(source.id) != source) {
+            // 失败了或者期间缓存被清空了，清空后重新创建的段可能用了同样的编号，这时就不能删了
+            if (segmentMap.get(target.id) == target) {
+                segmentMap.remove(target.id);
+            }
+            source.compacting = false;
+            if (!segmentMap.containsKey(target.id)) {
+                deleteFile(compaction.targetFile);
+            }
+            return;
+        }
+
+        target.length = compaction.targetLength;
+        target.compacting = false;
+        size += target.length;
+
+        int movedCount = 0;
+        try {
+            for (int w = 0, count = compaction.keys.size(); w < count; w++) {
+                String key = compaction.keys.get(w);
+                Record oldRecord = compaction.records.get(w);
+                if (recordMap.get(key) != oldRecord) {
+                    continue;
+                }
+                Record newRecord = new Record(target.id, compaction.targetOffsets[w], oldRecord.length);
+                // 搬过去的数据就当做最近访问过
+                recordMap.put(key, newRecord);
+                source.keys.remove(key);
+                source.liveBytes -= newRecord.length;
+                target.keys.add(key);
+                target.liveBytes += newRecord.length;
+                appendPut(key, newRecord);
+                movedCount++;
+            }
+        } catch (IOException e) {
+            // 没切换过去的记录还在旧段里，旧段先留着
+            source.compacting = false;
+            throw e;
+        }
+
+        segmentMap.remove(source.id);
+        source.mappedBuffer = null;
+        deleteFile(compaction.sourceFile);
+        size -= source.length;
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "compactSegment",
+                    " - ", "segment=", source.id, "->", target.id,
+                    " - ", "movedCount=", movedCount,
+                    " - ", "freed=", Formatter.formatFileSize(context, source.length - target.length)));
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w(Sketch.TAG, SketchUtils.concat(logName, " - ", "delete file failed", " - ", file.getPath()));
+        }
+    }
+
+    private synchronized File extract(String key, ByteBuffer buffer) throws IOException {
+        File extractedFile = getExtractedFile(key);
+        if (extractedFile.exists() && extractedFile.length() == buffer.remaining()) {
+            return extractedFile;
+        }
+
+        File parentDir = extractedFile.getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) {
+            throw new IOException("failed to create directory: " + parentDir);
+        }
+        FileOutputStream outputStream = new FileOutputStream(extractedFile);
+        try {
+            outputStream.getChannel().write(buffer.duplicate());
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+        return extractedFile;
+    }
+
+    /**
+     * 在后台线程安装，exist()在主线程上调用时用，不让主线程等待安装
+     */
+    private void installDiskCacheInBackground() {
+        if (!backgroundInstallStarted.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache(false);
+            }
+        }, logName + "Installer").start();
+    }
+
+    @Override
+    public boolean exist(String uri) {
+        // 同LruDiskCache，主线程上还没安装好就放到后台安装并先当做存在处理，分发线程里还会再用get()确认一次
+        if (cacheDir == null) {
+            if (SketchUtils.isMainThread()) {
+                installDiskCacheInBackground();
+                return true;
+            }
+            installDiskCache(false);
+        }
+
+        // 只查keyMap，不等待this锁
+        String key = uriToDiskCacheKey(uri);
+        return key != null && keyMap.containsKey(key);
+    }
+
+    @Override
+    public synchronized Entry get(String uri) {
+        installDiskCache(false);
+
+        String key = uriToDiskCacheKey(uri);
+        Record record = key != null ? recordMap.get(key) : null;
+        if (record == null) {
+            return null;
+        }
+
+        if (!record.isPacked()) {
+            File entryFile = getEntryFile(key);
+            if (!entryFile.exists()) {
+                remove(key);
+                return null;
+            }
+            return new PackedFileEntry(this, uri, key, entryFile);
+        }
+
+        try {
+            return new PackedBufferEntry(this, uri, key, mapRecord(record));
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public Editor edit(String uri) {
+        installDiskCache(false);
+
+        String key = uriToDiskCacheKey(uri);
+        File tempFile;
+        synchronized (this) {
+            if (key == null || indexWriter == null) {
+                return null;
+            }
+            tempFile = new File(new File(cacheDir, FILE_DIR_NAME), SketchUtils.concat(hashKey(key), ".", System.nanoTime(), TMP_FILE_SUFFIX));
+        }
+        return new PackedEditor(this, key, tempFile);
+    }
+
+    @Override
+    public File getCacheDir() {
+        installDiskCache(false);
+        return cacheDir;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String uriToDiskCacheKey(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        if (SketchUtils.checkSuffix(uri, ".apk")) {
+            uri += ".icon";
+        }
+        try {
+            return URLEncoder.encode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 单独存储的文件用key的MD5值命名，避免文件名太长
+     */
+    private static String hashKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            char[] chars = new char[digest.length * 2];
+            for (int w = 0; w < digest.length; w++) {
+                chars[w * 2] = HEX_DIGITS[(digest[w] >> 4) & 0x0f];
+                chars[w * 2 + 1] = HEX_DIGITS[digest[w] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * 获取占用的磁盘空间，包括段中还没来得及压缩掉的无效数据
+     */
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        closeFiles();
+        if (cacheDir != null) {
+            try {
+                DiskLruCache.deleteContents(cacheDir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        installDiskCache(true);
+    }
+
+    @Override
+    public synchronized void close() {
+        closeFiles();
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("maxPackedSize").append("=").append(Formatter.formatFileSize(context, maxPackedSize))
+                .append(",")
+                .append("appVersionCode").append("=").append(appVersionCode)
+                .append(")");
+    }
+
+    private static class Record {
+        private final int segmentId;
+        private final int offset;
+        private final int length;
+
+        Record(int segmentId, int offset, int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean isPacked() {
+            return segmentId >= 0;
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Set<String> keys = new HashSet<String>();
+        private long length;
+        private long liveBytes;
+        private ByteBuffer mappedBuffer;
+        private boolean compacting;
+
+        Segment(int id, long length) {
+            this.id = id;
+            this.length = length;
+        }
+
+        /**
+         * 无效数据过半就值得压缩了，正在压缩的不算
+         */
+        boolean isCompactable() {
+            return !compacting && length > 0 && (length - liveBytes) * 2 >= length;
+        }
+    }
+
+    /**
+     * 一次压缩，复制数据的时候不持有锁，旧段已经不会再写入了，所以可以放心地读
+     */
+    private static class Compaction {
+        private final Segment source;
+        private final File sourceFile;
+        private final Segment target;
+        private final File targetFile;
+        private final List<String> keys;
+        private final List<Record> records;
+        private final int[] targetOffsets;
+        private long targetLength;
+
+        Compaction(Segment source, File sourceFile, Segment target, File targetFile, List<String> keys, List<Record> records) {
+            this.source = source;
+            this.sourceFile = sourceFile;
+            this.target = target;
+            this.targetFile = targetFile;
+            this.keys = keys;
+            this.records = records;
+            this.targetOffsets = new int[records.size()];
+        }
+
+        /**
+         * 把有效的记录依次复制到新段，完成后force()到磁盘
+         */
+        void copy(int maxPackedSize) throws IOException {
+            RandomAccessFile sourceRandomAccessFile = null;
+            RandomAccessFile targetRandomAccessFile = null;
+            try {
+                sourceRandomAccessFile = new RandomAccessFile(sourceFile, "r");
+                targetRandomAccessFile = new RandomAccessFile(targetFile, "rw");
+                targetRandomAccessFile.setLength(0);
+
+                byte[] buffer = new byte[maxPackedSize];
+                int offset = 0;
+                for (int w = 0, count = records.size(); w < count; w++) {
+                    Record record = records.get(w);
+                    sourceRandomAccessFile.seek(record.offset);
+                    sourceRandomAccessFile.readFully(buffer, 0, record.length);
+                    targetRandomAccessFile.write(buffer, 0, record.length);
+                    targetOffsets[w] = offset;
+                    offset += record.length;
+                }
+                targetRandomAccessFile.getChannel().force(false);
+                targetLength = offset;
+            } finally {
+                SketchUtils.close(sourceRandomAccessFile);
+                SketchUtils.close(targetRandomAccessFile);
+            }
+        }
+    }
+
+    /**
+     * 先写到内存中，超过阈值后转存到临时文件
+     */
+    private static class SpillOutputStream extends OutputStream {
+        private final int threshold;
+        private final File tempFile;
+        private ExposedByteArrayOutputStream memoryStream;
+        private OutputStream fileStream;
+
+        SpillOutputStream(int threshold, File tempFile) {
+            this.threshold = threshold;
+            this.tempFile = tempFile;
+            this.memoryStream = new ExposedByteArrayOutputStream(Math.min(threshold, 32 * 1024));
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (fileStream == null && memoryStream.size() + count > threshold) {
+                File parentDir = tempFile.getParentFile();
+                if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) {
+                    throw new IOException("failed to create directory: " + parentDir);
+                }
+                fileStream = new BufferedOutputStream(new FileOutputStream(tempFile), 8 * 1024);
+                fileStream.write(memoryStream.getBuffer(), 0, memoryStream.size());
+                memoryStream = null;
+            }
+            if (fileStream != null) {
+                fileStream.write(buffer, offset, count);
+            } else {
+                memoryStream.write(buffer, offset, count);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (fileStream != null) {
+                fileStream.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null) {
+                fileStream.close();
+            }
+        }
+
+        boolean isSpilled() {
+            return fileStream != null;
+        }
+
+        byte[] getBuffer() {
+            return memoryStream.getBuffer();
+        }
+
+        int getCount() {
+            return memoryStream.size();
+        }
+
+        File getTempFile() {
+            return tempFile;
+        }
+
+        void deleteTempFile() {
+            SketchUtils.close(fileStream);
+            if (tempFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * 打包存储的缓存，数据是段文件的内存映射
+     */
+    public static class PackedBufferEntry implements BufferEntry {
+        private PackedDiskCache cache;
+        private String uri;
+        private String key;
+        private ByteBuffer buffer;
+
+        public PackedBufferEntry(PackedDiskCache cache, String uri, String key, ByteBuffer buffer) {
+            this.cache = cache;
+            this.uri = uri;
+            this.key = key;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new ByteBufferInputStream(buffer);
+        }
+
+        /**
+         * 打包存储的缓存没有自己的文件，只能在需要时解压出一个单独的文件
+         */
+        @Override
+        public File getFile() {
+            try {
+                return cache.extract(key, buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public boolean delete() {
+            return cache.remove(key);
+        }
+    }
+
+    /**
+     * 超过阈值单独存储的缓存
+     */
+    public static class PackedFileEntry implements Entry {
+        private PackedDiskCache cache;
+        private String uri;
+        private String key;
+        private File file;
+
+        public PackedFileEntry(PackedDiskCache cache, String uri, String key, File file) {
+            this.cache = cache;
+            this.uri = uri;
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public boolean delete() {
+            return cache.remove(key);
+        }
+    }
+
+    public static class PackedEditor implements Editor {
+        private PackedDiskCache cache;
+        private String key;
+        private SpillOutputStream outputStream;
+
+        public PackedEditor(PackedDiskCache cache, String key, File tempFile) {
+            this.cache = cache;
+            this.key = key;
+            this.outputStream = new SpillOutputStream(cache.maxPackedSize, tempFile);
+        }
+
+        @Override
+        public OutputStream newOutputStream() throws IOException {
+            return outputStream;
+        }
+
+        @Override
+        public void commit() throws IOException, DiskLruCache.EditorChangedException {
+            outputStream.close();
+            cache.completeEdit(key, outputStream);
+        }
+
+        @Override
+        public void abort() {
+            outputStream.deleteTempFile();
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.drawable.RecycleDrawable;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 分区的内存缓存，每个分区有自己的容量预算和LRU链表，例如列表缩略图和详情页大图各用一个分区，打开一张大图就不会把一屏缩略图都挤出去了
+ * <br>通过DisplayOptions.setMemoryCachePartition()指定请求使用哪个分区，没有指定或者分区不存在的就放到默认分区
+ * <br>某个分区没用完的容量可以借给其它分区用，总容量超出时先从借用了容量的分区淘汰，这样被借出去的容量就收回来了
+ */
+public class PartitionedMemoryCache implements MemoryCache {
+    public static final String DEFAULT_PARTITION = "default";
+
+    protected String logName = "PartitionedMemoryCache";
+
+    private final Map<String, Partition> partitionMap = new LinkedHashMap<String, Partition>();
+    private final Map<CacheKey, Partition> indexMap = new HashMap<CacheKey, Partition>();
+    private final ActiveDrawableCache activeDrawableCache = new ActiveDrawableCache();
+    private final Partition defaultPartition;
+
+    private Context context;
+    private long maxSize;
+    private float budgetRatio = 1f;
+    private long budget;
+    private long size;
+    private Map<CacheKey, ReentrantLock> editLockMap;
+
+    public PartitionedMemoryCache(Context context, long maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.budget = maxSize;
+        this.defaultPartition = new Partition(DEFAULT_PARTITION, maxSize);
+        this.partitionMap.put(DEFAULT_PARTITION, defaultPartition);
+    }
+
+    public static PartitionedMemoryCache create(Context context) {
+        return new PartitionedMemoryCache(context, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    /**
+     * 添加一个分区，分区的容量从默认分区中划出来
+     *
+     * @param name    分区名称
+     * @param maxSize 分区的最大容量
+     */
+    public synchronized PartitionedMemoryCache addPartition(String name, long maxSize) {
+        if (name == null || DEFAULT_PARTITION.equals(name)) {
+            throw new IllegalArgumentException("partition name can not be null or " + DEFAULT_PARTITION);
+        }
+        if (partitionMap.containsKey(name)) {
+            throw new IllegalArgumentException("partition already exists: " + name);
+        }
+        if (maxSize <= 0 || maxSize > defaultPartition.maxSize) {
+            throw new IllegalArgumentException("partition maxSize must be between 1 and " + defaultPartition.maxSize + ": " + maxSize);
+        }
+
+        Partition partition = new Partition(name, maxSize);
+        partitionMap.put(name, partition);
+        defaultPartition.maxSize -= maxSize;
+        applyPartitionBudget();
+        return this;
+    }
+
+    private Partition partitionFor(CacheKey key) {
+        String name = key.getPartition();
+        Partition partition = name != null ? partitionMap.get(name) : null;
+        return partition != null ? partition : defaultPartition;
+    }
+
+    private static int sizeOf(Drawable drawable) {
+        int bitmapSize = ((RecycleDrawable) drawable).getByteCount();
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
+    @Override
+    public void put(CacheKey key, Drawable value) {
+        if (!(value instanceof RecycleDrawable)) {
+            throw new IllegalArgumentException("drawable must be implemented RecycleDrawableInterface");
+        }
+
+        activeDrawableCache.remove(key);
+        ((RecycleDrawable) value).setIsCached(logName + ":put", true);
+
+        Entry newEntry = new Entry(value, sizeOf(value));
+        Entry oldEntry;
+        List<Map.Entry<CacheKey, Entry>> evictedEntries = new ArrayList<Map.Entry<CacheKey, Entry>>();
+        Partition partition;
+        synchronized (this) {
+            oldEntry = removeLocked(key);
+
+            partition = partitionFor(key);
+            partition.map.put(key, newEntry);
+            partition.size += newEntry.size;
+            partition.putCount++;
+            size += newEntry.size;
+            indexMap.put(key, partition);
+
+            trimToSizeLocked(budget, partition, evictedEntries);
+        }
+
+        if (oldEntry != null) {
+            ((RecycleDrawable) oldEntry.drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+        onEvicted(evictedEntries);
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "put",
+                    " - ", "partition=", partition.name,
+                    " - ", ((RecycleDrawable) value).getInfo(),
+                    " - ", "afterCacheSize=", Formatter.formatFileSize(context, getSize())));
+        }
+    }
+
+    @Override
+    public Drawable get(CacheKey key) {
+        synchronized (this) {
+            Partition partition = indexMap.get(key);
+            Entry entry = partition != null ? partition.map.get(key) : null;
+            if (entry != null) {
+                partition.hitCount++;
+                return entry.drawable;
+            }
+            partitionFor(key).missCount++;
+        }
+
+        // 分区里没有就再到活动缓存里找找，找到了就放回分区
+        Drawable drawable = activeDrawableCache.get(key);
+        if (drawable != null) {
+            // 先放回去增加缓存引用，再检查是否已回收，防止检查之后被回收；用来查找的key可能会被修改，所以要复制一份
+            put(new CacheKey(key), drawable);
+            if (((RecycleDrawable) drawable).isRecycled()) {
+                remove(key);
+                return null;
+            }
+
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "hit active drawable",
+                        " - ", ((RecycleDrawable) drawable).getInfo(),
+                        " - ", key));
+            }
+        }
+        return drawable;
+    }
+
+    @Override
+    public Drawable remove(CacheKey key) {
+        activeDrawableCache.remove(key);
+
+        Entry entry;
+        synchronized (this) {
+            entry = removeLocked(key);
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        ((RecycleDrawable) entry.drawable).setIsCached(logName + ":entryRemoved", false);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "remove",
+                    " - ", "MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+        return entry.drawable;
+    }
+
+    private Entry removeLocked(CacheKey key) {
+        Partition partition = indexMap.remove(key);
+        Entry entry = partition != null ? partition.map.remove(key) : null;
+        if (entry != null) {
+            partition.size -= entry.size;
+            size -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * 淘汰图片直到总容量不超过给定值
+     * <br>优先从超出自己预算最多的分区（也就是借用了其它分区容量的）淘汰，都没超的话就从刚放入图片的分区淘汰
+     *
+     * @param putPartition 刚放入图片的分区，可以为null
+     */
+    private void trimToSizeLocked(long targetSize, Partition putPartition, List<Map.Entry<CacheKey, Entry>> evictedEntries) {
+        while (size > targetSize) {
+            Partition victimPartition = null;
+            long maxOverage = 0;
+            for (Partition partition : partitionMap.values()) {
+                long overage = partition.size - partition.budget;
+                if (overage > maxOverage && !partition.map.isEmpty()) {
+                    maxOverage = overage;
+                    victimPartition = partition;
+                }
+            }
+            if (victimPartition == null) {
+                victimPartition = putPartition != null && !putPartition.map.isEmpty() ? putPartition : largestPartition();
+            }
+            if (victimPartition == null) {
+                break;
+            }
+
+            Iterator<Map.Entry<CacheKey, Entry>> iterator = victimPartition.map.entrySet().iterator();
+            Map.Entry<CacheKey, Entry> eldest = iterator.next();
+            iterator.remove();
+            indexMap.remove(eldest.getKey());
+            victimPartition.size -= eldest.getValue().size;
+            victimPartition.evictionCount++;
+            if (victimPartition != putPartition && putPartition != null) {
+                victimPartition.reclaimCount++;
+            }
+            size -= eldest.getValue().size;
+            evictedEntries.add(eldest);
+        }
+    }
+
+    private Partition largestPartition() {
+        Partition largestPartition = null;
+        for (Partition partition : partitionMap.values()) {
+            if (!partition.map.isEmpty() && (largestPartition == null || partition.size > largestPartition.size)) {
+                largestPartition = partition;
+            }
+        }
+        return largestPartition;
+    }
+
+    private void onEvicted(List<Map.Entry<CacheKey, Entry>> evictedEntries) {
+        for (Map.Entry<CacheKey, Entry> evictedEntry : evictedEntries) {
+            // 因容量不足被挤出去的先放进活动缓存，如果依然在显示或等待显示的话就不会被回收，下次还能命中
+            activeDrawableCache.put(evictedEntry.getKey(), evictedEntry.getValue().drawable);
+            ((RecycleDrawable) evictedEntry.getValue().drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void setBudgetRatio(float budgetRatio) {
+        budgetRatio = Math.max(0f, Math.min(1f, budgetRatio));
+        List<Map.Entry<CacheKey, Entry>> evictedEntries = new ArrayList<Map.Entry<CacheKey, Entry>>();
+        synchronized (this) {
+            this.budgetRatio = budgetRatio;
+            this.budget = (long) (maxSize * budgetRatio);
+            applyPartitionBudget();
+            trimToSizeLocked(budget, null, evictedEntries);
+        }
+        onEvicted(evictedEntries);
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "setBudgetRatio",
+                    " - ", "budgetRatio=", budgetRatio,
+                    " - ", "budget=", Formatter.formatFileSize(context, getBudget()),
+                    " - ", "MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+    }
+
+    private void applyPartitionBudget() {
+        for (Partition partition : partitionMap.values()) {
+            partition.budget = (long) (partition.maxSize * budgetRatio);
+        }
+    }
+
+    @Override
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * 获取所有分区的名称
+     */
+    @SuppressWarnings("unused")
+    public synchronized List<String> getPartitionNames() {
+        return new ArrayList<String>(partitionMap.keySet());
+    }
+
+    /**
+     * 获取指定分区的已用容量，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized long getPartitionSize(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.size : -1;
+    }
+
+    /**
+     * 获取指定分区当前的容量预算，分区不存在时返回-1；已用容量超出预算的部分就是从其它分区借来的
+     */
+    @SuppressWarnings("unused")
+    public synchronized long getPartitionBudget(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.budget : -1;
+    }
+
+    /**
+     * 获取指定分区的命中次数，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPartitionHitCount(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.hitCount : -1;
+    }
+
+    /**
+     * 获取指定分区的未命中次数，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPartitionMissCount(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.missCount : -1;
+    }
+
+    /**
+     * 获取指定分区的放入次数，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPartitionPutCount(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.putCount : -1;
+    }
+
+    /**
+     * 获取指定分区因容量不足而被淘汰的次数，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPartitionEvictionCount(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.evictionCount : -1;
+    }
+
+    /**
+     * 获取指定分区因为其它分区要收回借出的容量而被淘汰的次数，分区不存在时返回-1
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getPartitionReclaimCount(String name) {
+        Partition partition = partitionMap.get(name);
+        return partition != null ? partition.reclaimCount : -1;
+    }
+
+    /**
+     * 获取活动缓存的命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveHitCount() {
+        return activeDrawableCache.getHitCount();
+    }
+
+    /**
+     * 获取活动缓存的未命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveMissCount() {
+        return activeDrawableCache.getMissCount();
+    }
+
+    @Override
+    public void clear() {
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "clear",
+                    " - ", "before clean MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+
+        List<Entry> removedEntries = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Partition partition : partitionMap.values()) {
+                removedEntries.addAll(partition.map.values());
+                partition.map.clear();
+                partition.size = 0;
+            }
+            indexMap.clear();
+            size = 0;
+        }
+        activeDrawableCache.clear();
+
+        for (Entry entry : removedEntries) {
+            ((RecycleDrawable) entry.drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public synchronized StringBuilder appendIdentifier(StringBuilder builder) {
+        builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, getMaxSize()));
+        for (Partition partition : partitionMap.values()) {
+            builder.append(",")
+                    .append(partition.name).append("=")
+                    .append(Formatter.formatFileSize(context, partition.size))
+                    .append("/").append(Formatter.formatFileSize(context, partition.budget))
+                    .append(":").append(hitPercent(partition.hitCount, partition.missCount)).append("%");
+        }
+        return builder.append(",")
+                .append("activeHitRate").append("=").append(hitPercent(activeDrawableCache.getHitCount(), activeDrawableCache.getMissCount())).append("%")
+                .append(")");
+    }
+
+    private static int hitPercent(int hitCount, int missCount) {
+        int accesses = hitCount + missCount;
+        return accesses != 0 ? (100 * hitCount / accesses) : 0;
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(CacheKey key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<CacheKey, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    private static class Entry {
+        private final Drawable drawable;
+        private final int size;
+
+        Entry(Drawable drawable, int size) {
+            this.drawable = drawable;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一个分区，按访问顺序排列，最久未使用的在最前面
+     */
+    private static class Partition {
+        private final String name;
+        private final LinkedHashMap<CacheKey, Entry> map = new LinkedHashMap<CacheKey, Entry>(0, 0.75f, true);
+        private long maxSize;
+        private long budget;
+        private long size;
+        private int hitCount;
+        private int missCount;
+        private int putCount;
+        private int evictionCount;
+        private int reclaimCount;
+
+        Partition(String name, long maxSize) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.budget = maxSize;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.text.format.Formatter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.drawable.RecycleDrawable;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 分段的低竞争内存缓存
+ * <br>按key的hash把缓存分成多个段，每个段有自己的锁和LRU链表，主线程读缓存时只会和写同一个段的解码线程竞争；
+ * <br>每个段各自记录已用容量，总容量为各段之和，超出最大容量时轮流从各段淘汰最久未使用的图片，所以是近似的全局LRU
+ */
+public class SegmentedMemoryCache implements MemoryCache {
+    protected String logName = "SegmentedMemoryCache";
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+    private final ActiveDrawableCache activeDrawableCache = new ActiveDrawableCache();
+
+    private Context context;
+    private long maxSize;
+    private volatile long budget;
+    private Map<CacheKey, ReentrantLock> editLockMap;
+
+    /**
+     * @param maxSize          最大容量
+     * @param concurrencyLevel 预计并发访问的线程数，段数为不小于此值的2的幂
+     */
+    public SegmentedMemoryCache(Context context, long maxSize, int concurrencyLevel) {
+        this.context = context;
+        this.maxSize = maxSize;
+        this.budget = maxSize;
+
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        this.segments = new Segment[segmentCount];
+        for (int w = 0; w < segmentCount; w++) {
+            segments[w] = new Segment();
+        }
+        this.segmentMask = segmentCount - 1;
+    }
+
+    public SegmentedMemoryCache(Context context, long maxSize) {
+        this(context, maxSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public static SegmentedMemoryCache create(Context context) {
+        return new SegmentedMemoryCache(context, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    private Segment segmentFor(CacheKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    private static int sizeOf(Drawable drawable) {
+        int bitmapSize = ((RecycleDrawable) drawable).getByteCount();
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
+    @Override
+    public void put(CacheKey key, Drawable value) {
+        if (!(value instanceof RecycleDrawable)) {
+            throw new IllegalArgumentException("drawable must be implemented RecycleDrawableInterface");
+        }
+
+        activeDrawableCache.remove(key);
+        ((RecycleDrawable) value).setIsCached(logName + ":put", true);
+
+        Entry newEntry = new Entry(value, sizeOf(value));
+        Entry oldEntry;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            oldEntry = segment.map.put(key, newEntry);
+            segment.size += newEntry.size;
+            if (oldEntry != null) {
+                segment.size -= oldEntry.size;
+            }
+        }
+
+        if (oldEntry != null) {
+            ((RecycleDrawable) oldEntry.drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+
+        trimToSize(budget);
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "put",
+                    " - ", ((RecycleDrawable) value).getInfo(),
+                    " - ", "afterCacheSize=", Formatter.formatFileSize(context, getSize())));
+        }
+    }
+
+    @Override
+    public Drawable get(CacheKey key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.map.get(key);
+            if (entry != null) {
+                segment.hitCount++;
+                return entry.drawable;
+            }
+            segment.missCount++;
+        }
+
+        // 分段缓存里没有就再到活动缓存里找找，找到了就放回分段缓存
+        Drawable drawable = activeDrawableCache.get(key);
+        if (drawable != null) {
+            // 先放回去增加缓存引用，再检查是否已回收，防止检查之后被回收；用来查找的key可能会被修改，所以要复制一份
+            put(new CacheKey(key), drawable);
+            if (((RecycleDrawable) drawable).isRecycled()) {
+                remove(key);
+                return null;
+            }
+
+            if (Sketch.isDebugMode()) {
+                Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "hit active drawable",
+                        " - ", ((RecycleDrawable) drawable).getInfo(),
+                        " - ", key));
+            }
+        }
+        return drawable;
+    }
+
+    @Override
+    public Drawable remove(CacheKey key) {
+        activeDrawableCache.remove(key);
+
+        Entry entry;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            entry = segment.map.remove(key);
+            if (entry != null) {
+                segment.size -= entry.size;
+            }
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        ((RecycleDrawable) entry.drawable).setIsCached(logName + ":entryRemoved", false);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "remove",
+                    " - ", "MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+        return entry.drawable;
+    }
+
+    /**
+     * 轮流从各段淘汰最久未使用的图片，直到总容量不超过给定值
+     */
+    protected void trimToSize(long targetSize) {
+        while (getSize() > targetSize) {
+            CacheKey evictedKey = null;
+            Entry evictedEntry = null;
+
+            // 最多找一圈，都是空的就说明其它线程已经腾出空间了
+            for (int w = 0; w < segments.length && evictedEntry == null; w++) {
+                Segment segment = segments[evictionCursor.getAndIncrement() & segmentMask];
+                synchronized (segment) {
+                    Iterator<Map.Entry<CacheKey, Entry>> iterator = segment.map.entrySet().iterator();
+                    if (iterator.hasNext()) {
+                        Map.Entry<CacheKey, Entry> eldest = iterator.next();
+                        iterator.remove();
+                        evictedKey = eldest.getKey();
+                        evictedEntry = eldest.getValue();
+                        segment.size -= evictedEntry.size;
+                        segment.evictionCount++;
+                    }
+                }
+            }
+
+            if (evictedEntry == null) {
+                break;
+            }
+
+            // 因容量不足被挤出去的先放进活动缓存，如果依然在显示或等待显示的话就不会被回收，下次还能命中
+            activeDrawableCache.put(evictedKey, evictedEntry.drawable);
+            ((RecycleDrawable) evictedEntry.drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+    }
+
+    /**
+     * 获取已用容量，为各段已用容量之和
+     */
+    @Override
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void setBudgetRatio(float budgetRatio) {
+        budgetRatio = Math.max(0f, Math.min(1f, budgetRatio));
+        budget = (long) (maxSize * budgetRatio);
+        trimToSize(budget);
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "setBudgetRatio",
+                    " - ", "budgetRatio=", budgetRatio,
+                    " - ", "budget=", Formatter.formatFileSize(context, budget),
+                    " - ", "MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+    }
+
+    @Override
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * 获取段数
+     */
+    @SuppressWarnings("unused")
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * 获取命中次数
+     */
+    public int getHitCount() {
+        int hitCount = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hitCount += segment.hitCount;
+            }
+        }
+        return hitCount;
+    }
+
+    /**
+     * 获取未命中次数
+     */
+    public int getMissCount() {
+        int missCount = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                missCount += segment.missCount;
+            }
+        }
+        return missCount;
+    }
+
+    /**
+     * 获取因容量不足而被淘汰的次数
+     */
+    @SuppressWarnings("unused")
+    public int getEvictionCount() {
+        int evictionCount = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictionCount += segment.evictionCount;
+            }
+        }
+        return evictionCount;
+    }
+
+    /**
+     * 获取活动缓存的命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveHitCount() {
+        return activeDrawableCache.getHitCount();
+    }
+
+    /**
+     * 获取活动缓存的未命中次数
+     */
+    @SuppressWarnings("unused")
+    public int getActiveMissCount() {
+        return activeDrawableCache.getMissCount();
+    }
+
+    @Override
+    public void clear() {
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "clear",
+                    " - ", "before clean MemoryCacheSize: ", Formatter.formatFileSize(context, getSize())));
+        }
+
+        List<Entry> removedEntries = new ArrayList<Entry>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                removedEntries.addAll(segment.map.values());
+                segment.map.clear();
+                segment.size = 0;
+            }
+        }
+        activeDrawableCache.clear();
+
+        for (Entry entry : removedEntries) {
+            ((RecycleDrawable) entry.drawable).setIsCached(logName + ":entryRemoved", false);
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, getMaxSize()))
+                .append(",")
+                .append("segments").append("=").append(segments.length)
+                .append(",")
+                .append("hitRate").append("=").append(hitPercent(getHitCount(), getMissCount())).append("%")
+                .append(",")
+                .append("activeHitRate").append("=").append(hitPercent(activeDrawableCache.getHitCount(), activeDrawableCache.getMissCount())).append("%")
+                .append(")");
+    }
+
+    private static int hitPercent(int hitCount, int missCount) {
+        int accesses = hitCount + missCount;
+        return accesses != 0 ? (100 * hitCount / accesses) : 0;
+    }
+
+    @Override
+    public synchronized ReentrantLock getEditLock(CacheKey key) {
+        if (key == null) {
+            return null;
+        }
+        if (editLockMap == null) {
+            editLockMap = Collections.synchronizedMap(new WeakHashMap<CacheKey, ReentrantLock>());
+        }
+        ReentrantLock lock = editLockMap.get(key);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            editLockMap.put(key, lock);
+        }
+        return lock;
+    }
+
+    private static class Entry {
+        private final Drawable drawable;
+        private final int size;
+
+        Entry(Drawable drawable, int size) {
+            this.drawable = drawable;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一个段，按访问顺序排列，最久未使用的在最前面
+     */
+    private static class Segment {
+        private final LinkedHashMap<CacheKey, Entry> map = new LinkedHashMap<CacheKey, Entry>(0, 0.75f, true);
+        private volatile long size;
+        private int hitCount;
+        private int missCount;
+        private int evictionCount;
+    }
+}
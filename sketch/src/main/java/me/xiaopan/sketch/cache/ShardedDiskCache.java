@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.text.format.Formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.feature.DiskMaintenanceScheduler;
+import me.xiaopan.sketch.feature.DownloadResumer;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 分片的磁盘缓存，按key的哈希值把缓存分到多个互相独立的DiskLruCache中，每个分片都有自己的日志、容量和锁
+ * <br>下载线程和本地解码线程访问不同分片时不会再互相等待；
+ * <br>key是uri的MD5值（固定32位十六进制），最后一位决定分片，前两位决定分片下的子目录，
+ * 所以文件分布在"分片目录/子目录/key.0"两级目录中，单个目录下的文件数不会太多
+ * <br>通过Configuration.setDiskCache(new ShardedDiskCache(context, configuration, appVersionCode, maxSize))启用
+ */
+public class ShardedDiskCache implements DiskCache {
+    public static final String DIR_NAME = "sketch_sharded";
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    private static final int FAN_OUT_LENGTH = 2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected String logName = "ShardedDiskCache";
+
+    private int maxSize;
+    private int appVersionCode;
+    private File cacheDir;
+    private Context context;
+    private Shard[] shards;
+    private Configuration configuration;
+    private volatile DiskLruCache.EvictionPolicy evictionPolicy = new CostAwareEvictionPolicy();
+    private volatile DiskLruCache.MaintenanceScheduler maintenanceScheduler;
+    private volatile float softOvershootRatio = LruDiskCache.DEFAULT_SOFT_OVERSHOOT_RATIO;
+
+    public ShardedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
+        this(context, configuration, appVersionCode, maxSize, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param shardCount 分片数量，必须是2的幂并且不能超过16
+     */
+    public ShardedDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize, int shardCount) {
+        if (shardCount <= 0 || shardCount > HEX_DIGITS.length || (shardCount & (shardCount - 1)) != 0) {
+            throw new IllegalArgumentException("shardCount must be a power of two and not more than 16: " + shardCount);
+        }
+
+        this.context = context;
+        this.maxSize = maxSize;
+        this.appVersionCode = appVersionCode;
+        this.configuration = configuration;
+        this.maintenanceScheduler = new DiskMaintenanceScheduler(configuration);
+
+        int shardMaxSize = Math.max(1, maxSize / shardCount);
+        this.shards = new Shard[shardCount];
+        for (int w = 0; w < shardCount; w++) {
+            shards[w] = new Shard(String.valueOf(HEX_DIGITS[w]), shardMaxSize);
+        }
+    }
+
+    /**
+     * 准备根目录，当根目录不存在的时候会再次准备，分片自己的安装在第一次用到时进行
+     */
+    private synchronized File installCacheDir(boolean force) {
+        // 好好的就不再准备了
+        if (!force && cacheDir != null && cacheDir.exists()) {
+            return cacheDir;
+        }
+
+        // 根目录下没有日志文件，所以不能让getCacheDir把它当做旧的缓存目录清理掉；
+        // 空间检查交给各个分片自己做，空间不够时只清理分片自己的目录，不能连累其它分片
+        try {
+            cacheDir = SketchUtils.getCacheDir(context, DIR_NAME, true, 0, false, false, 10);
+        } catch (SketchUtils.NoSpaceException e) {
+            e.printStackTrace();
+            cacheDir = e.dir;
+
+            if (configuration.getErrorCallback() != null) {
+                configuration.getErrorCallback().onInstallDiskCacheFailed(e, cacheDir);
+            }
+            return null;
+        }
+        return cacheDir;
+    }
+
+    private Shard getShard(String diskCacheKey) {
+        char lastChar = diskCacheKey.charAt(diskCacheKey.length() - 1);
+        return shards[Character.digit(lastChar, 16) & (shards.length - 1)];
+    }
+
+    @Override
+    public boolean exist(String uri) {
+        String diskCacheKey = uriToDiskCacheKey(uri);
+        if (diskCacheKey == null) {
+            return false;
+        }
+
+        // 同LruDiskCache一样，只有当没有尝试安装过的时候才会尝试安装，主线程上就放到后台安装并先当做存在处理
+        Shard shard = getShard(diskCacheKey);
+        DiskLruCache cache = shard.cache;
+        if (cache == null && !shard.installed) {
+            if (SketchUtils.isMainThread()) {
+                shard.installInBackground();
+                return true;
+            }
+            cache = shard.install(false);
+        }
+        return cache != null && cache.exist(diskCacheKey);
+    }
+
+    @Override
+    public Entry get(String uri) {
+        String diskCacheKey = uriToDiskCacheKey(uri);
+        if (diskCacheKey == null) {
+            return null;
+        }
+
+        DiskLruCache cache = getShard(diskCacheKey).install(false);
+        DiskLruCache.SimpleSnapshot snapshot = null;
+        try {
+            snapshot = cache != null ? cache.getSimpleSnapshot(diskCacheKey) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return snapshot != null ? new LruDiskCache.LruDiskCacheEntry(uri, snapshot) : null;
+    }
+
+    @Override
+    public Editor edit(String uri) {
+        String diskCacheKey = uriToDiskCacheKey(uri);
+        if (diskCacheKey == null) {
+            return null;
+        }
+
+        Shard shard = getShard(diskCacheKey);
+        DiskLruCache cache = shard.install(false);
+        DiskLruCache.Editor diskEditor = null;
+        try {
+            diskEditor = cache != null ? cache.edit(diskCacheKey) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            // 发生异常的时候（比如SD卡被拔出，导致不能使用），只重建出错的分片
+            cache = shard.install(true);
+            try {
+                diskEditor = cache != null ? cache.edit(diskCacheKey) : null;
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+        return diskEditor != null ? new LruDiskCache.LruDiskCacheEditor(diskEditor) : null;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return installCacheDir(false);
+    }
+
+    /**
+     * 设置淘汰策略，所有分片共用，默认是CostAwareEvictionPolicy，设为null的话按最近最少使用的顺序淘汰
+     */
+    @SuppressWarnings("unused")
+    public ShardedDiskCache setEvictionPolicy(DiskLruCache.EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        for (Shard shard : shards) {
+            DiskLruCache cache = shard.cache;
+            if (cache != null) {
+                cache.setEvictionPolicy(evictionPolicy);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 设置维护调度器，所有分片共用，默认是DiskMaintenanceScheduler，设为null的话一超过最大容量就立即在后台淘汰
+     *
+     * @param softOvershootRatio 允许超出最大容量的比例，超出这个比例就不再等待空闲，立即维护
+     */
+    @SuppressWarnings("unused")
+    public ShardedDiskCache setMaintenanceScheduler(DiskLruCache.MaintenanceScheduler maintenanceScheduler, float softOvershootRatio) {
+        this.maintenanceScheduler = maintenanceScheduler;
+        this.softOvershootRatio = softOvershootRatio;
+        for (Shard shard : shards) {
+            DiskLruCache cache = shard.cache;
+            if (cache != null) {
+                cache.setMaintenanceScheduler(maintenanceScheduler, softOvershootRatio);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 生成固定长度的key，是uri的MD5值的十六进制形式
+     */
+    @Override
+    public String uriToDiskCacheKey(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        if (SketchUtils.checkSuffix(uri, ".apk")) {
+            uri += ".icon";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(uri.getBytes("UTF-8"));
+            char[] chars = new char[digest.length * 2];
+            for (int w = 0; w < digest.length; w++) {
+                chars[w * 2] = HEX_DIGITS[(digest[w] >> 4) & 0x0f];
+                chars[w * 2 + 1] = HEX_DIGITS[digest[w] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public long getSize() {
+        long size = 0;
+        for (Shard shard : shards) {
+            DiskLruCache cache = shard.cache;
+            if (cache != null) {
+                size += cache.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+
+        // 根目录下的未完成下载也要一起删掉
+        File rootDir = cacheDir;
+        if (rootDir != null) {
+            SketchUtils.deleteFile(new File(rootDir, DownloadResumer.PARTIAL_DIR_NAME));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public ReentrantLock getEditLock(String key) {
+        if (key == null) {
+            return null;
+        }
+        String diskCacheKey = uriToDiskCacheKey(key);
+        if (diskCacheKey == null) {
+            return null;
+        }
+        return getShard(diskCacheKey).getEditLock(key);
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("maxSize").append("=").append(Formatter.formatFileSize(context, maxSize))
+                .append(",")
+                .append("shardCount").append("=").append(shards.length)
+                .append(",")
+                .append("appVersionCode").append("=").append(appVersionCode)
+                .append(")");
+    }
+
+    /**
+     * 一个分片，有自己的DiskLruCache和编辑锁，安装、清空、关闭都只锁自己
+     */
+    private class Shard {
+        private final String dirName;
+        private final int maxSize;
+        private volatile DiskLruCache cache;
+        private volatile boolean installed;
+        private final Map<String, ReentrantLock> editLockMap = new WeakHashMap<String, ReentrantLock>();
+        private final AtomicBoolean backgroundInstallStarted = new AtomicBoolean();
+
+        Shard(String dirName, int maxSize) {
+            this.dirName = dirName;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * 安装分片，当分片目录不存在的时候会再次安装
+         */
+        synchronized DiskLruCache install(boolean force) {
+            File shardDir = cache != null ? cache.getDirectory() : null;
+
+            // 好好的就不安装了
+            if (!force && shardDir != null && shardDir.exists()) {
+                return cache;
+            }
+
+            installed = true;
+            if (cache != null) {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                cache = null;
+            }
+
+            File rootDir = installCacheDir(force);
+            if (rootDir == null) {
+                return null;
+            }
+
+            shardDir = new File(rootDir, dirName);
+
+            // 空间不够用的时候只清空自己的目录，然后再次计算可用空间
+            long availableBytes = SketchUtils.getAvailableBytes(rootDir);
+            if (availableBytes < DISK_CACHE_RESERVED_SPACE_SIZE) {
+                SketchUtils.cleanDir(shardDir);
+                availableBytes = SketchUtils.getAvailableBytes(rootDir);
+            }
+            if (availableBytes < DISK_CACHE_RESERVED_SPACE_SIZE) {
+                String availableFormatted = Formatter.formatFileSize(context, availableBytes);
+                SketchUtils.NoSpaceException e = new SketchUtils.NoSpaceException(shardDir, "available space is " +
+                        availableFormatted + ", disk cache dir path is " + shardDir.getPath());
+                e.printStackTrace();
+
+                if (configuration.getErrorCallback() != null) {
+                    configuration.getErrorCallback().onInstallDiskCacheFailed(e, shardDir);
+                }
+                return null;
+            }
+
+            try {
+                DiskLruCache newCache = DiskLruCache.open(shardDir, appVersionCode, 1, maxSize, FAN_OUT_LENGTH);
+                newCache.setEvictionPolicy(evictionPolicy);
+                newCache.setMaintenanceScheduler(maintenanceScheduler, softOvershootRatio);
+                cache = newCache;
+            } catch (IOException e) {
+                e.printStackTrace();
+
+                if (configuration.getErrorCallback() != null) {
+                    configuration.getErrorCallback().onInstallDiskCacheFailed(e, shardDir);
+                }
+            }
+            return cache;
+        }
+
+        /**
+         * 在后台线程安装，exist()在主线程上调用时用，不让主线程等待安装
+         */
+        void installInBackground() {
+            if (!backgroundInstallStarted.compareAndSet(false, true)) {
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    install(false);
+                }
+            }, logName + "Installer" + dirName).start();
+        }
+
+        synchronized void clear() {
+            if (cache != null) {
+                try {
+                    cache.delete();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                cache = null;
+            }
+            installed = false;
+            backgroundInstallStarted.set(false);
+        }
+
+        synchronized void close() {
+            if (cache != null) {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 编辑锁单独加锁，不会因为分片正在安装而等待
+         */
+        ReentrantLock getEditLock(String key) {
+            synchronized (editLockMap) {
+                ReentrantLock lock = editLockMap.get(key);
+                if (lock == null) {
+                    lock = new ReentrantLock();
+                    editLockMap.put(key, lock);
+                }
+                return lock;
+            }
+        }
+    }
+}
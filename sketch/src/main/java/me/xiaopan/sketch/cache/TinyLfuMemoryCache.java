@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.cache;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+
+import me.xiaopan.sketch.drawable.RecycleDrawable;
+
+/**
+ * 带TinyLFU准入过滤的LRU内存缓存
+ * <br>容量满了之后，新图片只有在访问频率高于所有要为它腾出空间而被淘汰的图片时才会被放进来，
+ * 这样快速滑过一遍列表时那些只出现一次的缩略图就不会把经常用到的头像等图片挤出去了
+ * <br>通过Configuration.setMemoryCache(TinyLfuMemoryCache.create(context))启用
+ */
+public class TinyLfuMemoryCache extends LruMemoryCache {
+    // 估算元素数量时假定的平均图片大小
+    private static final int AVERAGE_ENTRY_SIZE = 64 * 1024;
+
+    private final FrequencySketch frequencySketch;
+    private int admitCount;
+    private int rejectCount;
+
+    public TinyLfuMemoryCache(Context context, int maxSize) {
+        super(context, maxSize);
+        this.logName = "TinyLfuMemoryCache";
+        this.frequencySketch = new FrequencySketch(Math.max(256, maxSize / AVERAGE_ENTRY_SIZE));
+    }
+
+    public static TinyLfuMemoryCache create(Context context) {
+        return new TinyLfuMemoryCache(context, (int) (Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    @Override
+    protected void onAccess(CacheKey key) {
+        frequencySketch.increment(key.getHash());
+    }
+
+    @Override
+    protected synchronized boolean admit(CacheKey key, Drawable value) {
+        // 还放得下就直接接纳
+        int valueSize = ((RecycleDrawable) value).getByteCount();
+        if (getSize() + valueSize <= getBudget()) {
+            admitCount++;
+            return true;
+        }
+
+        // 比整个容量还大，放进去也会马上被淘汰
+        if (valueSize > getBudget()) {
+            rejectCount++;
+            return false;
+        }
+
+        // 一张大图可能会挤出好几张小图，所以要和每一张会被淘汰的都比一下，比它们都常用才接纳
+        int candidateFrequency = frequencySketch.frequency(key.getHash());
+        for (CacheKey victimKey : getEvictionKeys((int) (getSize() + valueSize - getBudget()))) {
+            if (candidateFrequency <= frequencySketch.frequency(victimKey.getHash())) {
+                rejectCount++;
+                return false;
+            }
+        }
+
+        admitCount++;
+        return true;
+    }
+
+    /**
+     * 获取接纳次数
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getAdmitCount() {
+        return admitCount;
+    }
+
+    /**
+     * 获取拒绝次数
+     */
+    @SuppressWarnings("unused")
+    public synchronized int getRejectCount() {
+        return rejectCount;
+    }
+}
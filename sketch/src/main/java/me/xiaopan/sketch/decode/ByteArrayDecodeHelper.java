@@ -22,25 +22,48 @@ import android.graphics.Point;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.EncodedMemoryCache;
 import me.xiaopan.sketch.drawable.RecycleGifDrawable;
 import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.util.ByteBufferInputStream;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class ByteArrayDecodeHelper implements DecodeHelper {
     protected String logName = "ByteArrayDecodeHelper";
 
     private byte[] data;
+    private ByteBuffer buffer;
+    private String encodedKey;
     private LoadRequest loadRequest;
 
     public ByteArrayDecodeHelper(byte[] data, LoadRequest loadRequest) {
         this.data = data;
+        this.encodedKey = loadRequest.getAttrs().getUri();
+        this.loadRequest = loadRequest;
+    }
+
+    /**
+     * 从未解码图片缓存中的数据解码，不会修改buffer的position
+     *
+     * @param encodedKey buffer在未解码图片缓存中的key
+     */
+    public ByteArrayDecodeHelper(ByteBuffer buffer, String encodedKey, LoadRequest loadRequest) {
+        this.buffer = buffer;
+        this.encodedKey = encodedKey;
         this.loadRequest = loadRequest;
     }
 
     @Override
     public Bitmap decode(BitmapFactory.Options options) {
+        if (buffer != null) {
+            if (buffer.hasArray()) {
+                return BitmapFactory.decodeByteArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), options);
+            }
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+        }
         return BitmapFactory.decodeByteArray(data, 0, data.length, options);
     }
 
@@ -68,12 +91,38 @@ public class ByteArrayDecodeHelper implements DecodeHelper {
         if (Sketch.isDebugMode()) {
             Log.e(Sketch.TAG, SketchUtils.concat(logName, " - ", "decode failed", " - ", loadRequest.getAttrs().getId()));
         }
+        // 缓存的数据已经损坏了，删掉
+        if (buffer != null) {
+            EncodedMemoryCache encodedMemoryCache = loadRequest.getSketch().getConfiguration().getEncodedMemoryCache();
+            encodedMemoryCache.remove(encodedKey);
+        }
     }
 
     @Override
     public RecycleGifDrawable getGifDrawable() {
         try {
-            return new RecycleGifDrawable(data);
+            if (buffer == null) {
+                // GIF每一帧都要从原始数据解码，复制一份到堆外放进未解码图片缓存，下次再显示时就不用重新读取了
+                EncodedMemoryCache encodedMemoryCache = loadRequest.getSketch().getConfiguration().getEncodedMemoryCache();
+                if (!encodedMemoryCache.isCacheable(data.length, true)) {
+                    return new RecycleGifDrawable(data);
+                }
+                buffer = SketchUtils.toDirectByteBuffer(data);
+                encodedMemoryCache.put(encodedKey, buffer);
+            } else if (!buffer.isDirect()) {
+                // 按普通图片缓存的是堆内数据，GIF要用堆外的，换成堆外的
+                ByteBuffer directBuffer = ByteBuffer.allocateDirect(buffer.remaining());
+                directBuffer.put(buffer.duplicate());
+                directBuffer.flip();
+                buffer = directBuffer;
+                EncodedMemoryCache encodedMemoryCache = loadRequest.getSketch().getConfiguration().getEncodedMemoryCache();
+                if (encodedMemoryCache.isCacheable(buffer.remaining(), true)) {
+                    encodedMemoryCache.put(encodedKey, buffer);
+                } else {
+                    encodedMemoryCache.remove(encodedKey);
+                }
+            }
+            return new RecycleGifDrawable(buffer.duplicate());
         } catch (IOException e) {
             e.printStackTrace();
             return null;
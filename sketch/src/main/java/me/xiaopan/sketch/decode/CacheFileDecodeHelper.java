@@ -21,12 +21,15 @@ import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.cache.EncodedMemoryCache;
 import me.xiaopan.sketch.drawable.RecycleGifDrawable;
 import me.xiaopan.sketch.request.LoadRequest;
 import me.xiaopan.sketch.util.SketchUtils;
@@ -82,6 +85,7 @@ public class CacheFileDecodeHelper implements DecodeHelper {
         if (Sketch.isDebugMode()) {
             Log.e(Sketch.TAG, SketchUtils.concat(logName, " - ", "decode failed", " - ", "diskCacheKey", "=", diskCacheEntry.getUri(), ", ", " - ", loadRequest.getAttrs().getId()));
         }
+        loadRequest.getSketch().getConfiguration().getEncodedMemoryCache().remove(diskCacheEntry.getUri());
         if (!diskCacheEntry.delete()) {
             if (Sketch.isDebugMode()) {
                 Log.e(Sketch.TAG, SketchUtils.concat(logName, " - ", "delete damaged disk cache file failed", " - ", "diskCacheKey", "=", diskCacheEntry.getUri(), ", ", " - ", loadRequest.getAttrs().getId()));
@@ -92,7 +96,20 @@ public class CacheFileDecodeHelper implements DecodeHelper {
     @Override
     public RecycleGifDrawable getGifDrawable() {
         try {
-            return new RecycleGifDrawable(new RandomAccessFile(diskCacheEntry.getFile().getPath(), "r").getFD());
+            // 打包存储的缓存直接用内存映射的数据
+            if (diskCacheEntry instanceof DiskCache.BufferEntry) {
+                return new RecycleGifDrawable(((DiskCache.BufferEntry) diskCacheEntry).getBuffer());
+            }
+
+            // 不太大的GIF读到堆外放进未解码图片缓存，下次再显示时就不用读磁盘了
+            File file = diskCacheEntry.getFile();
+            EncodedMemoryCache encodedMemoryCache = loadRequest.getSketch().getConfiguration().getEncodedMemoryCache();
+            if (encodedMemoryCache.isCacheable(file.length(), true)) {
+                ByteBuffer buffer = SketchUtils.readDirectByteBuffer(file);
+                encodedMemoryCache.put(diskCacheEntry.getUri(), buffer);
+                return new RecycleGifDrawable(buffer.duplicate());
+            }
+            return new RecycleGifDrawable(new RandomAccessFile(file.getPath(), "r").getFD());
         } catch (IOException e) {
             e.printStackTrace();
             return null;
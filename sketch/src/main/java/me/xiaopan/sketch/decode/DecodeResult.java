@@ -26,6 +26,7 @@ public class DecodeResult {
     private RecycleGifDrawable gifDrawable;
     private String mimeType;
     private ImageFrom imageFrom;
+    private boolean processed;
 
     public DecodeResult(String mimeType, RecycleGifDrawable gifDrawable) {
         this.mimeType = mimeType;
@@ -57,6 +58,17 @@ public class DecodeResult {
         return bitmap;
     }
 
+    /**
+     * 是否已经处理过了，处理过的就不需要再用ImageProcessor处理了
+     */
+    public boolean isProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(boolean processed) {
+        this.processed = processed;
+    }
+
     public RecycleGifDrawable getGifDrawable() {
         return gifDrawable;
     }
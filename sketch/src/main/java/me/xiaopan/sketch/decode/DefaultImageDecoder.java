@@ -24,10 +24,15 @@ import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.cache.EncodedMemoryCache;
 import me.xiaopan.sketch.feature.ErrorCallback;
 import me.xiaopan.sketch.feature.ImageSizeCalculator;
 import me.xiaopan.sketch.request.DataSource;
@@ -97,9 +102,30 @@ public class DefaultImageDecoder implements ImageDecoder {
                 decodeOptions.inSampleSize = imageSizeCalculator.calculateInSampleSize(boundsOptions.outWidth, boundsOptions.outHeight, maxSize.getWidth(), maxSize.getHeight());
             }
 
+            // 从复用池中找一张合适的Bitmap来承载解码结果
+            BitmapPool bitmapPool = loadRequest.getSketch().getConfiguration().getBitmapPool();
+            boolean useInBitmap = BitmapPoolUtils.setInBitmapFromPool(decodeOptions,
+                    boundsOptions.outWidth, boundsOptions.outHeight, imageFormat, bitmapPool);
+
             // Decoding and exclude the width or height of 1 pixel image
             try {
-                bitmap = decodeHelper.decode(decodeOptions);
+                try {
+                    bitmap = decodeHelper.decode(decodeOptions);
+                } catch (IllegalArgumentException e) {
+                    if (!useInBitmap) {
+                        throw e;
+                    }
+
+                    // inBitmap不符合要求，还回复用池之后不使用inBitmap再解码一次
+                    if (Sketch.isDebugMode()) {
+                        Log.w(Sketch.TAG, SketchUtils.concat(logName,
+                                " - ", "inBitmap decode failed",
+                                " - ", "retry without inBitmap",
+                                " - ", loadRequest.getAttrs().getId()));
+                    }
+                    BitmapPoolUtils.inBitmapFailed(decodeOptions, bitmapPool);
+                    bitmap = decodeHelper.decode(decodeOptions);
+                }
             } catch (Throwable error) {
                 error.printStackTrace();
                 ErrorCallback errorCallback = loadRequest.getSketch().getConfiguration().getErrorCallback();
@@ -116,7 +142,7 @@ public class DefaultImageDecoder implements ImageDecoder {
                             " - ", "BitmapSize: ", bitmap.getWidth(), "x", bitmap.getHeight(),
                             " - ", loadRequest.getAttrs().getId()));
                 }
-                bitmap.recycle();
+                BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
                 bitmap = null;
             }
         } else {
@@ -204,7 +230,41 @@ public class DefaultImageDecoder implements ImageDecoder {
         DiskCache.Entry diskCacheEntry = dataSource.getDiskCacheEntry();
         byte[] imageData = dataSource.getImageData();
 
-        if (diskCacheEntry != null) {
+        // 未解码图片缓存里有的话就直接从内存解码，不用读磁盘
+        EncodedMemoryCache encodedMemoryCache = loadRequest.getSketch().getConfiguration().getEncodedMemoryCache();
+        String encodedKey;
+        ByteBuffer encodedData = null;
+        if (imageData != null) {
+            // 刚下载的数据是最新的，替换掉缓存里可能已经过期的旧数据
+            encodedKey = loadRequest.getAttrs().getUri();
+            if (encodedMemoryCache.isCacheable(imageData.length, false)) {
+                encodedData = ByteBuffer.wrap(imageData);
+                encodedMemoryCache.put(encodedKey, encodedData);
+            } else {
+                encodedMemoryCache.remove(encodedKey);
+            }
+        } else if (diskCacheEntry != null) {
+            // 按磁盘缓存的key存放，本地文件变了对应的磁盘缓存key也会变，就不会用到旧的数据
+            encodedKey = diskCacheEntry.getUri();
+            encodedData = encodedMemoryCache.get(encodedKey);
+            // 打包存储的缓存本身就是内存映射，不用再复制一份到未解码图片缓存
+            if (encodedData == null && !(diskCacheEntry instanceof DiskCache.BufferEntry)
+                    && encodedMemoryCache.isCacheable(diskCacheEntry.getFile().length(), false)) {
+                try {
+                    encodedData = SketchUtils.readByteBuffer(diskCacheEntry.getFile());
+                    encodedMemoryCache.put(encodedKey, encodedData);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else {
+            encodedKey = null;
+        }
+
+        if (encodedData != null) {
+            DecodeHelper decodeHelper = new ByteArrayDecodeHelper(encodedData, encodedKey, loadRequest);
+            decodeResult = decodeFromHelper(loadRequest, decodeHelper, logName);
+        } else if (diskCacheEntry != null) {
             DecodeHelper decodeHelper = new CacheFileDecodeHelper(diskCacheEntry, loadRequest);
             decodeResult = decodeFromHelper(loadRequest, decodeHelper, logName);
         } else if (imageData != null && imageData.length > 0) {
@@ -22,6 +22,8 @@ import android.os.Build;
 import android.util.Log;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDrawable {
@@ -32,11 +34,21 @@ public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDraw
     private int waitDisplayRefCount;
     private String mimeType;
     private boolean allowRecycle = true;
+    private boolean recycled;
+    private BitmapPool bitmapPool;
 
     public RecycleBitmapDrawable(Bitmap bitmap) {
         super(bitmap);
     }
 
+    /**
+     * @param bitmapPool 引用计数归零后Bitmap会优先放入此复用池而不是直接回收
+     */
+    public RecycleBitmapDrawable(Bitmap bitmap, BitmapPool bitmapPool) {
+        super(bitmap);
+        this.bitmapPool = bitmapPool;
+    }
+
     @Override
     public void setIsDisplayed(String callingStation, boolean displayed) {
         synchronized (this) {
@@ -86,8 +98,9 @@ public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDraw
 
     @Override
     public boolean isRecycled() {
+        // 放入复用池的Bitmap并没有被回收，但对于当前Drawable来说已经不能再用了
         Bitmap bitmap = getBitmap();
-        return bitmap == null || bitmap.isRecycled();
+        return recycled || bitmap == null || bitmap.isRecycled();
     }
 
     @Override
@@ -101,11 +114,12 @@ public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDraw
     }
 
     @Override
-    public void recycle() {
-        Bitmap bitmap = getBitmap();
-        if (bitmap != null) {
-            bitmap.recycle();
+    public synchronized void recycle() {
+        if (isRecycled()) {
+            return;
         }
+        recycled = true;
+        BitmapPoolUtils.freeBitmapToPool(getBitmap(), bitmapPool);
     }
 
     @Override
@@ -140,7 +154,7 @@ public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDraw
 
     @Override
     public boolean canRecycle() {
-        return allowRecycle && getBitmap() != null && !getBitmap().isRecycled();
+        return allowRecycle && !isRecycled();
     }
 
     @Override
@@ -153,7 +167,7 @@ public class RecycleBitmapDrawable extends BitmapDrawable implements RecycleDraw
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(logName, " - ", "recycled bitmap", " - ", callingStation, ":", type, " - ", getInfo()));
             }
-            getBitmap().recycle();
+            recycle();
         } else {
             if (Sketch.isDebugMode()) {
                 Log.d(Sketch.TAG, SketchUtils.concat(logName, " - ", "can't recycled bitmap", " - ", callingStation, ":", type, " - ", getInfo(), " - ", "references(cacheRefCount=", cacheRefCount, "; displayRefCount=", displayRefCount, "; waitDisplayRefCount=", waitDisplayRefCount, "; canRecycle=", canRecycle(), ")"));
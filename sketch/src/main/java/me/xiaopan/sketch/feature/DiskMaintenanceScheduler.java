@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.feature;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.request.RequestExecutor;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 磁盘缓存维护调度器
+ * <br>淘汰缓存、整理日志这些维护工作会集中删除文件、重写日志，跟正在进行的请求抢磁盘，
+ * 所以等到请求执行器空闲的时候再做，最多等maxDelay，超过软上限的紧急维护则立即执行
+ * <br>执行时每删除一小批文件就会暂停一下，限制维护工作占用的磁盘速度，还会统计维护花费的时间
+ */
+public class DiskMaintenanceScheduler implements DiskLruCache.MaintenanceScheduler, Identifier {
+    public static final long DEFAULT_IDLE_CHECK_INTERVAL = 500;
+    public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+    protected String logName = "DiskMaintenanceScheduler";
+
+    private Configuration configuration;
+    private long idleCheckInterval;
+    private long maxDelay;
+    private volatile ScheduledExecutorService executor;
+
+    private final AtomicInteger maintenanceCount = new AtomicInteger();
+    private final AtomicLong maintenanceTime = new AtomicLong();
+
+    public DiskMaintenanceScheduler(Configuration configuration) {
+        this(configuration, DEFAULT_IDLE_CHECK_INTERVAL, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param idleCheckInterval 请求执行器忙的时候每隔多久检查一次是否空闲，单位毫秒
+     * @param maxDelay          非紧急的维护最多推迟多久，单位毫秒
+     */
+    public DiskMaintenanceScheduler(Configuration configuration, long idleCheckInterval, long maxDelay) {
+        this.configuration = configuration;
+        this.idleCheckInterval = idleCheckInterval;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public void schedule(Runnable task, boolean urgent) {
+        getExecutor().execute(new MaintenanceRunnable(task, urgent, SystemClock.uptimeMillis()));
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        // 懒加载，用不到磁盘缓存的进程不用创建线程
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    // 调低线程优先级，不能影响请求
+                                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                                    runnable.run();
+                                }
+                            }, logName);
+                        }
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    private boolean isRequestExecutorIdle() {
+        RequestExecutor requestExecutor = configuration.getRequestExecutor();
+        return requestExecutor == null || requestExecutor.isIdle();
+    }
+
+    /**
+     * 获取执行维护的次数
+     */
+    @SuppressWarnings("unused")
+    public int getMaintenanceCount() {
+        return maintenanceCount.get();
+    }
+
+    /**
+     * 获取维护花费的总时间，单位毫秒，包括每批之间暂停的时间
+     */
+    @SuppressWarnings("unused")
+    public long getMaintenanceTime() {
+        return maintenanceTime.get();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("idleCheckInterval").append("=").append(idleCheckInterval)
+                .append(",")
+                .append("maxDelay").append("=").append(maxDelay)
+                .append(")");
+    }
+
+    private class MaintenanceRunnable implements Runnable {
+        private Runnable task;
+        private boolean urgent;
+        private long scheduleTime;
+
+        public MaintenanceRunnable(Runnable task, boolean urgent, long scheduleTime) {
+            this.task = task;
+            this.urgent = urgent;
+            this.scheduleTime = scheduleTime;
+        }
+
+        @Override
+        public void run() {
+            long waitTime = SystemClock.uptimeMillis() - scheduleTime;
+            if (!urgent && waitTime < maxDelay && !isRequestExecutorIdle()) {
+                getExecutor().schedule(this, idleCheckInterval, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            long startTime = SystemClock.uptimeMillis();
+            task.run();
+            long useTime = SystemClock.uptimeMillis() - startTime;
+
+            int count = maintenanceCount.incrementAndGet();
+            long totalTime = maintenanceTime.addAndGet(useTime);
+
+            if (Sketch.isDebugMode()) {
+                Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "maintenance",
+                        " - ", urgent ? "urgent" : "idle",
+                        " - ", "wait:", waitTime, "ms",
+                        " - ", "use:", useTime, "ms",
+                        " - ", "count:", count,
+                        " - ", "totalTime:", totalTime, "ms"));
+            }
+        }
+    }
+}
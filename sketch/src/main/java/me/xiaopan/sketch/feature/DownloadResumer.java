@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.feature;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.http.ContentRange;
+import me.xiaopan.sketch.http.HttpStack;
+import me.xiaopan.sketch.request.DownloadOptions;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 断点续传
+ * <br>比较大的图片下载时照常写到磁盘缓存的Editor里，只有被取消或者超时了才把Editor的文件移到未完成目录下，连同校验值（ETag或Last-Modified）一起保留下来，
+ * 下次下载时带上Range和If-Range接着下载，剩下的数据直接追加到未完成的文件后面，下载完成后再把文件移回Editor提交，服务器没有返回206的话就从头下载
+ * <br>只有响应带有Content-Length、Accept-Ranges: bytes以及强校验值，并且没有压缩，磁盘缓存的Editor也是{@link DiskCache.FileEditor}的时候才会保留
+ * <br>未完成的数据不算在磁盘缓存的容量里，所以总大小不能超过maxPartialSize，超过了就从最久没动过的开始删；
+ * 清空磁盘缓存时也要一起删掉，没有把整个目录清空的磁盘缓存要在clear()里删掉{@link #PARTIAL_DIR_NAME}目录
+ * <br>所有方法都要在持有uri的磁盘缓存编辑锁的时候调用
+ */
+public class DownloadResumer implements Identifier {
+    public static final int DEFAULT_MIN_RESUMABLE_LENGTH = 256 * 1024;
+    public static final int DEFAULT_MAX_PARTIAL_SIZE = 32 * 1024 * 1024;
+    public static final String PARTIAL_DIR_NAME = "partial";
+
+    private static final String INFO_FILE_SUFFIX = ".info";
+    private static final String KEY_VALIDATOR = "If-Range";
+    private static final String KEY_TOTAL_LENGTH = "Total-Length";
+    private static final long STALE_PARTIAL_FILE_AGE = 3 * 24 * 60 * 60 * 1000L;
+
+    protected String logName = "DownloadResumer";
+
+    private int minResumableLength = DEFAULT_MIN_RESUMABLE_LENGTH;
+    private int maxPartialSize = DEFAULT_MAX_PARTIAL_SIZE;
+
+    /**
+     * 给定的选项是否可以断点续传，必须要用磁盘缓存，并且HttpStack可以附带Range请求头
+     */
+    public boolean canUse(DownloadOptions options, HttpStack httpStack) {
+        return !options.isDisableCacheInDisk() && httpStack instanceof HttpStack.HeaderHttpStack;
+    }
+
+    /**
+     * 中断时能否把Editor里已经写入的数据保留下来，只有数据写在单独文件里的Editor才行
+     */
+    public boolean canSavePartial(DiskCache.Editor diskCacheEditor) {
+        return diskCacheEditor instanceof DiskCache.FileEditor;
+    }
+
+    /**
+     * 获取存放未完成数据的文件，放在磁盘缓存目录下，清空磁盘缓存时会一起删掉
+     *
+     * @return null：磁盘缓存不能用了
+     */
+    public File getPartialFile(DiskCache diskCache, String uri) {
+        File cacheDir = diskCache.getCacheDir();
+        String fileName = diskCache.uriToDiskCacheKey(uri);
+        if (cacheDir == null || fileName == null) {
+            return null;
+        }
+        return new File(new File(cacheDir, PARTIAL_DIR_NAME), fileName);
+    }
+
+    private static File getInfoFile(File partialFile) {
+        return new File(partialFile.getPath() + INFO_FILE_SUFFIX);
+    }
+
+    /**
+     * 获取响应的强校验值，优先用ETag，弱ETag不能用于If-Range，就用Last-Modified
+     *
+     * @return null：没有可用的校验值
+     */
+    public String getValidator(HttpStack.ImageHttpResponse response) {
+        String etag = SketchUtils.getResponseHeader(response, "ETag");
+        if (etag != null && etag.length() > 0 && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = SketchUtils.getResponseHeader(response, "Last-Modified");
+        if (lastModified != null && lastModified.length() > 0) {
+            return lastModified;
+        }
+        return null;
+    }
+
+    /**
+     * 响应是否支持断点续传，支持的话中断时就把已经收到的数据保留下来
+     *
+     * @param contentLength 内容长度
+     */
+    public boolean isResumable(HttpStack.ImageHttpResponse response, long contentLength) {
+        if (contentLength < minResumableLength) {
+            return false;
+        }
+
+        String acceptRanges = SketchUtils.getResponseHeader(response, "Accept-Ranges");
+        if (acceptRanges == null || !acceptRanges.trim().toLowerCase(Locale.US).equals("bytes")) {
+            return false;
+        }
+
+        // 压缩过的数据Range是按压缩后的算的，长度对不上
+        String contentEncoding = SketchUtils.getResponseHeader(response, "Content-Encoding");
+        if (contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return false;
+        }
+
+        return getValidator(response) != null;
+    }
+
+    /**
+     * 读取上次没下载完的数据
+     *
+     * @return null：没有或者已经不能用了
+     */
+    public Partial readPartial(DiskCache diskCache, String uri) {
+        File partialFile = getPartialFile(diskCache, uri);
+        if (partialFile == null) {
+            return null;
+        }
+        File infoFile = getInfoFile(partialFile);
+        if (!partialFile.exists() || !infoFile.exists()) {
+            if (partialFile.exists() || infoFile.exists()) {
+                remove(diskCache, uri);
+            }
+            return null;
+        }
+
+        Partial partial = new Partial();
+        partial.file = partialFile;
+        partial.length = partialFile.length();
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(infoFile);
+            readInfo(inputStream, partial);
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(diskCache, uri);
+            return null;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+
+        if (partial.validator == null || partial.length <= 0 || partial.length >= partial.totalLength) {
+            remove(diskCache, uri);
+            return null;
+        }
+
+        return partial;
+    }
+
+    /**
+     * 检查响应是不是接着partial往下传的，状态码必须是206并且Content-Range正好从partial的末尾开始
+     */
+    public boolean isResumeResponse(HttpStack.ImageHttpResponse response, int responseCode, Partial partial) {
+        ContentRange contentRange = ContentRange.fromResponse(response, responseCode);
+        return contentRange != null && contentRange.isToEnd(partial.length) && contentRange.getTotalLength() == partial.totalLength;
+    }
+
+    /**
+     * 打开未完成的文件，续传收到的数据直接追加到后面，中断了也不用再保存一次
+     */
+    public OutputStream openPartial(Partial partial) throws IOException {
+        return new FileOutputStream(partial.file, true);
+    }
+
+    /**
+     * 下载中断了，把Editor里已经写入的数据移到未完成目录下，并记下校验值，然后放弃这次编辑
+     *
+     * @param diskCacheEditor 通过canSavePartial()检查过的Editor，输出流需要已经关闭
+     * @param validator       getValidator()返回的校验值
+     * @param totalLength     完整的长度
+     */
+    public void savePartial(DiskCache diskCache, String uri, DiskCache.Editor diskCacheEditor, String validator, long totalLength) {
+        try {
+            File partialFile = getPartialFile(diskCache, uri);
+            if (partialFile == null || !canSavePartial(diskCacheEditor)) {
+                return;
+            }
+
+            File editorFile = ((DiskCache.FileEditor) diskCacheEditor).getFile();
+            long length = editorFile.length();
+            if (length <= 0 || length >= totalLength || length > maxPartialSize) {
+                return;
+            }
+
+            File partialDir = partialFile.getParentFile();
+            if (!partialDir.exists() && !partialDir.mkdirs() && !partialDir.exists()) {
+                return;
+            }
+
+            remove(diskCache, uri);
+            trimPartials(partialDir, maxPartialSize - length);
+            moveFile(editorFile, partialFile);
+            writeInfo(getInfoFile(partialFile), validator, totalLength);
+
+            if (Sketch.isDebugMode()) {
+                Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "savePartial",
+                        " - ", "length=", length, "/", totalLength,
+                        " - ", uri));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            remove(diskCache, uri);
+        } finally {
+            diskCacheEditor.abort();
+        }
+    }
+
+    /**
+     * 下载完成了，把未完成的文件交给Editor，能移过去就直接移过去，然后删掉未完成的数据，调用方接着提交Editor就行了
+     */
+    public void complete(DiskCache diskCache, String uri, Partial partial, DiskCache.Editor diskCacheEditor) throws IOException {
+        try {
+            if (diskCacheEditor instanceof DiskCache.FileEditor) {
+                moveFile(partial.file, ((DiskCache.FileEditor) diskCacheEditor).getFile());
+            } else {
+                OutputStream outputStream = diskCacheEditor.newOutputStream();
+                try {
+                    copyPartial(partial, outputStream);
+                } finally {
+                    SketchUtils.close(outputStream);
+                }
+            }
+        } finally {
+            remove(diskCache, uri);
+        }
+    }
+
+    /**
+     * 删除未完成的数据
+     */
+    public void remove(DiskCache diskCache, String uri) {
+        File partialFile = getPartialFile(diskCache, uri);
+        if (partialFile != null) {
+            SketchUtils.deleteFile(partialFile);
+            SketchUtils.deleteFile(getInfoFile(partialFile));
+        }
+    }
+
+    /**
+     * 把未完成的数据写到输出流里，不能追加到未完成的文件里的时候才用
+     *
+     * @return 写入的长度
+     */
+    public long copyPartial(Partial partial, OutputStream outputStream) throws IOException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(partial.file);
+            return copy(inputStream, outputStream);
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    private static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        long length = 0;
+        int readLength;
+        byte[] buffer = new byte[8 * 1024];
+        while ((readLength = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, readLength);
+            length += readLength;
+        }
+        outputStream.flush();
+        return length;
+    }
+
+    /**
+     * 移动文件，都在磁盘缓存目录下一般直接重命名就行了，不行的话再复制
+     */
+    private static void moveFile(File from, File to) throws IOException {
+        SketchUtils.deleteFile(to);
+        if (from.renameTo(to)) {
+            return;
+        }
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(from);
+            outputStream = new FileOutputStream(to);
+            copy(inputStream, outputStream);
+            outputStream.close();
+            outputStream = null;
+        } finally {
+            SketchUtils.close(inputStream);
+            SketchUtils.close(outputStream);
+        }
+        SketchUtils.deleteFile(from);
+    }
+
+    /**
+     * 删除很久以前留下的，这些一般不会再下载了；剩下的总大小超过maxSize的话再从最久没动过的开始删，
+     * 正在续传的文件一直在追加，最后修改时间是最新的，不会先被删掉
+     */
+    private static void trimPartials(File partialDir, long maxSize) {
+        File[] files = partialDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        List<File> partialFiles = new ArrayList<File>(files.length);
+        long totalSize = 0;
+        for (File file : files) {
+            if (currentTime - file.lastModified() > STALE_PARTIAL_FILE_AGE) {
+                SketchUtils.deleteFile(file);
+            } else if (!file.getName().endsWith(INFO_FILE_SUFFIX)) {
+                partialFiles.add(file);
+                totalSize += file.length();
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Collections.sort(partialFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsTime = lhs.lastModified();
+                long rhsTime = rhs.lastModified();
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+        for (File partialFile : partialFiles) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            totalSize -= partialFile.length();
+            SketchUtils.deleteFile(partialFile);
+            SketchUtils.deleteFile(getInfoFile(partialFile));
+        }
+    }
+
+    private static void writeInfo(File infoFile, String validator, long totalLength) throws IOException {
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(infoFile);
+            Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+            writer.write(KEY_VALIDATOR + ": " + validator + "\n");
+            writer.write(KEY_TOTAL_LENGTH + ": " + totalLength + "\n");
+            writer.flush();
+            outputStream.close();
+            outputStream = null;
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+    }
+
+    private static void readInfo(InputStream inputStream, Partial partial) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int index = line.indexOf(": ");
+            if (index <= 0) {
+                continue;
+            }
+            String name = line.substring(0, index);
+            String value = line.substring(index + 2);
+            if (KEY_VALIDATOR.equals(name)) {
+                partial.validator = value;
+            } else if (KEY_TOTAL_LENGTH.equals(name)) {
+                try {
+                    partial.totalLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad total length: " + value);
+                }
+            }
+        }
+    }
+
+    public int getMinResumableLength() {
+        return minResumableLength;
+    }
+
+    /**
+     * 设置最小续传长度，比这小的图片重新下载也很快，没必要保留
+     */
+    public DownloadResumer setMinResumableLength(int minResumableLength) {
+        this.minResumableLength = minResumableLength;
+        return this;
+    }
+
+    public int getMaxPartialSize() {
+        return maxPartialSize;
+    }
+
+    /**
+     * 设置未完成数据的最大总大小，它们不算在磁盘缓存的容量里，所以要单独限制
+     */
+    public DownloadResumer setMaxPartialSize(int maxPartialSize) {
+        this.maxPartialSize = maxPartialSize;
+        return this;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("minResumableLength").append("=").append(minResumableLength)
+                .append(",")
+                .append("maxPartialSize").append("=").append(maxPartialSize)
+                .append(")");
+    }
+
+    /**
+     * 上次没下载完的数据
+     */
+    public static class Partial {
+        private File file;
+        private long length;
+        private long totalLength;
+        private String validator;
+
+        /**
+         * 已经下载的长度
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 完整的长度
+         */
+        public long getTotalLength() {
+            return totalLength;
+        }
+
+        public String getValidator() {
+            return validator;
+        }
+
+        /**
+         * 续传用的请求头，文件变了的话服务器会忽略Range返回200
+         */
+        public Map<String, String> getRangeHeaders() {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Range", "bytes=" + length + "-");
+            headers.put("If-Range", validator);
+            // 压缩了的话Range就对不上了
+            headers.put("Accept-Encoding", "identity");
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.feature;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Configuration;
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.http.HttpCacheInfo;
+import me.xiaopan.sketch.http.HttpStack;
+import me.xiaopan.sketch.request.DownloadOptions;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.LruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 按照HTTP缓存协议更新磁盘缓存
+ * <br>下载时把响应里的ETag、Last-Modified以及过期时间作为一个单独的缓存存起来，
+ * 之后命中磁盘缓存时如果已经过期，先照常使用旧的缓存，同时在后台发起条件请求（If-None-Match、If-Modified-Since），
+ * 服务器返回304的话只更新过期时间，返回200的话用新的数据替换旧的缓存
+ * <br>需要通过DownloadOptions.setRevalidateDiskCache(true)开启
+ */
+public class HttpCacheRevalidator implements Identifier {
+    private static final String INFO_DISK_CACHE_KEY_SUFFIX = "#http_cache_info";
+    private static final int MAX_KNOWN_EXPIRES_TIME_COUNT = 256;
+
+    protected String logName = "HttpCacheRevalidator";
+
+    // 记住最近检查过的过期时间，没过期就不用每次都去读磁盘
+    private final LruCache<String, Long> expiresTimeCache = new LruCache<String, Long>(MAX_KNOWN_EXPIRES_TIME_COUNT);
+    private final ConcurrentHashMap<String, Boolean> revalidatingUris = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * 给定的选项是否要检查磁盘缓存是否过期
+     */
+    public boolean canUse(DownloadOptions options) {
+        return options.isRevalidateDiskCache() && !options.isDisableCacheInDisk();
+    }
+
+    /**
+     * 生成存放缓存信息的磁盘缓存key
+     */
+    public String getInfoDiskCacheKey(String uri) {
+        return uri + INFO_DISK_CACHE_KEY_SUFFIX;
+    }
+
+    /**
+     * 读取缓存信息，没有的话返回null
+     */
+    public HttpCacheInfo readInfo(DiskCache diskCache, String uri) {
+        DiskCache.Entry diskCacheEntry = diskCache.get(getInfoDiskCacheKey(uri));
+        if (diskCacheEntry == null) {
+            return null;
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = diskCacheEntry.newInputStream();
+            return HttpCacheInfo.readFrom(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            diskCacheEntry.delete();
+            return null;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * 保存缓存信息
+     */
+    public void saveInfo(DiskCache diskCache, String uri, HttpCacheInfo info) {
+        String infoDiskCacheKey = getInfoDiskCacheKey(uri);
+        ReentrantLock diskCacheEditLock = diskCache.getEditLock(infoDiskCacheKey);
+        diskCacheEditLock.lock();
+        try {
+            DiskCache.Editor diskCacheEditor = diskCache.edit(infoDiskCacheKey);
+            if (diskCacheEditor == null) {
+                return;
+            }
+
+            OutputStream outputStream = null;
+            try {
+                outputStream = diskCacheEditor.newOutputStream();
+                info.writeTo(outputStream);
+                SketchUtils.close(outputStream);
+                outputStream = null;
+                diskCacheEditor.commit();
+                expiresTimeCache.put(uri, info.getExpiresTime());
+            } catch (IOException e) {
+                e.printStackTrace();
+                diskCacheEditor.abort();
+            } catch (DiskLruCache.EditorChangedException e) {
+                e.printStackTrace();
+                diskCacheEditor.abort();
+            } finally {
+                SketchUtils.close(outputStream);
+            }
+        } finally {
+            diskCacheEditLock.unlock();
+        }
+    }
+
+    /**
+     * 磁盘缓存被使用时调用，如果已经过期了就在后台更新，当前请求照常使用旧的缓存
+     *
+     * @param uri     磁盘缓存的key
+     * @param realUri 真正的下载地址
+     */
+    public void onDiskCacheHit(final Sketch sketch, final String uri, final String realUri) {
+        Long expiresTime = expiresTimeCache.get(uri);
+        if (expiresTime != null && (expiresTime < 0 || System.currentTimeMillis() < expiresTime)) {
+            return;
+        }
+
+        // 同一个uri同时只更新一次
+        if (revalidatingUris.putIfAbsent(uri, Boolean.TRUE) != null) {
+            return;
+        }
+
+        sketch.getConfiguration().getRequestExecutor().submitDownload(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidate(sketch.getConfiguration(), uri, realUri);
+                } finally {
+                    revalidatingUris.remove(uri);
+                }
+            }
+        });
+    }
+
+    private void revalidate(Configuration configuration, String uri, String realUri) {
+        DiskCache diskCache = configuration.getDiskCache();
+        ReentrantLock diskCacheEditLock = diskCache.getEditLock(uri);
+        diskCacheEditLock.lock();
+        try {
+            HttpCacheInfo oldInfo = readInfo(diskCache, uri);
+            if (oldInfo == null) {
+                // 没有缓存信息说明不是在开启此功能后下载的，按照以前的方式一直有效
+                expiresTimeCache.put(uri, -1L);
+                return;
+            }
+            expiresTimeCache.put(uri, oldInfo.getExpiresTime());
+            if (!oldInfo.isStale(System.currentTimeMillis()) || !diskCache.exist(uri)) {
+                return;
+            }
+
+            // 不能附带请求头就没法发起条件请求，只能一直用旧的
+            if (!(configuration.getHttpStack() instanceof HttpStack.HeaderHttpStack)) {
+                expiresTimeCache.put(uri, -1L);
+                return;
+            }
+            HttpStack.HeaderHttpStack httpStack = (HttpStack.HeaderHttpStack) configuration.getHttpStack();
+            HttpStack.ImageHttpResponse httpResponse = httpStack.getHttpResponse(realUri, oldInfo.getConditionalHeaders());
+            int responseCode = httpResponse.getResponseCode();
+            long responseTime = System.currentTimeMillis();
+            if (responseCode == 304) {
+                httpResponse.releaseConnection();
+                saveInfo(diskCache, uri, oldInfo.merge(HttpCacheInfo.fromResponse(httpResponse, responseTime)));
+
+                if (Sketch.isDebugMode()) {
+                    Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                            " - ", "revalidate",
+                            " - ", "not modified",
+                            " - ", uri));
+                }
+            } else if (responseCode == 200) {
+                if (saveContent(configuration, diskCache, uri, httpResponse)) {
+                    // 旧的数据可能还在未解码图片缓存里
+                    configuration.getEncodedMemoryCache().remove(uri);
+                    saveInfo(diskCache, uri, HttpCacheInfo.fromResponse(httpResponse, responseTime));
+                }
+
+                if (Sketch.isDebugMode()) {
+                    Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                            " - ", "revalidate",
+                            " - ", "modified",
+                            " - ", uri));
+                }
+            } else {
+                httpResponse.releaseConnection();
+
+                if (Sketch.isDebugMode()) {
+                    Log.w(Sketch.TAG, SketchUtils.concat(logName,
+                            " - ", "revalidate",
+                            " - ", "response code exception",
+                            " - ", "responseCode:", responseCode,
+                            " - ", uri));
+                }
+            }
+        } catch (Throwable e) {
+            // 更新失败了没关系，旧的缓存还能用，下次再试
+            e.printStackTrace();
+        } finally {
+            diskCacheEditLock.unlock();
+        }
+    }
+
+    /**
+     * 保存新的内容，检查和DownloadRequest一样：长度不能超过maxDownloadSize，读到的长度不够Content-Length说明连接中断了，
+     * 这些情况都放弃编辑，保留旧的缓存
+     */
+    private boolean saveContent(Configuration configuration, DiskCache diskCache, String uri, HttpStack.ImageHttpResponse httpResponse) throws IOException {
+        // chunked、gzip等没有Content-Length的响应长度是-1，只能边下载边检查
+        long contentLength = httpResponse.getContentLength();
+        int maxDownloadSize = configuration.getMaxDownloadSize();
+        if (contentLength == 0 || contentLength > maxDownloadSize) {
+            httpResponse.releaseConnection();
+            if (Sketch.isDebugMode()) {
+                Log.w(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "revalidate",
+                        " - ", "content length exception",
+                        " - ", "contentLength:" + contentLength,
+                        " - ", uri));
+            }
+            return false;
+        }
+
+        DiskCache.Editor diskCacheEditor = diskCache.edit(uri);
+        if (diskCacheEditor == null) {
+            httpResponse.releaseConnection();
+            return false;
+        }
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = httpResponse.getContent();
+            outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+            byte[] buffer = new byte[8 * 1024];
+            int readLength;
+            long completedLength = 0;
+            while ((readLength = inputStream.read(buffer)) != -1) {
+                completedLength += readLength;
+                if (completedLength > maxDownloadSize) {
+                    throw new IOException("content too large, more than " + maxDownloadSize);
+                }
+                outputStream.write(buffer, 0, readLength);
+            }
+            SketchUtils.close(outputStream);
+            outputStream = null;
+
+            // 没有读到数据，或者长度不够说明连接中断了，不能用残缺的数据覆盖旧的缓存
+            if (completedLength <= 0 || (contentLength > 0 && completedLength < contentLength)) {
+                diskCacheEditor.abort();
+                if (Sketch.isDebugMode()) {
+                    Log.w(Sketch.TAG, SketchUtils.concat(logName,
+                            " - ", "revalidate",
+                            " - ", "data length exception",
+                            " - ", "contentLength:" + contentLength,
+                            " - ", "completedLength:" + completedLength,
+                            " - ", uri));
+                }
+                return false;
+            }
+
+            diskCacheEditor.commit();
+            return true;
+        } catch (IOException e) {
+            diskCacheEditor.abort();
+            throw e;
+        } catch (DiskLruCache.EditorChangedException e) {
+            e.printStackTrace();
+            diskCacheEditor.abort();
+            return false;
+        } finally {
+            SketchUtils.close(outputStream);
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return logName;
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName);
+    }
+}
@@ -31,6 +31,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.Identifier;
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.CostAwareEvictionPolicy;
 import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.request.ImageFrom;
 import me.xiaopan.sketch.request.LoadRequest;
@@ -139,6 +140,10 @@ public class ImagePreprocessor implements Identifier {
         }
 
         DiskCache.Editor diskCacheEditor = configuration.getDiskCache().edit(diskCacheKey);
+        if (diskCacheEditor instanceof DiskCache.CostEditor) {
+            // 图标可以从APK里重新读取，淘汰时优先考虑
+            ((DiskCache.CostEditor) diskCacheEditor).setRefetchCost(CostAwareEvictionPolicy.LOCAL_REFETCH_COST);
+        }
         OutputStream outputStream = null;
         try {
             if (diskCacheEditor != null) {
@@ -233,6 +238,10 @@ public class ImagePreprocessor implements Identifier {
         }
 
         DiskCache.Editor diskCacheEditor = configuration.getDiskCache().edit(diskCacheKey);
+        if (diskCacheEditor instanceof DiskCache.CostEditor) {
+            // 图标可以从APK里重新读取，淘汰时优先考虑
+            ((DiskCache.CostEditor) diskCacheEditor).setRefetchCost(CostAwareEvictionPolicy.LOCAL_REFETCH_COST);
+        }
         OutputStream outputStream = null;
         try {
             if (diskCacheEditor != null) {
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.feature;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.CostAwareEvictionPolicy;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.decode.CacheFileDecodeHelper;
+import me.xiaopan.sketch.decode.DecodeResult;
+import me.xiaopan.sketch.decode.DefaultImageDecoder;
+import me.xiaopan.sketch.decode.ImageFormat;
+import me.xiaopan.sketch.http.HttpCacheInfo;
+import me.xiaopan.sketch.process.CircleImageProcessor;
+import me.xiaopan.sketch.process.ImageProcessor;
+import me.xiaopan.sketch.process.ReflectionImageProcessor;
+import me.xiaopan.sketch.process.RotateImageProcessor;
+import me.xiaopan.sketch.process.RoundedCornerImageProcessor;
+import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.UriScheme;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 处理后图片的磁盘缓存，把经过ImageProcessor处理后的图片以请求ID为key再存一份到磁盘缓存中
+ * <br>下次内存缓存没有命中时直接解码这张已经处理好的小图，原图的解码和处理都省掉了；
+ * <br>默认存为JPEG，只有处理器会产生透明区域（例如圆形、圆角、倒影）或者原图本身可能带透明度时才存为PNG，
+ * 不能用Bitmap.hasAlpha()判断，因为ARGB_8888的图片几乎都是true
+ * <br>编码比较慢，所以复制一份后放到单独的线程里去做，不占用加载线程；来不及存的直接放弃，下次再存
+ * <br>key里带上原图的校验值（本地文件是最后修改时间，网络图片是ETag或Last-Modified），原图更新了之后旧的就不会再用了，等着被淘汰
+ */
+public class ProcessedImageCache implements Identifier {
+    public static final String DISK_CACHE_KEY_PREFIX = "processed_";
+    private static final int JPEG_QUALITY = 90;
+    private static final int MAX_PENDING_SAVE_COUNT = 4;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected String logName = "ProcessedImageCache";
+
+    private volatile ThreadPoolExecutor saveExecutor;
+
+    /**
+     * 给定的请求是否要使用处理后图片的磁盘缓存
+     */
+    public boolean canUse(LoadRequest loadRequest) {
+        LoadOptions options = loadRequest.getOptions();
+        return options.isCacheProcessedImageInDisk()
+                && !options.isDisableCacheInDisk()
+                && options.getImageProcessor() != null
+                && !loadRequest.getAttrs().getKey().isEmpty();
+    }
+
+    /**
+     * 生成磁盘缓存key，是请求ID加上原图校验值的MD5，原图变了就不再使用旧的缓存
+     *
+     * @return null：生成失败了
+     */
+    public String getDiskCacheKey(LoadRequest loadRequest) {
+        String validator = getOriginalValidator(loadRequest);
+        String id = loadRequest.getAttrs().getId();
+        String digest = md5(validator != null ? SketchUtils.concat(id, "#", validator) : id);
+        return digest != null ? DISK_CACHE_KEY_PREFIX + digest : null;
+    }
+
+    /**
+     * 获取原图的校验值，本地文件用最后修改时间；网络图片的磁盘缓存在过期检查时可能会被替换掉，所以用保存下来的ETag或Last-Modified
+     *
+     * @return null：原图不会变或者没有校验值
+     */
+    protected String getOriginalValidator(LoadRequest loadRequest) {
+        UriScheme uriScheme = loadRequest.getAttrs().getUriScheme();
+        if (uriScheme == UriScheme.FILE) {
+            return String.valueOf(new File(loadRequest.getAttrs().getRealUri()).lastModified());
+        }
+
+        if (uriScheme == UriScheme.NET) {
+            HttpCacheRevalidator httpCacheRevalidator = loadRequest.getSketch().getConfiguration().getHttpCacheRevalidator();
+            if (httpCacheRevalidator.canUse(loadRequest.getOptions())) {
+                DiskCache diskCache = loadRequest.getSketch().getConfiguration().getDiskCache();
+                HttpCacheInfo httpCacheInfo = httpCacheRevalidator.readInfo(diskCache, loadRequest.getAttrs().getUri());
+                if (httpCacheInfo != null) {
+                    return httpCacheInfo.getEtag() != null ? httpCacheInfo.getEtag() : httpCacheInfo.getLastModified();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String md5(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+            char[] chars = new char[digest.length * 2];
+            for (int w = 0; w < digest.length; w++) {
+                chars[w * 2] = HEX_DIGITS[(digest[w] >> 4) & 0x0f];
+                chars[w * 2 + 1] = HEX_DIGITS[digest[w] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 从磁盘缓存中解码处理后的图片，返回的结果已经处理过了，不需要再处理
+     */
+    public DecodeResult decode(LoadRequest loadRequest) {
+        String diskCacheKey = getDiskCacheKey(loadRequest);
+        if (diskCacheKey == null) {
+            return null;
+        }
+        DiskCache diskCache = loadRequest.getSketch().getConfiguration().getDiskCache();
+        DiskCache.Entry diskCacheEntry = diskCache.get(diskCacheKey);
+        if (diskCacheEntry == null) {
+            return null;
+        }
+
+        DecodeResult decodeResult = DefaultImageDecoder.decodeFromHelper(loadRequest,
+                new CacheFileDecodeHelper(diskCacheEntry, loadRequest), logName);
+        if (decodeResult == null || decodeResult.getBitmap() == null) {
+            return null;
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                    " - ", "decode",
+                    " - ", "from processed image disk cache",
+                    " - ", loadRequest.getAttrs().getId()));
+        }
+        decodeResult.setImageFrom(ImageFrom.DISK_CACHE);
+        decodeResult.setProcessed(true);
+        return decodeResult;
+    }
+
+    /**
+     * 把处理后的图片编码后存到磁盘缓存中，编码在单独的线程里进行，这里只复制一份图片
+     */
+    public void save(LoadRequest loadRequest, Bitmap bitmap, String mimeType) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        // 已经有好几个在等着了就不存了，省得复制出来的图片越积越多
+        ThreadPoolExecutor executor = getSaveExecutor();
+        if (executor.getQueue().remainingCapacity() == 0) {
+            return;
+        }
+
+        final DiskCache diskCache = loadRequest.getSketch().getConfiguration().getDiskCache();
+        final String diskCacheKey = getDiskCacheKey(loadRequest);
+        if (diskCacheKey == null || diskCache.exist(diskCacheKey)) {
+            return;
+        }
+
+        // 原图交出去之后随时可能被回收，所以要复制一份
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap copyBitmap;
+        try {
+            copyBitmap = bitmap.copy(config, false);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return;
+        }
+        if (copyBitmap == null) {
+            return;
+        }
+
+        final String requestId = loadRequest.getAttrs().getId();
+        final Bitmap.CompressFormat compressFormat = needKeepAlpha(loadRequest.getOptions().getImageProcessor(), mimeType)
+                ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        save(diskCache, diskCacheKey, copyBitmap, compressFormat, requestId);
+                    } finally {
+                        copyBitmap.recycle();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            copyBitmap.recycle();
+        }
+    }
+
+    /**
+     * 是否需要保留透明度，需要的话存为PNG，否则存为JPEG
+     *
+     * @param imageProcessor 处理器，自定义的处理器会产生透明区域的话请重写此方法
+     * @param mimeType       原图的类型，JPEG、BMP本身就没有透明度
+     */
+    protected boolean needKeepAlpha(ImageProcessor imageProcessor, String mimeType) {
+        if (imageProcessor instanceof CircleImageProcessor
+                || imageProcessor instanceof RoundedCornerImageProcessor
+                || imageProcessor instanceof ReflectionImageProcessor) {
+            return true;
+        }
+        if (imageProcessor instanceof RotateImageProcessor && ((RotateImageProcessor) imageProcessor).getDegrees() % 90 != 0) {
+            return true;
+        }
+
+        ImageFormat imageFormat = ImageFormat.valueOfMimeType(mimeType);
+        return imageFormat != null && imageFormat != ImageFormat.JPEG && imageFormat != ImageFormat.BMP;
+    }
+
+    private void save(DiskCache diskCache, String diskCacheKey, Bitmap bitmap,
+                      Bitmap.CompressFormat compressFormat, String requestId) {
+        ReentrantLock diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+        diskCacheEditLock.lock();
+        try {
+            if (diskCache.exist(diskCacheKey)) {
+                return;
+            }
+
+            DiskCache.Editor diskCacheEditor = diskCache.edit(diskCacheKey);
+            if (diskCacheEditor == null) {
+                return;
+            }
+            if (diskCacheEditor instanceof DiskCache.CostEditor) {
+                // 可以用原图重新生成，淘汰时优先考虑
+                ((DiskCache.CostEditor) diskCacheEditor).setRefetchCost(CostAwareEvictionPolicy.LOCAL_REFETCH_COST);
+            }
+
+            OutputStream outputStream = null;
+            try {
+                outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                bitmap.compress(compressFormat, compressFormat == Bitmap.CompressFormat.JPEG ? JPEG_QUALITY : 100, outputStream);
+                outputStream.flush();
+                outputStream.close();
+                outputStream = null;
+                diskCacheEditor.commit();
+
+                if (Sketch.isDebugMode()) {
+                    Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                            " - ", "save",
+                            " - ", bitmap.getWidth(), "x", bitmap.getHeight(),
+                            " - ", compressFormat.name(),
+                            " - ", requestId));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                diskCacheEditor.abort();
+            } finally {
+                SketchUtils.close(outputStream);
+            }
+        } finally {
+            diskCacheEditLock.unlock();
+        }
+    }
+
+    private ThreadPoolExecutor getSaveExecutor() {
+        // 懒加载，不用的话不创建线程；只用一个线程，排队的满了就放弃
+        if (saveExecutor == null) {
+            synchronized (this) {
+                if (saveExecutor == null) {
+                    saveExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(MAX_PENDING_SAVE_COUNT), new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return saveExecutor;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return logName;
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName);
+    }
+}
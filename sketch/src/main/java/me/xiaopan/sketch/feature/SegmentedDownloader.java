@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.feature;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.http.ContentRange;
+import me.xiaopan.sketch.http.HttpStack;
+import me.xiaopan.sketch.request.DownloadOptions;
+import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 分段并行下载
+ * <br>延迟高的网络上一个连接很难跑满带宽，服务器支持Range的话把大图片分成几段，每段一个连接同时下载，
+ * 按偏移量通过FileChannel直接写到磁盘缓存Editor预先分配好长度的文件里（见{@link DiskCache.FileEditor}），全部完成后提交；
+ * Editor不支持的话才先写到磁盘缓存目录下的临时文件里，完成后再存进去
+ * <br>探测请求带上Range: bytes=0-，支持的服务器返回206以及总长度，探测的连接直接用来下载第一段，不多花一次往返；
+ * 不支持的服务器返回200，照常下载就行了
+ * <br>需要通过DownloadOptions.setSegmentedDownload(true)开启
+ */
+public class SegmentedDownloader implements Identifier {
+    public static final int DEFAULT_SEGMENT_COUNT = 3;
+    public static final int DEFAULT_MIN_SEGMENT_LENGTH = 512 * 1024;
+
+    private static final int MAX_THREAD_COUNT = 8;
+    private static final String TEMP_DIR_NAME = "segmented";
+    private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000;
+
+    protected String logName = "SegmentedDownloader";
+
+    private int segmentCount = DEFAULT_SEGMENT_COUNT;
+    private int minSegmentLength = DEFAULT_MIN_SEGMENT_LENGTH;
+    private volatile ThreadPoolExecutor segmentExecutor;
+
+    /**
+     * 给定的选项是否要分段下载，必须要用磁盘缓存，并且HttpStack可以附带Range请求头
+     */
+    public boolean canUse(DownloadOptions options, HttpStack httpStack) {
+        return options.isSegmentedDownload() && !options.isDisableCacheInDisk()
+                && httpStack instanceof HttpStack.HeaderHttpStack;
+    }
+
+    /**
+     * 探测用的请求头，请求整个文件，所以不管服务器支不支持Range响应都能直接当作下载用
+     */
+    public Map<String, String> getProbeHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", "bytes=0-");
+        // 压缩了的话Range就对不上了
+        headers.put("Accept-Encoding", "identity");
+        return headers;
+    }
+
+    /**
+     * 从探测的响应中解析总长度
+     *
+     * @return -1：服务器不支持Range
+     */
+    public long getTotalLength(HttpStack.ImageHttpResponse probeResponse, int responseCode) {
+        ContentRange contentRange = ContentRange.fromResponse(probeResponse, responseCode);
+        return contentRange != null && contentRange.isToEnd(0) ? contentRange.getTotalLength() : -1;
+    }
+
+    /**
+     * 是否值得分段，至少要能分成两段，并且要有强校验值保证每一段都来自同一个文件
+     *
+     * @param validator DownloadResumer.getValidator()返回的校验值
+     */
+    public boolean isSegmentable(long totalLength, String validator) {
+        return validator != null && segmentCount > 1 && totalLength >= minSegmentLength * 2L;
+    }
+
+    /**
+     * 分段下载并存入磁盘缓存，第一段用探测的响应下载，其余的各自发起Range请求
+     * <br>其余的段从后往前交给线程池，没有空闲线程了就不再交，探测的连接把剩下的连续部分一起下载，一个都交不出去就相当于单连接下载
+     *
+     * @param probeResponse 探测的响应，会被关闭
+     * @param validator     用于If-Range的校验值，文件变了的话服务器返回200，这一段就算失败
+     * @return false：取消了或者磁盘缓存不可编辑
+     */
+    public boolean download(final HttpStack.HeaderHttpStack httpStack, DiskCache diskCache, String uri, final String realUri,
+                            HttpStack.ImageHttpResponse probeResponse, long totalLength, final String validator,
+                            Callback callback) throws IOException {
+        DiskCache.Editor diskCacheEditor = diskCache.edit(uri);
+        if (diskCacheEditor == null) {
+            probeResponse.releaseConnection();
+            return false;
+        }
+
+        int count = (int) Math.min(segmentCount, totalLength / minSegmentLength);
+        long segmentLength = totalLength / count;
+
+        // 能直接写Editor的文件就直接写，不能的话先写到临时文件里，完成后再存进去
+        File targetFile = null;
+        File tempFile = null;
+        RandomAccessFile randomAccessFile = null;
+        final Progress progress = new Progress(totalLength, callback);
+        List<Future<?>> futures = new LinkedList<Future<?>>();
+        long startTime = System.currentTimeMillis();
+        boolean editorClosed = false;
+        try {
+            if (diskCacheEditor instanceof DiskCache.FileEditor) {
+                targetFile = ((DiskCache.FileEditor) diskCacheEditor).getFile();
+            } else {
+                tempFile = createTempFile(diskCache);
+                targetFile = tempFile;
+            }
+
+            // 预先分配好长度，各段按偏移量写入
+            randomAccessFile = new RandomAccessFile(targetFile, "rw");
+            randomAccessFile.setLength(totalLength);
+            final FileChannel channel = randomAccessFile.getChannel();
+
+            // 从最后一段开始交出去，交不出去就停下，探测的连接从头一直下载到第一个交出去的段之前
+            long probeEnd = totalLength - 1;
+            for (int w = count - 1; w > 0; w--) {
+                final long start = w * segmentLength;
+                final long end = probeEnd;
+                try {
+                    futures.add(getSegmentExecutor().submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            downloadRange(httpStack, realUri, validator, channel, start, end, progress);
+                            return null;
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+                probeEnd = start - 1;
+            }
+
+            try {
+                readSegment(probeResponse.getContent(), channel, 0, probeEnd, progress);
+            } catch (IOException e) {
+                progress.stopped = true;
+                throw e;
+            } finally {
+                probeResponse.releaseConnection();
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    progress.stopped = true;
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("segment download failed: " + cause);
+                } catch (InterruptedException e) {
+                    progress.stopped = true;
+                    throw new IOException("segment download interrupted");
+                }
+            }
+
+            if (progress.isStopped()) {
+                return false;
+            }
+            progress.finish();
+
+            randomAccessFile.close();
+            randomAccessFile = null;
+            editorClosed = true;
+            boolean saved = commit(diskCacheEditor, tempFile);
+
+            if (Sketch.isDebugMode()) {
+                Log.d(Sketch.TAG, SketchUtils.concat(logName,
+                        " - ", "download",
+                        " - ", "segmentCount=", futures.size() + 1, "/", count,
+                        " - ", "totalLength=", totalLength,
+                        " - ", "useTime=", System.currentTimeMillis() - startTime, "ms",
+                        " - ", uri));
+            }
+            return saved;
+        } finally {
+            // 失败了的话等还在下载的段停下来再放弃编辑
+            for (Future<?> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            SketchUtils.close(randomAccessFile);
+            if (!editorClosed) {
+                diskCacheEditor.abort();
+            }
+            if (tempFile != null && !tempFile.delete() && tempFile.exists()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * 提交编辑，数据写在临时文件里的话先存进Editor，失败了会放弃这次编辑
+     */
+    private boolean commit(DiskCache.Editor diskCacheEditor, File tempFile) throws IOException {
+        if (tempFile != null) {
+            InputStream inputStream = null;
+            try {
+                inputStream = new FileInputStream(tempFile);
+                return SketchUtils.writeToDiskCache(diskCacheEditor, inputStream);
+            } finally {
+                SketchUtils.close(inputStream);
+            }
+        }
+
+        try {
+            diskCacheEditor.commit();
+            return true;
+        } catch (IOException e) {
+            diskCacheEditor.abort();
+            throw e;
+        } catch (DiskLruCache.EditorChangedException e) {
+            e.printStackTrace();
+            diskCacheEditor.abort();
+            return false;
+        }
+    }
+
+    private void downloadRange(HttpStack.HeaderHttpStack httpStack, String realUri, String validator, FileChannel channel,
+                               long start, long end, Progress progress) throws IOException {
+        if (progress.isStopped()) {
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", "bytes=" + start + "-" + end);
+        headers.put("If-Range", validator);
+        headers.put("Accept-Encoding", "identity");
+        HttpStack.ImageHttpResponse httpResponse = httpStack.getHttpResponse(realUri, headers);
+        try {
+            int responseCode = httpResponse.getResponseCode();
+            ContentRange contentRange = ContentRange.fromResponse(httpResponse, responseCode);
+            if (contentRange == null || contentRange.getStart() != start || contentRange.getEnd() != end
+                    || contentRange.getTotalLength() != progress.totalLength) {
+                throw new IOException("range not satisfied: responseCode=" + responseCode
+                        + ", Content-Range=" + SketchUtils.getResponseHeader(httpResponse, "Content-Range"));
+            }
+
+            readSegment(httpResponse.getContent(), channel, start, end, progress);
+        } catch (IOException e) {
+            progress.stopped = true;
+            throw e;
+        } finally {
+            httpResponse.releaseConnection();
+        }
+    }
+
+    private void readSegment(InputStream inputStream, FileChannel channel, long start, long end, Progress progress) throws IOException {
+        try {
+            long position = start;
+            byte[] buffer = new byte[8 * 1024];
+            while (position <= end) {
+                if (progress.isStopped()) {
+                    return;
+                }
+
+                int readLength = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+                if (readLength == -1) {
+                    throw new IOException("segment incomplete: " + (position - start) + "/" + (end - start + 1));
+                }
+
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, readLength);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                progress.add(readLength);
+            }
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * 在磁盘缓存目录下创建临时文件，顺便清理以前异常退出留下的
+     */
+    private File createTempFile(DiskCache diskCache) throws IOException {
+        File tempDir = new File(diskCache.getCacheDir(), TEMP_DIR_NAME);
+        if (!tempDir.exists() && !tempDir.mkdirs()) {
+            throw new IOException("create temp dir failed: " + tempDir.getPath());
+        }
+
+        File[] oldFiles = tempDir.listFiles();
+        if (oldFiles != null) {
+            long currentTime = System.currentTimeMillis();
+            for (File oldFile : oldFiles) {
+                if (currentTime - oldFile.lastModified() > STALE_TEMP_FILE_AGE) {
+                    SketchUtils.deleteFile(oldFile);
+                }
+            }
+        }
+
+        return File.createTempFile("segment", ".tmp", tempDir);
+    }
+
+    private ThreadPoolExecutor getSegmentExecutor() {
+        // 懒加载，不用的话不创建线程；线程都忙的时候直接拒绝，由探测的连接接着下载，不能占用提交的线程，否则探测的连接会一直等着
+        if (segmentExecutor == null) {
+            synchronized (this) {
+                if (segmentExecutor == null) {
+                    segmentExecutor = new ThreadPoolExecutor(0, MAX_THREAD_COUNT, 60, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+                }
+            }
+        }
+        return segmentExecutor;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * 设置最多分成几段，默认3段
+     */
+    public SegmentedDownloader setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+        return this;
+    }
+
+    public int getMinSegmentLength() {
+        return minSegmentLength;
+    }
+
+    /**
+     * 设置每段的最小长度，太小的话多建连接的开销比省下的时间还多
+     */
+    public SegmentedDownloader setMinSegmentLength(int minSegmentLength) {
+        this.minSegmentLength = minSegmentLength;
+        return this;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("segmentCount").append("=").append(segmentCount)
+                .append(",")
+                .append("minSegmentLength").append("=").append(minSegmentLength)
+                .append(")");
+    }
+
+    /**
+     * 分段下载的回调，会在多个线程中调用
+     */
+    public interface Callback {
+        /**
+         * 是否已经取消了
+         */
+        boolean isCanceled();
+
+        /**
+         * 合并后的进度，每秒最多回调一次
+         */
+        void onUpdateProgress(long totalLength, long completedLength);
+    }
+
+    /**
+     * 汇总各段的进度
+     */
+    private static class Progress {
+        private final long totalLength;
+        private final Callback callback;
+        private final AtomicLong completedLength = new AtomicLong();
+        private final AtomicLong lastCallbackTime = new AtomicLong();
+        private volatile boolean stopped;
+
+        Progress(long totalLength, Callback callback) {
+            this.totalLength = totalLength;
+            this.callback = callback;
+        }
+
+        boolean isStopped() {
+            return stopped || callback.isCanceled();
+        }
+
+        void add(int length) {
+            long completed = completedLength.addAndGet(length);
+
+            // 每秒钟回调一次进度，只让一个线程回调
+            long currentTime = System.currentTimeMillis();
+            long lastTime = lastCallbackTime.get();
+            if (currentTime - lastTime >= 1000 && lastCallbackTime.compareAndSet(lastTime, currentTime)) {
+                callback.onUpdateProgress(totalLength, completed);
+            }
+        }
+
+        void finish() {
+            // 结束的时候再次回调一下进度，确保页面上能显示100%
+            callback.onUpdateProgress(totalLength, completedLength.get());
+        }
+    }
+}
@@ -121,7 +121,8 @@ public class ShowProgressFunction implements ImageViewFunction {
 
     @Override
     public boolean onUpdateDownloadProgress(int totalLength, int completedLength) {
-        progress = (float) completedLength / totalLength;
+        // 不知道总长度的时候蒙层保持不动，直到下载完成
+        progress = totalLength > 0 ? (float) completedLength / totalLength : 0;
         return true;
     }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import java.util.Locale;
+
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 206响应的Content-Range，格式：bytes 1000-4999/5000
+ */
+public class ContentRange {
+    private long start;
+    private long end;
+    private long totalLength;
+
+    private ContentRange() {
+    }
+
+    /**
+     * 解析响应的Content-Range
+     *
+     * @return null：不是206响应，或者没有Content-Range、格式不对、总长度未知
+     */
+    public static ContentRange fromResponse(HttpStack.ImageHttpResponse response, int responseCode) {
+        if (responseCode != 206) {
+            return null;
+        }
+
+        String contentRange = SketchUtils.getResponseHeader(response, "Content-Range");
+        if (contentRange == null) {
+            return null;
+        }
+        contentRange = contentRange.trim();
+        if (!contentRange.toLowerCase(Locale.US).startsWith("bytes ")) {
+            return null;
+        }
+        int dashIndex = contentRange.indexOf('-');
+        int slashIndex = contentRange.indexOf('/');
+        if (dashIndex == -1 || slashIndex < dashIndex) {
+            return null;
+        }
+
+        ContentRange range = new ContentRange();
+        try {
+            range.start = Long.parseLong(contentRange.substring("bytes ".length(), dashIndex).trim());
+            range.end = Long.parseLong(contentRange.substring(dashIndex + 1, slashIndex).trim());
+            range.totalLength = Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (range.start < 0 || range.end < range.start || range.totalLength <= range.end) {
+            return null;
+        }
+        return range;
+    }
+
+    /**
+     * 第一个字节的位置
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * 最后一个字节的位置，包含在内
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * 完整的长度
+     */
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * 是否是从start开始一直到末尾
+     */
+    public boolean isToEnd(long start) {
+        return this.start == start && end == totalLength - 1;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 磁盘缓存对应的HTTP缓存信息，包括校验用的ETag、Last-Modified以及根据Cache-Control、Expires算出的过期时间
+ */
+public class HttpCacheInfo {
+    private static final String KEY_ETAG = "ETag";
+    private static final String KEY_LAST_MODIFIED = "Last-Modified";
+    private static final String KEY_EXPIRES_TIME = "Expires-Time";
+    private static final String KEY_FRESHNESS_LIFETIME = "Freshness-Lifetime";
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+    private static final String HTTP_DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private String etag;
+    private String lastModified;
+    private long expiresTime = -1;
+    private long freshnessLifetime = -1;    // 有效时长，-1表示一直有效
+    private long responseTime;  // 不保存，只在merge时用到
+    private boolean explicitFreshness;  // 响应里是否给出了有效期，不保存，只在merge时用到
+
+    /**
+     * 从响应头中解析缓存信息，优先级依次是Cache-Control的no-cache、no-store，max-age，最后是Expires
+     * <br>都没有的话，有校验值就按Last-Modified估算一个有效期（距今时长的10%，最多一天），没有Last-Modified就视为已经过期；
+     * 连校验值也没有的话无法更新，一直有效
+     *
+     * @param responseTime 收到响应的时间
+     */
+    public static HttpCacheInfo fromResponse(HttpStack.ImageHttpResponse response, long responseTime) {
+        HttpCacheInfo info = new HttpCacheInfo();
+        info.responseTime = responseTime;
+        info.etag = SketchUtils.getResponseHeader(response, "ETag");
+        info.lastModified = SketchUtils.getResponseHeader(response, "Last-Modified");
+
+        long maxAge = -1;
+        boolean mustRevalidate = false;
+        String cacheControl = SketchUtils.getResponseHeader(response, "Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    mustRevalidate = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        String expires = SketchUtils.getResponseHeader(response, "Expires");
+        if (mustRevalidate) {
+            info.freshnessLifetime = 0;
+            info.explicitFreshness = true;
+        } else if (maxAge >= 0) {
+            info.freshnessLifetime = maxAge * 1000;
+            info.explicitFreshness = true;
+        } else if (expires != null) {
+            // 格式不对的Expires按照协议视为已经过期
+            long expiresDate = parseHttpDate(expires);
+            info.freshnessLifetime = expiresDate >= 0 ? Math.max(expiresDate - responseTime, 0) : 0;
+            info.explicitFreshness = true;
+        } else if (info.hasValidators()) {
+            info.freshnessLifetime = info.getHeuristicLifetime(responseTime);
+        }
+
+        info.expiresTime = info.freshnessLifetime >= 0 ? responseTime + info.freshnessLifetime : -1;
+        return info;
+    }
+
+    /**
+     * 按Last-Modified估算有效期，没有Last-Modified或者格式不对就是0
+     */
+    private long getHeuristicLifetime(long responseTime) {
+        long lastModifiedDate = lastModified != null ? parseHttpDate(lastModified) : -1;
+        if (lastModifiedDate < 0 || lastModifiedDate >= responseTime) {
+            return 0;
+        }
+        return Math.min((responseTime - lastModifiedDate) / 10, MAX_HEURISTIC_LIFETIME);
+    }
+
+    private static long parseHttpDate(String date) {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_PATTERN, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 获取过期时间，-1表示既没有有效期也没有校验值，这样的缓存一直有效
+     */
+    public long getExpiresTime() {
+        return expiresTime;
+    }
+
+    /**
+     * 是否已经过期
+     */
+    public boolean isStale(long now) {
+        return expiresTime >= 0 && now >= expiresTime;
+    }
+
+    /**
+     * 是否可以发起条件请求
+     */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 获取条件请求用的请求头
+     */
+    public Map<String, String> getConditionalHeaders() {
+        Map<String, String> headers = new HashMap<String, String>(2);
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * 收到304后用新的响应更新缓存信息，304里没有给出的校验值沿用旧的，
+     * 没有给出有效期的话沿用旧的有效时长，从这次响应开始重新计算
+     */
+    public HttpCacheInfo merge(HttpCacheInfo newer) {
+        HttpCacheInfo info = new HttpCacheInfo();
+        info.responseTime = newer.responseTime;
+        info.etag = newer.etag != null ? newer.etag : etag;
+        info.lastModified = newer.lastModified != null ? newer.lastModified : lastModified;
+        if (newer.explicitFreshness || freshnessLifetime < 0) {
+            info.explicitFreshness = newer.explicitFreshness;
+            info.freshnessLifetime = newer.explicitFreshness ? newer.freshnessLifetime : info.getHeuristicLifetime(newer.responseTime);
+        } else {
+            info.freshnessLifetime = freshnessLifetime;
+        }
+        info.expiresTime = newer.responseTime + info.freshnessLifetime;
+        return info;
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+        if (etag != null) {
+            writer.write(KEY_ETAG + ": " + etag + "\n");
+        }
+        if (lastModified != null) {
+            writer.write(KEY_LAST_MODIFIED + ": " + lastModified + "\n");
+        }
+        writer.write(KEY_EXPIRES_TIME + ": " + expiresTime + "\n");
+        writer.write(KEY_FRESHNESS_LIFETIME + ": " + freshnessLifetime + "\n");
+        writer.flush();
+    }
+
+    public static HttpCacheInfo readFrom(InputStream inputStream) throws IOException {
+        HttpCacheInfo info = new HttpCacheInfo();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int index = line.indexOf(": ");
+            if (index <= 0) {
+                continue;
+            }
+            String name = line.substring(0, index);
+            String value = line.substring(index + 2);
+            if (KEY_ETAG.equals(name)) {
+                info.etag = value;
+            } else if (KEY_LAST_MODIFIED.equals(name)) {
+                info.lastModified = value;
+            } else if (KEY_EXPIRES_TIME.equals(name)) {
+                try {
+                    info.expiresTime = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad expires time: " + value);
+                }
+            } else if (KEY_FRESHNESS_LIFETIME.equals(name)) {
+                try {
+                    info.freshnessLifetime = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad freshness lifetime: " + value);
+                }
+            }
+        }
+        return info;
+    }
+}
@@ -52,7 +52,7 @@ import java.util.zip.GZIPInputStream;
 import me.xiaopan.sketch.util.SketchUtils;
 
 @SuppressWarnings("deprecation")
-public class HttpClientStack implements HttpStack {
+public class HttpClientStack implements HttpStack.HeaderHttpStack {
     private static final int DEFAULT_WAIT_TIMEOUT = 60 * 1000;   // 默认从连接池中获取连接的最大等待时间
     private static final int DEFAULT_MAX_ROUTE_CONNECTIONS = 400;    // 默认每个路由的最大连接数
     private static final int DEFAULT_MAX_CONNECTIONS = 800;  // 默认最大连接数
@@ -188,6 +188,11 @@ public class HttpClientStack implements HttpStack {
 
     @Override
     public ImageHttpResponse getHttpResponse(String uri) throws IOException {
+        return getHttpResponse(uri, null);
+    }
+
+    @Override
+    public ImageHttpResponse getHttpResponse(String uri, Map<String, String> requestHeaders) throws IOException {
         HttpUriRequest httpUriRequest = new HttpGet(uri);
 
         if(userAgent != null){
@@ -204,6 +209,11 @@ public class HttpClientStack implements HttpStack {
                 httpUriRequest.setHeader(entry.getKey(), entry.getValue());
             }
         }
+        if (requestHeaders != null && requestHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                httpUriRequest.setHeader(entry.getKey(), entry.getValue());
+            }
+        }
 
         processRequest(uri, httpUriRequest);
 
@@ -271,7 +281,7 @@ public class HttpClientStack implements HttpStack {
         }
     }
 
-    private static class HttpClientHttpResponse implements ImageHttpResponse {
+    private static class HttpClientHttpResponse implements HeaderHttpResponse {
         @SuppressWarnings("deprecation")
         private HttpResponse httpResponse;
 
@@ -320,6 +330,12 @@ public class HttpClientStack implements HttpStack {
             return stringBuilder.toString();
         }
 
+        @Override
+        public String getResponseHeader(String name) {
+            Header header = httpResponse.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
         @Override
         public InputStream getContent() throws IOException {
             HttpEntity httpEntity = httpResponse.getEntity();
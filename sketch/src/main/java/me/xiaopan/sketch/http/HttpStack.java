@@ -121,4 +121,25 @@ public interface HttpStack extends Identifier {
 
         void releaseConnection();
     }
+
+    /**
+     * 可以给单次请求附带请求头的HttpStack，条件请求、断点续传、分段下载都需要它，
+     * 返回的响应必须实现{@link HeaderHttpResponse}，没有实现的HttpStack不会使用这些功能
+     */
+    interface HeaderHttpStack extends HttpStack {
+        /**
+         * 获取响应，附带只对本次请求有效的请求头，例如条件请求用的If-None-Match、If-Modified-Since
+         */
+        ImageHttpResponse getHttpResponse(String uri, Map<String, String> requestHeaders) throws IOException;
+    }
+
+    /**
+     * 可以读取单个响应头的响应
+     */
+    interface HeaderHttpResponse extends ImageHttpResponse {
+        /**
+         * 获取指定的响应头，没有的话返回null
+         */
+        String getResponseHeader(String name);
+    }
 }
@@ -28,7 +28,7 @@ import java.util.Map;
 
 import me.xiaopan.sketch.util.SketchUtils;
 
-public class HurlStack implements HttpStack {
+public class HurlStack implements HttpStack.HeaderHttpStack {
     protected String logName = "HurlStack";
 
     private int readTimeout = DEFAULT_READ_TIMEOUT;
@@ -130,6 +130,11 @@ public class HurlStack implements HttpStack {
 
     @Override
     public ImageHttpResponse getHttpResponse(String uri) throws IOException {
+        return getHttpResponse(uri, null);
+    }
+
+    @Override
+    public ImageHttpResponse getHttpResponse(String uri, Map<String, String> requestHeaders) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
 
         connection.setConnectTimeout(connectTimeout);
@@ -155,6 +160,11 @@ public class HurlStack implements HttpStack {
                 connection.setRequestProperty(entry.getKey(), entry.getValue());
             }
         }
+        if (requestHeaders != null && requestHeaders.size() > 0) {
+            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
 
         processRequest(uri, connection);
 
@@ -169,7 +179,7 @@ public class HurlStack implements HttpStack {
 
     }
 
-    private static class HttpUrlConnectionResponse implements ImageHttpResponse {
+    private static class HttpUrlConnectionResponse implements HeaderHttpResponse {
         private HttpURLConnection connection;
 
         HttpUrlConnectionResponse(HttpURLConnection connection) {
@@ -225,6 +235,11 @@ public class HurlStack implements HttpStack {
             return stringBuilder.toString();
         }
 
+        @Override
+        public String getResponseHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
         @Override
         public InputStream getContent() throws IOException {
             return connection.getInputStream();
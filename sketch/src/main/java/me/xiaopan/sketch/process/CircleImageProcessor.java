@@ -23,14 +23,17 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.feature.ResizeCalculator;
 import me.xiaopan.sketch.request.Resize;
 
 /**
  * 圆形图片处理器
  */
-public class CircleImageProcessor implements ImageProcessor {
+public class CircleImageProcessor implements PoolingImageProcessor {
     private static CircleImageProcessor instance;
+    private volatile String identifier;
 
     public static CircleImageProcessor getInstance() {
         if (instance == null) {
@@ -49,7 +52,16 @@ public class CircleImageProcessor implements ImageProcessor {
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的
+        if (getClass() != CircleImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
@@ -59,6 +71,11 @@ public class CircleImageProcessor implements ImageProcessor {
 
     @Override
     public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
+        return process(sketch, bitmap, resize, forceUseResize, lowQualityImage, null);
+    }
+
+    @Override
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
         if (bitmap == null || bitmap.isRecycled()) {
             return null;
         }
@@ -73,7 +90,7 @@ public class CircleImageProcessor implements ImageProcessor {
         }
 
         // 初始化画布
-        Bitmap output = Bitmap.createBitmap(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888);
+        Bitmap output = BitmapPoolUtils.getBitmapOrCreate(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888, bitmapPool);
         Canvas canvas = new Canvas(output);
         Paint paint = new Paint();
         paint.setAntiAlias(true);
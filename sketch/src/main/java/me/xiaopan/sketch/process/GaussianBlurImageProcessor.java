@@ -5,6 +5,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.request.Resize;
 
 /**
@@ -13,6 +15,7 @@ import me.xiaopan.sketch.request.Resize;
 public class GaussianBlurImageProcessor extends ResizeImageProcessor {
     private int radius = 15;
     private boolean isDarkHandle;
+    private volatile String identifier;
 
     /**
      * @param radius       模糊半径，取值为0到100，默认为15
@@ -55,21 +58,31 @@ public class GaussianBlurImageProcessor extends ResizeImageProcessor {
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的
+        if (getClass() != GaussianBlurImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
-    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
         // cut handle
-        Bitmap resizeBitmap = super.process(sketch, bitmap, resize, forceUseResize, lowQualityImage);
+        Bitmap resizeBitmap = super.process(sketch, bitmap, resize, forceUseResize, lowQualityImage, bitmapPool);
         if (resizeBitmap == null) {
             return null;
         }
 
-        // blur handle
-        Bitmap blurBitmap = fastGaussianBlur(resizeBitmap, radius, false);
-        if (resizeBitmap != bitmap) {
-            resizeBitmap.recycle();
+        // blur handle，resize出来的新图片如果可以直接修改就在原图上模糊，省得再复制一份
+        boolean canReuseInBitmap = resizeBitmap != bitmap && resizeBitmap.isMutable() && resizeBitmap.getConfig() == Bitmap.Config.ARGB_8888;
+        Bitmap blurBitmap = fastGaussianBlur(resizeBitmap, radius, canReuseInBitmap);
+        if (resizeBitmap != bitmap && blurBitmap != resizeBitmap) {
+            BitmapPoolUtils.freeBitmapToPool(resizeBitmap, bitmapPool);
         }
 
         // dark handle
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.process;
+
+import android.graphics.Bitmap;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.request.Resize;
+
+/**
+ * 可以复用Bitmap的图片处理器，加载时会优先调用带bitmapPool的process方法，新图片从bitmapPool中获取，省得每次都创建新的Bitmap
+ * <br>继承内置处理器时如果只重写了五个参数的process方法，加载时就会调用五个参数的process方法，保证重写的处理不会被跳过
+ */
+public interface PoolingImageProcessor extends ImageProcessor {
+    /**
+     * 处理，新图片优先从bitmapPool中获取，处理过程中产生的中间图片也要还给bitmapPool
+     * <br>注意：传进来的bitmap由调用者负责释放，这里不能回收或放入bitmapPool
+     *
+     * @param bitmapPool Bitmap复用池，为null时就直接创建新的Bitmap
+     */
+    Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool);
+}
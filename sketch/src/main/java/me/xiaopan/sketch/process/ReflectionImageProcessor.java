@@ -26,15 +26,18 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Shader.TileMode;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.feature.ResizeCalculator;
 import me.xiaopan.sketch.request.Resize;
 
 /**
  * 倒影图片处理器
  */
-public class ReflectionImageProcessor implements ImageProcessor {
+public class ReflectionImageProcessor implements PoolingImageProcessor {
     private int reflectionSpacing;
     private float reflectionScale;
+    private volatile String identifier;
 
     /**
      * 创建一个倒影图片处理器
@@ -53,7 +56,16 @@ public class ReflectionImageProcessor implements ImageProcessor {
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的
+        if (getClass() != ReflectionImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
@@ -68,6 +80,11 @@ public class ReflectionImageProcessor implements ImageProcessor {
 
     @Override
     public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
+        return process(sketch, bitmap, resize, forceUseResize, lowQualityImage, null);
+    }
+
+    @Override
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
         if (bitmap == null) {
             return null;
         }
@@ -81,27 +98,26 @@ public class ReflectionImageProcessor implements ImageProcessor {
         if (bitmap.getWidth() == result.imageWidth && bitmap.getHeight() == result.imageHeight) {
             srcBitmap = bitmap;
         } else {
-            srcBitmap = Bitmap.createBitmap(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888);
+            srcBitmap = BitmapPoolUtils.getBitmapOrCreate(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888, bitmapPool);
             Canvas canvas = new Canvas(srcBitmap);
             canvas.drawBitmap(bitmap, result.srcRect, result.destRect, null);
         }
 
         // 初始化画布
-        Bitmap bitmapWithReflection = Bitmap.createBitmap(result.imageWidth, (int) (result.imageHeight + reflectionSpacing + (result.imageHeight * reflectionScale)), lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888);
+        Bitmap bitmapWithReflection = BitmapPoolUtils.getBitmapOrCreate(result.imageWidth, (int) (result.imageHeight + reflectionSpacing + (result.imageHeight * reflectionScale)), lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888, bitmapPool);
         Canvas canvas = new Canvas(bitmapWithReflection);
 
         // 在上半部分绘制原图
         canvas.drawBitmap(srcBitmap, 0, 0, null);
 
-        // 在下半部分绘制倒影
+        // 在下半部分绘制倒影，直接通过Matrix翻转绘制，不再单独创建一张倒影图片
         Matrix matrix = new Matrix();
         matrix.preScale(1, -1);
-        Bitmap reflectionImage = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(), srcBitmap.getHeight(), matrix, false);
+        matrix.postTranslate(0, result.imageHeight * 2 + reflectionSpacing);
+        canvas.drawBitmap(srcBitmap, matrix, null);
         if (srcBitmap != bitmap) {
-            srcBitmap.recycle();
+            BitmapPoolUtils.freeBitmapToPool(srcBitmap, bitmapPool);
         }
-        canvas.drawBitmap(reflectionImage, 0, result.imageHeight + reflectionSpacing, null);
-        reflectionImage.recycle();
 
         // 在下半部分绘制半透明遮罩
         Paint paint = new Paint();
@@ -118,6 +134,7 @@ public class ReflectionImageProcessor implements ImageProcessor {
 
     public void setReflectionScale(float reflectionScale) {
         this.reflectionScale = reflectionScale;
+        this.identifier = null;
     }
 
     public int getReflectionSpacing() {
@@ -126,5 +143,6 @@ public class ReflectionImageProcessor implements ImageProcessor {
 
     public void setReflectionSpacing(int reflectionSpacing) {
         this.reflectionSpacing = reflectionSpacing;
+        this.identifier = null;
     }
 }
@@ -20,14 +20,26 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.feature.ResizeCalculator;
 import me.xiaopan.sketch.request.Resize;
 
-public class ResizeImageProcessor implements ImageProcessor {
+public class ResizeImageProcessor implements PoolingImageProcessor {
+    private volatile String identifier;
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的，省得每次生成缓存key都拼接一次字符串
+        if (getClass() != ResizeImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
@@ -37,6 +49,11 @@ public class ResizeImageProcessor implements ImageProcessor {
 
     @Override
     public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
+        return process(sketch, bitmap, resize, forceUseResize, lowQualityImage, null);
+    }
+
+    @Override
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
         if (bitmap == null || bitmap.isRecycled()) {
             return null;
         }
@@ -54,7 +71,7 @@ public class ResizeImageProcessor implements ImageProcessor {
         if (newBitmapConfig == null) {
             newBitmapConfig = lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888;
         }
-        Bitmap newBitmap = Bitmap.createBitmap(result.imageWidth, result.imageHeight, newBitmapConfig);
+        Bitmap newBitmap = BitmapPoolUtils.getBitmapOrCreate(result.imageWidth, result.imageHeight, newBitmapConfig, bitmapPool);
         Canvas canvas = new Canvas(newBitmap);
         canvas.drawBitmap(bitmap, result.srcRect, result.destRect, null);
         return newBitmap;
@@ -17,9 +17,14 @@
 package me.xiaopan.sketch.process;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.request.Resize;
 
 /**
@@ -27,25 +32,47 @@ import me.xiaopan.sketch.request.Resize;
  */
 public class RotateImageProcessor extends ResizeImageProcessor {
     private int degrees;
+    private volatile String identifier;
 
     public RotateImageProcessor(int degrees) {
         this.degrees = degrees;
     }
 
+    public int getDegrees() {
+        return degrees;
+    }
+
     @Override
-    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
-        Bitmap resizeBitmap = super.process(sketch, bitmap, resize, forceUseResize, lowQualityImage);
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
+        Bitmap resizeBitmap = super.process(sketch, bitmap, resize, forceUseResize, lowQualityImage, bitmapPool);
 
-        if (degrees == 0) {
+        if (resizeBitmap == null || degrees == 0) {
             return resizeBitmap;
         }
 
         Matrix matrix = new Matrix();
         matrix.setRotate(degrees);
-        Bitmap rotateBitmap = Bitmap.createBitmap(resizeBitmap, 0, 0, resizeBitmap.getWidth(), resizeBitmap.getHeight(), matrix, true);
+
+        // 计算旋转后的尺寸并平移回画布内
+        RectF newRect = new RectF(0, 0, resizeBitmap.getWidth(), resizeBitmap.getHeight());
+        matrix.mapRect(newRect);
+        matrix.postTranslate(-newRect.left, -newRect.top);
+
+        // 不是90度的倍数时四个角会露出来，必须得有透明度
+        boolean rectStaysRect = matrix.rectStaysRect();
+        Bitmap.Config config = resizeBitmap.getConfig();
+        if (config == null || !rectStaysRect) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap rotateBitmap = BitmapPoolUtils.getBitmapOrCreate(Math.round(newRect.width()), Math.round(newRect.height()), config, bitmapPool);
+        Canvas canvas = new Canvas(rotateBitmap);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setAntiAlias(!rectStaysRect);
+        canvas.drawBitmap(resizeBitmap, matrix, paint);
 
         if (resizeBitmap != bitmap) {
-            resizeBitmap.recycle();
+            BitmapPoolUtils.freeBitmapToPool(resizeBitmap, bitmapPool);
         }
 
         return rotateBitmap;
@@ -53,7 +80,16 @@ public class RotateImageProcessor extends ResizeImageProcessor {
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的
+        if (getClass() != RotateImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
@@ -25,14 +25,17 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.feature.ResizeCalculator;
 import me.xiaopan.sketch.request.Resize;
 
 /**
  * 圆角图片处理器
  */
-public class RoundedCornerImageProcessor implements ImageProcessor {
+public class RoundedCornerImageProcessor implements PoolingImageProcessor {
     private float[] cornerRadius;
+    private volatile String identifier;
 
     public RoundedCornerImageProcessor(float topLeftRadius, float topRightRadius, float bottomLeftRadius, float bottomRightRadius) {
         cornerRadius = new float[]{topLeftRadius, topLeftRadius, topRightRadius, topRightRadius, bottomLeftRadius, bottomLeftRadius, bottomRightRadius, bottomRightRadius};
@@ -44,7 +47,16 @@ public class RoundedCornerImageProcessor implements ImageProcessor {
 
     @Override
     public String getIdentifier() {
-        return appendIdentifier(new StringBuilder()).toString();
+        // 子类可能有自己的参数，只缓存本类的
+        if (getClass() != RoundedCornerImageProcessor.class) {
+            return appendIdentifier(new StringBuilder()).toString();
+        }
+        String identifier = this.identifier;
+        if (identifier == null) {
+            identifier = appendIdentifier(new StringBuilder()).toString();
+            this.identifier = identifier;
+        }
+        return identifier;
     }
 
     @Override
@@ -68,6 +80,11 @@ public class RoundedCornerImageProcessor implements ImageProcessor {
 
     @Override
     public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage) {
+        return process(sketch, bitmap, resize, forceUseResize, lowQualityImage, null);
+    }
+
+    @Override
+    public Bitmap process(Sketch sketch, Bitmap bitmap, Resize resize, boolean forceUseResize, boolean lowQualityImage, BitmapPool bitmapPool) {
         if (bitmap == null || bitmap.isRecycled()) {
             return null;
         }
@@ -77,7 +94,7 @@ public class RoundedCornerImageProcessor implements ImageProcessor {
             return bitmap;
         }
 
-        Bitmap output = Bitmap.createBitmap(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888);
+        Bitmap output = BitmapPoolUtils.getBitmapOrCreate(result.imageWidth, result.imageHeight, lowQualityImage ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888, bitmapPool);
         Canvas canvas = new Canvas(output);
         Paint paint = new Paint();
         paint.setAntiAlias(true);
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import me.xiaopan.sketch.cache.CacheKey;
+import me.xiaopan.sketch.drawable.RecycleBitmapDrawable;
+
+/**
+ * 合并同一个id的解码
+ * <br>第一个要解码的显示请求负责解码，之后同一个id的显示请求只是登记为等待者，马上让出本地线程，
+ * 解码完成后直接拿到同一个RecycleBitmapDrawable，各自增加等待显示的引用计数
+ * <br>解码失败了等待者也跟着失败；解码的请求被取消了或者结果不能共用（例如GIF），等待者再各自去加载
+ */
+class DecodeCoalescer {
+    private final Map<CacheKey, List<DisplayRequest>> waitersMap = new HashMap<CacheKey, List<DisplayRequest>>();
+
+    /**
+     * 尝试等待同一个id正在进行的解码
+     *
+     * @return true：已经有请求在解码了，request作为等待者等着就行了；false：request负责解码，完成后必须调用finish()
+     */
+    synchronized boolean join(DisplayRequest request) {
+        CacheKey key = request.getAttrs().getKey();
+        List<DisplayRequest> waiters = waitersMap.get(key);
+        if (waiters != null) {
+            waiters.add(request);
+            return true;
+        }
+
+        waitersMap.put(key, new LinkedList<DisplayRequest>());
+        return false;
+    }
+
+    /**
+     * 解码结束了，把结果交给等待者
+     *
+     * @param displayResult null：没有得到结果
+     */
+    void finish(DisplayRequest decodeRequest, DisplayResult displayResult) {
+        List<DisplayRequest> waiters;
+        synchronized (this) {
+            waiters = waitersMap.remove(decodeRequest.getAttrs().getKey());
+        }
+        if (waiters == null || waiters.isEmpty()) {
+            return;
+        }
+
+        if (displayResult != null && displayResult.getDrawable() instanceof RecycleBitmapDrawable) {
+            // 交接期间标记为等待显示，防止被回收
+            RecycleBitmapDrawable drawable = (RecycleBitmapDrawable) displayResult.getDrawable();
+            drawable.setIsWaitDisplay("decodeMerge", true);
+            boolean handedOver = false;
+            try {
+                if (!drawable.isRecycled()) {
+                    for (DisplayRequest waiter : waiters) {
+                        waiter.mergeCompleted(drawable, displayResult.getMimeType());
+                    }
+                    handedOver = true;
+                }
+            } finally {
+                drawable.setIsWaitDisplay("decodeMerge", false);
+            }
+            if (handedOver) {
+                return;
+            }
+        } else if (displayResult == null && decodeRequest.getFailedCause() != null) {
+            FailedCause failedCause = decodeRequest.getFailedCause();
+            for (DisplayRequest waiter : waiters) {
+                waiter.mergeFailed(failedCause);
+            }
+            return;
+        }
+
+        // 结果不能共用的话再合并也没用，各自加载
+        boolean allowMerge = displayResult == null || displayResult.getDrawable() instanceof RecycleBitmapDrawable;
+        for (DisplayRequest waiter : waiters) {
+            waiter.mergeRetry(allowMerge);
+        }
+    }
+}
@@ -152,6 +152,24 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 按照HTTP缓存协议检查磁盘缓存是否过期，过期了先用旧的，同时在后台更新
+     */
+    @SuppressWarnings("unused")
+    public DisplayHelper revalidateDiskCache() {
+        displayOptions.setRevalidateDiskCache(true);
+        return this;
+    }
+
+    /**
+     * 服务器支持Range的话把大图片分成几段同时下载
+     */
+    @SuppressWarnings("unused")
+    public DisplayHelper segmentedDownload() {
+        displayOptions.setSegmentedDownload(true);
+        return this;
+    }
+
     /**
      * 设置请求Level
      */
@@ -251,6 +269,15 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 将经过ImageProcessor处理后的图片缓存到磁盘
+     */
+    @SuppressWarnings("unused")
+    public DisplayHelper cacheProcessedImageInDisk() {
+        displayOptions.setCacheProcessedImageInDisk(true);
+        return this;
+    }
+
     /**
      * 禁用内存缓存
      */
@@ -260,6 +287,15 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 设置内存缓存分区，只有使用PartitionedMemoryCache时才有效
+     */
+    @SuppressWarnings("unused")
+    public DisplayHelper memoryCachePartition(String memoryCachePartition) {
+        displayOptions.setMemoryCachePartition(memoryCachePartition);
+        return this;
+    }
+
     /**
      * 设置图片显示器，在加载完成后会调用此显示器来显示图片
      */
@@ -524,9 +560,8 @@ public class DisplayHelper {
         }
 
         // 根据URI和显示选项生成请求ID
-        if (requestAttrs.getId() == null) {
-            requestAttrs.setId(requestAttrs.generateId(displayOptions));
-        }
+        requestAttrs.generateKey(displayOptions);
+        requestAttrs.getKey().setPartition(displayOptions.getMemoryCachePartition());
     }
 
     /**
@@ -599,7 +634,7 @@ public class DisplayHelper {
 
     private boolean checkMemoryCache() {
         if (!displayOptions.isDisableCacheInMemory()) {
-            Drawable cacheDrawable = sketch.getConfiguration().getMemoryCache().get(requestAttrs.getId());
+            Drawable cacheDrawable = sketch.getConfiguration().getMemoryCache().get(requestAttrs.getKey());
             if (cacheDrawable != null) {
                 RecycleDrawable recycleDrawable = (RecycleDrawable) cacheDrawable;
                 if (!recycleDrawable.isRecycled()) {
@@ -615,7 +650,7 @@ public class DisplayHelper {
                     }
                     return false;
                 } else {
-                    sketch.getConfiguration().getMemoryCache().remove(requestAttrs.getId());
+                    sketch.getConfiguration().getMemoryCache().remove(requestAttrs.getKey());
                     if (Sketch.isDebugMode()) {
                         Log.e(Sketch.TAG, SketchUtils.concat(logName,
                                 " - ", "memory cache drawable recycled",
@@ -710,7 +745,7 @@ public class DisplayHelper {
     private DisplayRequest checkRepeatRequest() {
         DisplayRequest potentialRequest = BindFixedRecycleBitmapDrawable.findDisplayRequest(imageViewInterface);
         if (potentialRequest != null && !potentialRequest.isFinished()) {
-            if (requestAttrs.getId().equals(potentialRequest.getAttrs().getId())) {
+            if (requestAttrs.getKey().equals(potentialRequest.getAttrs().getKey())) {
                 if (Sketch.isDebugMode()) {
                     Log.d(Sketch.TAG, SketchUtils.concat(logName,
                             " - ", "don't need to cancel",
@@ -31,6 +31,7 @@ public class DisplayOptions extends LoadOptions {
     private ImageHolder failedImageHolder;
     private ImageHolder pauseDownloadImageHolder;
     private boolean resizeByFixedSize;
+    private String memoryCachePartition;
 
     public DisplayOptions() {
         reset();
@@ -46,6 +47,18 @@ public class DisplayOptions extends LoadOptions {
         return this;
     }
 
+    @Override
+    public DisplayOptions setRevalidateDiskCache(boolean revalidateDiskCache) {
+        super.setRevalidateDiskCache(revalidateDiskCache);
+        return this;
+    }
+
+    @Override
+    public DisplayOptions setSegmentedDownload(boolean segmentedDownload) {
+        super.setSegmentedDownload(segmentedDownload);
+        return this;
+    }
+
     @Override
     public DisplayOptions setRequestLevel(RequestLevel requestLevel) {
         super.setRequestLevel(requestLevel);
@@ -120,6 +133,12 @@ public class DisplayOptions extends LoadOptions {
         return this;
     }
 
+    @Override
+    public DisplayOptions setCacheProcessedImageInDisk(boolean cacheProcessedImageInDisk) {
+        super.setCacheProcessedImageInDisk(cacheProcessedImageInDisk);
+        return this;
+    }
+
     /**
      * 是否禁用内存缓存
      */
@@ -237,6 +256,21 @@ public class DisplayOptions extends LoadOptions {
         return this;
     }
 
+    /**
+     * 获取内存缓存分区
+     */
+    public String getMemoryCachePartition() {
+        return memoryCachePartition;
+    }
+
+    /**
+     * 设置内存缓存分区，只有使用PartitionedMemoryCache时才有效，例如列表缩略图和详情页大图分别放在不同的分区
+     */
+    public DisplayOptions setMemoryCachePartition(String memoryCachePartition) {
+        this.memoryCachePartition = memoryCachePartition;
+        return this;
+    }
+
     @Override
     public void reset() {
         super.reset();
@@ -247,6 +281,7 @@ public class DisplayOptions extends LoadOptions {
         loadingImageHolder = null;
         failedImageHolder = null;
         pauseDownloadImageHolder = null;
+        memoryCachePartition = null;
     }
 
     /**
@@ -265,6 +300,7 @@ public class DisplayOptions extends LoadOptions {
         loadingImageHolder = options.loadingImageHolder;
         failedImageHolder = options.failedImageHolder;
         pauseDownloadImageHolder = options.pauseDownloadImageHolder;
+        memoryCachePartition = options.memoryCachePartition;
     }
 
     /**
@@ -300,5 +336,9 @@ public class DisplayOptions extends LoadOptions {
         if (!resizeByFixedSize) {
             resizeByFixedSize = options.isResizeByFixedSize();
         }
+
+        if (memoryCachePartition == null) {
+            memoryCachePartition = options.getMemoryCachePartition();
+        }
     }
 }
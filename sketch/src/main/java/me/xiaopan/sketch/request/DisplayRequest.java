@@ -16,12 +16,23 @@
 
 package me.xiaopan.sketch.request;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.cache.CacheKey;
+import me.xiaopan.sketch.cache.MemoryCache;
+import me.xiaopan.sketch.cache.MemoryVariantIndex;
+import me.xiaopan.sketch.decode.DecodeResult;
 import me.xiaopan.sketch.drawable.FixedRecycleBitmapDrawable;
 import me.xiaopan.sketch.drawable.RecycleBitmapDrawable;
 import me.xiaopan.sketch.drawable.RecycleDrawable;
@@ -37,6 +48,8 @@ public class DisplayRequest extends LoadRequest {
     private DisplayListener displayListener;
 
     private DisplayResult displayResult;
+    private boolean mergeDecodeDisabled;
+    private List<CacheKey> derivableVariantKeys;
 
     public DisplayRequest(
             Sketch sketch, RequestAttrs requestAttrs,
@@ -129,20 +142,90 @@ public class DisplayRequest extends LoadRequest {
             return;
         }
 
-        // 要使用内存缓存就必须上锁
-        ReentrantLock memoryCacheEditLock = null;
-        if (!displayOptions.isDisableCacheInDisk()) {
-            setStatus(Request.Status.GET_MEMORY_CACHE_EDIT_LOCK);
-            memoryCacheEditLock = getSketch().getConfiguration().getMemoryCache().getEditLock(getAttrs().getId());
-            memoryCacheEditLock.lock();
+        // 同一个id已经有请求在解码了就等着它的结果，马上让出本地线程；
+        // 分发前提前来试的不参与合并，没能得到的话它会回去接着分发，不能让合并在它后面的请求都跟着重试
+        DecodeCoalescer decodeCoalescer = null;
+        if (canMergeDecode() && !isDeriveProbe()) {
+            decodeCoalescer = getSketch().getConfiguration().getRequestExecutor().getDecodeCoalescer();
+            if (decodeCoalescer.join(this)) {
+                setStatus(Status.WAIT_LOAD);
+                if (Sketch.isDebugMode()) {
+                    Log.d(Sketch.TAG, SketchUtils.concat(getLogName(),
+                            " - ", "runLoad",
+                            " - ", "merge decode",
+                            " - ", getAttrs().getId()));
+                }
+                return;
+            }
+        }
+
+        try {
+            // 要使用内存缓存就必须上锁
+            ReentrantLock memoryCacheEditLock = null;
+            if (!displayOptions.isDisableCacheInDisk()) {
+                setStatus(Request.Status.GET_MEMORY_CACHE_EDIT_LOCK);
+                memoryCacheEditLock = getSketch().getConfiguration().getMemoryCache().getEditLock(getAttrs().getKey());
+                memoryCacheEditLock.lock();
+            }
+
+            try {
+                load();
+            } finally {
+                // 解锁，load抛异常也不能让锁一直占着
+                if (memoryCacheEditLock != null) {
+                    memoryCacheEditLock.unlock();
+                }
+            }
+        } finally {
+            // 不管结果如何都要通知等待者，不然它们就永远等下去了
+            if (decodeCoalescer != null) {
+                decodeCoalescer.finish(this, displayResult);
+            }
+        }
+    }
+
+    /**
+     * 能不能和同一个id的其它显示请求合并解码，结果要放进内存缓存才能共用
+     */
+    private boolean canMergeDecode() {
+        return !isSync() && !mergeDecodeDisabled
+                && !displayOptions.isDisableCacheInMemory() && !getAttrs().getKey().isEmpty();
+    }
+
+    /**
+     * 合并的解码完成了，和解码的请求共用同一个drawable
+     */
+    void mergeCompleted(RecycleBitmapDrawable drawable, String mimeType) {
+        if (isCanceled()) {
+            return;
         }
+        displayResult = new DisplayResult(drawable, ImageFrom.MEMORY_CACHE, mimeType);
+        displayCompleted();
+    }
 
-        load();
+    /**
+     * 合并的解码失败了
+     */
+    void mergeFailed(FailedCause failedCause) {
+        if (isCanceled()) {
+            return;
+        }
+        failed(failedCause);
+    }
 
-        // 解锁
-        if (memoryCacheEditLock != null) {
-            memoryCacheEditLock.unlock();
+    /**
+     * 合并的解码没有得到能共用的结果，重新提交自己加载
+     *
+     * @param allowMerge 是否还可以再和其它请求合并
+     */
+    void mergeRetry(boolean allowMerge) {
+        if (isCanceled()) {
+            return;
         }
+        if (!allowMerge) {
+            mergeDecodeDisabled = true;
+        }
+        submitRunLoad();
     }
 
     private void load(){
@@ -157,7 +240,7 @@ public class DisplayRequest extends LoadRequest {
         // 检查内存缓存
         if (!displayOptions.isDisableCacheInMemory()) {
             setStatus(Status.CHECK_MEMORY_CACHE);
-            Drawable cacheDrawable = getSketch().getConfiguration().getMemoryCache().get(getAttrs().getId());
+            Drawable cacheDrawable = getSketch().getConfiguration().getMemoryCache().get(getAttrs().getKey());
             if (cacheDrawable != null) {
                 RecycleDrawable recycleDrawable = (RecycleDrawable) cacheDrawable;
                 if (!recycleDrawable.isRecycled()) {
@@ -172,7 +255,7 @@ public class DisplayRequest extends LoadRequest {
                     displayCompleted();
                     return;
                 } else {
-                    getSketch().getConfiguration().getMemoryCache().remove(getAttrs().getId());
+                    getSketch().getConfiguration().getMemoryCache().remove(getAttrs().getKey());
                     if (Sketch.isDebugMode()) {
                         Log.e(Sketch.TAG, SketchUtils.concat(getLogName(),
                                 " - ", "runLoad", "memory cache drawable recycled",
@@ -187,6 +270,98 @@ public class DisplayRequest extends LoadRequest {
         super.runLoad();
     }
 
+    /**
+     * 找到的其它尺寸留着给deriveFromMemory()用，省得再找一次
+     */
+    @Override
+    protected boolean canDeriveFromMemory() {
+        if (displayOptions.isDisableCacheInMemory() || getAttrs().getKey().isEmpty()) {
+            return false;
+        }
+        derivableVariantKeys = getSketch().getConfiguration().getMemoryVariantIndex().find(getAttrs().getKey());
+        return derivableVariantKeys != null;
+    }
+
+    /**
+     * 内存缓存中有同一张图片更大的尺寸的话就缩小一下直接用，省掉读磁盘和解码
+     */
+    @Override
+    protected DecodeResult deriveFromMemory() {
+        if (displayOptions.isDisableCacheInMemory() || getAttrs().getKey().isEmpty()) {
+            return null;
+        }
+
+        MemoryCache memoryCache = getSketch().getConfiguration().getMemoryCache();
+        MemoryVariantIndex memoryVariantIndex = getSketch().getConfiguration().getMemoryVariantIndex();
+        List<CacheKey> variantKeys = derivableVariantKeys;
+        if (variantKeys != null) {
+            derivableVariantKeys = null;
+        } else {
+            variantKeys = memoryVariantIndex.find(getAttrs().getKey());
+        }
+        if (variantKeys == null) {
+            return null;
+        }
+
+        for (CacheKey variantKey : variantKeys) {
+            Drawable variantDrawable = memoryCache.get(variantKey);
+            if (!(variantDrawable instanceof RecycleBitmapDrawable)) {
+                memoryVariantIndex.remove(variantKey);
+                continue;
+            }
+
+            // 缩放期间标记为等待显示，防止被回收
+            RecycleBitmapDrawable recycleDrawable = (RecycleBitmapDrawable) variantDrawable;
+            recycleDrawable.setIsWaitDisplay("deriveFromMemory", true);
+            try {
+                if (recycleDrawable.isRecycled()) {
+                    memoryVariantIndex.remove(variantKey);
+                    continue;
+                }
+
+                Bitmap newBitmap = scaleToMaxSize(recycleDrawable.getBitmap());
+                if (newBitmap != null) {
+                    if (Sketch.isDebugMode()) {
+                        Log.d(Sketch.TAG, SketchUtils.concat(getLogName(),
+                                " - ", "deriveFromMemory",
+                                " - ", "from", " ", recycleDrawable.getInfo(),
+                                " - ", "newBitmap", " ", RecycleBitmapDrawable.getInfo(newBitmap, recycleDrawable.getMimeType()),
+                                " - ", getAttrs().getId()));
+                    }
+                    DecodeResult decodeResult = new DecodeResult(recycleDrawable.getMimeType(), newBitmap);
+                    decodeResult.setImageFrom(ImageFrom.MEMORY_CACHE);
+                    return decodeResult;
+                }
+            } finally {
+                recycleDrawable.setIsWaitDisplay("deriveFromMemory", false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把给定的Bitmap按比例缩小到maxSize以内，得到一张新的Bitmap
+     */
+    private Bitmap scaleToMaxSize(Bitmap sourceBitmap) {
+        if (sourceBitmap == null || sourceBitmap.isRecycled()) {
+            return null;
+        }
+
+        CacheKey key = getAttrs().getKey();
+        float scale = Math.min(1f, Math.min(
+                key.getMaxSizeWidth() / (float) sourceBitmap.getWidth(),
+                key.getMaxSizeHeight() / (float) sourceBitmap.getHeight()));
+        int newWidth = Math.max(1, Math.round(sourceBitmap.getWidth() * scale));
+        int newHeight = Math.max(1, Math.round(sourceBitmap.getHeight() * scale));
+
+        BitmapPool bitmapPool = getSketch().getConfiguration().getBitmapPool();
+        Bitmap newBitmap = BitmapPoolUtils.getBitmapOrCreate(newWidth, newHeight, sourceBitmap.getConfig(), bitmapPool);
+        Canvas canvas = new Canvas(newBitmap);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        canvas.drawBitmap(sourceBitmap, null, new Rect(0, 0, newWidth, newHeight), paint);
+        return newBitmap;
+    }
+
     @Override
     protected void loadCompleted() {
         LoadResult loadResult = getLoadResult();
@@ -209,10 +384,12 @@ public class DisplayRequest extends LoadRequest {
             }
 
             // 包装Bitmap并放入内存缓存池
-            RecycleBitmapDrawable bitmapDrawable = new RecycleBitmapDrawable(loadResult.getBitmap());
+            RecycleBitmapDrawable bitmapDrawable = new RecycleBitmapDrawable(loadResult.getBitmap(), getSketch().getConfiguration().getBitmapPool());
             bitmapDrawable.setMimeType(loadResult.getMimeType());
-            if (!displayOptions.isDisableCacheInMemory() && getAttrs().getId() != null) {
-                getSketch().getConfiguration().getMemoryCache().put(getAttrs().getId(), bitmapDrawable);
+            if (!displayOptions.isDisableCacheInMemory() && !getAttrs().getKey().isEmpty()) {
+                getSketch().getConfiguration().getMemoryCache().put(getAttrs().getKey(), bitmapDrawable);
+                getSketch().getConfiguration().getMemoryVariantIndex().put(getAttrs().getKey(),
+                        loadResult.getBitmap().getWidth(), loadResult.getBitmap().getHeight());
             }
 
             displayResult = new DisplayResult(bitmapDrawable, loadResult.getImageFrom(), loadResult.getMimeType());
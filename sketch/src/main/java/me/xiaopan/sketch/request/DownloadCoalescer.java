@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.request;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 合并同一个地址的下载
+ * <br>第一个要下载的请求成为领头的，提交到网络线程去下载；之后同一个地址的请求只是登记为跟随者，
+ * 不占用任何线程，领头的下载过程中的进度会同步给它们，下载结束后再把结果交给它们
+ * <br>跟随者取消了不影响领头的，领头的取消了只要还有跟随者在等，下载就会继续，全都取消了下载才会停止
+ */
+class DownloadCoalescer {
+    private static final String LOG_NAME = "DownloadCoalescer";
+
+    private final Map<String, Flight> flightMap = new HashMap<String, Flight>();
+
+    /**
+     * 尝试跟随同一个地址正在进行的下载
+     *
+     * @return true：已经有请求在下载了，request作为跟随者等着就行了；false：request成为领头的，需要自己下载
+     */
+    synchronized boolean follow(DownloadRequest request) {
+        String key = request.getAttrs().getUri();
+        Flight flight = flightMap.get(key);
+        if (flight != null) {
+            flight.followers.add(request);
+            return true;
+        }
+
+        flight = new Flight(key, request);
+        flightMap.put(key, flight);
+        request.setFlight(flight);
+        return false;
+    }
+
+    /**
+     * 领头的请求下载结束了，把结果交给跟随者
+     *
+     * @param result null：下载失败了
+     */
+    void finish(DownloadRequest leader, DownloadResult result) {
+        Flight flight = leader.getFlight();
+        if (flight == null) {
+            return;
+        }
+        leader.setFlight(null);
+
+        List<DownloadRequest> followers = new LinkedList<DownloadRequest>();
+        synchronized (this) {
+            if (flightMap.get(flight.key) == flight) {
+                flightMap.remove(flight.key);
+            }
+            for (DownloadRequest follower : flight.followers) {
+                if (!follower.isFinished()) {
+                    followers.add(follower);
+                }
+            }
+            flight.followers.clear();
+        }
+        if (followers.isEmpty()) {
+            return;
+        }
+
+        if (result != null) {
+            for (DownloadRequest follower : followers) {
+                follower.followCompleted(result);
+            }
+        } else if (leader.isCanceled()) {
+            // 领头的不要了，下载可能是因此中断的，换一个跟随者接着下载
+            promote(flight.key, followers);
+        } else {
+            for (DownloadRequest follower : followers) {
+                follower.followFailed();
+            }
+        }
+    }
+
+    private void promote(String key, List<DownloadRequest> followers) {
+        DownloadRequest newLeader;
+        synchronized (this) {
+            Flight flight = flightMap.get(key);
+            if (flight != null) {
+                // 这期间已经有新的请求开始下载了，跟着它就行了
+                flight.followers.addAll(followers);
+                return;
+            }
+
+            newLeader = followers.remove(0);
+            flight = new Flight(key, newLeader);
+            flight.followers.addAll(followers);
+            flightMap.put(key, flight);
+            newLeader.setFlight(flight);
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.d(Sketch.TAG, SketchUtils.concat(LOG_NAME,
+                    " - ", "promote",
+                    " - ", "followerCount=", followers.size(),
+                    " - ", newLeader.getAttrs().getId()));
+        }
+        newLeader.submitRunDownload();
+    }
+
+    /**
+     * 一次正在进行的下载
+     */
+    static class Flight {
+        private final String key;
+        private final DownloadRequest leader;
+        // 领头的在网络线程里会频繁遍历，所以用写时复制的列表
+        private final List<DownloadRequest> followers = new CopyOnWriteArrayList<DownloadRequest>();
+
+        Flight(String key, DownloadRequest leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        /**
+         * 领头的和跟随者是不是都取消了
+         */
+        boolean isAllCanceled() {
+            if (!leader.isCanceled()) {
+                return false;
+            }
+            for (DownloadRequest follower : followers) {
+                if (!follower.isCanceled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 把进度同步给跟随者
+         */
+        void updateProgress(int totalLength, int completedLength) {
+            for (DownloadRequest follower : followers) {
+                if (!follower.isFinished()) {
+                    follower.followProgress(totalLength, completedLength);
+                }
+            }
+        }
+    }
+}
@@ -54,6 +54,24 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 按照HTTP缓存协议检查磁盘缓存是否过期，过期了先用旧的，同时在后台更新
+     */
+    @SuppressWarnings("unused")
+    public DownloadHelper revalidateDiskCache() {
+        downloadOptions.setRevalidateDiskCache(true);
+        return this;
+    }
+
+    /**
+     * 服务器支持Range的话把大图片分成几段同时下载
+     */
+    @SuppressWarnings("unused")
+    public DownloadHelper segmentedDownload() {
+        downloadOptions.setSegmentedDownload(true);
+        return this;
+    }
+
     /**
      * 设置请求Level
      */
@@ -146,9 +164,7 @@ public class DownloadHelper {
         // 暂停下载对于下载请求并不起作用，就相当于暂停加载对加载请求并不起作用一样，因此这里不予处理
 
         // 根据URI和下载选项生成请求ID
-        if (requestAttrs.getId() == null) {
-            requestAttrs.setId(requestAttrs.generateId(downloadOptions));
-        }
+        requestAttrs.generateKey(downloadOptions);
     }
 
     private boolean checkUri() {
@@ -16,11 +16,15 @@
 
 package me.xiaopan.sketch.request;
 
+import me.xiaopan.sketch.cache.CacheKey;
+
 /**
  * 下载选项
  */
 public class DownloadOptions {
     private boolean disableCacheInDisk;
+    private boolean revalidateDiskCache;
+    private boolean segmentedDownload;
     private RequestLevel requestLevel;
     private RequestLevelFrom requestLevelFrom;
 
@@ -48,6 +52,37 @@ public class DownloadOptions {
         return this;
     }
 
+    /**
+     * 是否按照服务器返回的Cache-Control、ETag、Last-Modified检查磁盘缓存是否过期
+     */
+    public boolean isRevalidateDiskCache() {
+        return revalidateDiskCache;
+    }
+
+    /**
+     * 设置是否按照服务器返回的Cache-Control、ETag、Last-Modified检查磁盘缓存是否过期，
+     * 过期了依然先用旧的缓存，同时在后台发起条件请求更新缓存
+     */
+    public DownloadOptions setRevalidateDiskCache(boolean revalidateDiskCache) {
+        this.revalidateDiskCache = revalidateDiskCache;
+        return this;
+    }
+
+    /**
+     * 是否分段并行下载
+     */
+    public boolean isSegmentedDownload() {
+        return segmentedDownload;
+    }
+
+    /**
+     * 设置是否分段并行下载，服务器支持Range的话大图片会分成几段同时下载，适合延迟高的网络，需要使用磁盘缓存
+     */
+    public DownloadOptions setSegmentedDownload(boolean segmentedDownload) {
+        this.segmentedDownload = segmentedDownload;
+        return this;
+    }
+
     /**
      * 获取请求Level
      */
@@ -83,6 +118,8 @@ public class DownloadOptions {
      */
     public void reset() {
         disableCacheInDisk = false;
+        revalidateDiskCache = false;
+        segmentedDownload = false;
         requestLevel = null;
         requestLevelFrom = null;
     }
@@ -96,6 +133,8 @@ public class DownloadOptions {
         }
 
         disableCacheInDisk = options.disableCacheInDisk;
+        revalidateDiskCache = options.revalidateDiskCache;
+        segmentedDownload = options.segmentedDownload;
         requestLevel = options.requestLevel;
         requestLevelFrom = options.requestLevelFrom;
     }
@@ -112,6 +151,14 @@ public class DownloadOptions {
             disableCacheInDisk = options.disableCacheInDisk;
         }
 
+        if (!revalidateDiskCache) {
+            revalidateDiskCache = options.revalidateDiskCache;
+        }
+
+        if (!segmentedDownload) {
+            segmentedDownload = options.segmentedDownload;
+        }
+
         if (requestLevel == null) {
             requestLevel = options.requestLevel;
             requestLevelFrom = null;
@@ -124,7 +171,10 @@ public class DownloadOptions {
         }
     }
 
-    public StringBuilder appendOptionsToId(StringBuilder builder) {
-        return builder;
+    /**
+     * 将影响结果的选项写入到key中
+     */
+    public CacheKey appendOptionsToKey(CacheKey key) {
+        return key;
     }
 }
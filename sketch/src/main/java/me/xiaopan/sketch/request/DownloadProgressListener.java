@@ -24,7 +24,7 @@ public interface DownloadProgressListener {
     /**
      * 更新下载进度
      *
-     * @param totalLength     总长度
+     * @param totalLength     总长度，-1表示服务器没有给出长度（例如chunked），这时只能显示不确定的进度，下载完成时会再回调一次，总长度等于已完成长度
      * @param completedLength 已完成长度
      */
     void onUpdateDownloadProgress(int totalLength, int completedLength);
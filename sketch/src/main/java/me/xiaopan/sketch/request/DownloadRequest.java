@@ -19,17 +19,24 @@ package me.xiaopan.sketch.request;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.feature.DownloadResumer;
+import me.xiaopan.sketch.feature.HttpCacheRevalidator;
+import me.xiaopan.sketch.feature.SegmentedDownloader;
+import me.xiaopan.sketch.http.HttpCacheInfo;
 import me.xiaopan.sketch.http.HttpStack;
 import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.PoolingByteArrayOutputStream;
 import me.xiaopan.sketch.util.SketchUtils;
 
 /**
@@ -41,6 +48,7 @@ public class DownloadRequest extends AsyncRequest {
     private DownloadProgressListener downloadProgressListener;
 
     private DownloadResult downloadResult;
+    private DownloadCoalescer.Flight flight;
 
     public DownloadRequest(
             Sketch sketch, RequestAttrs requestAttrs,
@@ -122,6 +130,7 @@ public class DownloadRequest extends AsyncRequest {
                             " - ", "diskCache",
                             " - ", getAttrs().getId()));
                 }
+                onDiskCacheHit();
                 downloadResult = new DownloadResult(diskCacheEntry, false);
                 downloadComplete();
                 return;
@@ -134,6 +143,21 @@ public class DownloadRequest extends AsyncRequest {
             return;
         }
 
+        // 同一个地址已经在下载了就跟着它，不用再占一个网络线程去等磁盘缓存编辑锁
+        if (!options.isDisableCacheInDisk() && !isSync()) {
+            DownloadCoalescer downloadCoalescer = getSketch().getConfiguration().getRequestExecutor().getDownloadCoalescer();
+            if (downloadCoalescer.follow(this)) {
+                setStatus(Status.WAIT_DOWNLOAD);
+                if (Sketch.isDebugMode()) {
+                    Log.d(Sketch.TAG, SketchUtils.concat(getLogName(),
+                            " - ", "runDispatch",
+                            " - ", "follow",
+                            " - ", getAttrs().getId()));
+                }
+                return;
+            }
+        }
+
         // 执行下载
         if (Sketch.isDebugMode()) {
             Log.d(Sketch.TAG, SketchUtils.concat(getLogName(),
@@ -144,6 +168,50 @@ public class DownloadRequest extends AsyncRequest {
         submitRunDownload();
     }
 
+    DownloadCoalescer.Flight getFlight() {
+        return flight;
+    }
+
+    void setFlight(DownloadCoalescer.Flight flight) {
+        this.flight = flight;
+    }
+
+    /**
+     * 下载是否已经没人要了，带着跟随者的话要所有的都取消了才算
+     */
+    private boolean isDownloadCanceled() {
+        DownloadCoalescer.Flight flight = this.flight;
+        return flight != null ? flight.isAllCanceled() : isCanceled();
+    }
+
+    /**
+     * 跟随的下载完成了
+     */
+    void followCompleted(DownloadResult result) {
+        if (isFinished()) {
+            return;
+        }
+        downloadResult = result;
+        downloadComplete();
+    }
+
+    /**
+     * 跟随的下载失败了
+     */
+    void followFailed() {
+        if (isFinished()) {
+            return;
+        }
+        failed(FailedCause.DOWNLOAD_FAIL);
+    }
+
+    /**
+     * 跟随的下载有新的进度了
+     */
+    void followProgress(int totalLength, int completedLength) {
+        updateProgress(totalLength, completedLength);
+    }
+
     /**
      * 处理RequestLevel是LOCAL
      */
@@ -164,7 +232,7 @@ public class DownloadRequest extends AsyncRequest {
 
     @Override
     protected void runDownload() {
-        if (isCanceled()) {
+        if (isDownloadCanceled()) {
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
                         " - ", "runDownload",
@@ -172,25 +240,34 @@ public class DownloadRequest extends AsyncRequest {
                         " - ", "startDownload",
                         " - ", getAttrs().getId()));
             }
+            finishFlight(null);
             return;
         }
 
         String diskCacheKey = getAttrs().getUri();
         DiskCache diskCache = getSketch().getConfiguration().getDiskCache();
 
-        // 使用磁盘缓存就必须要上锁
-        ReentrantLock diskCacheEditLock = null;
-        if (!getOptions().isDisableCacheInDisk()) {
-            setStatus(Status.GET_DISK_CACHE_EDIT_LOCK);
-            diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
-            diskCacheEditLock.lock();
-        }
-
-        DownloadResult justDownloadResult = download(diskCache, diskCacheKey);
+        DownloadResult justDownloadResult = null;
+        try {
+            // 使用磁盘缓存就必须要上锁
+            ReentrantLock diskCacheEditLock = null;
+            if (!getOptions().isDisableCacheInDisk()) {
+                setStatus(Status.GET_DISK_CACHE_EDIT_LOCK);
+                diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+                diskCacheEditLock.lock();
+            }
 
-        // 解锁
-        if (diskCacheEditLock != null) {
-            diskCacheEditLock.unlock();
+            try {
+                justDownloadResult = download(diskCache, diskCacheKey);
+            } finally {
+                // 解锁
+                if (diskCacheEditLock != null) {
+                    diskCacheEditLock.unlock();
+                }
+            }
+        } finally {
+            // 先把结果交给跟随者，自己取消了也要交，抛了异常也要从flightMap里移除，不然跟随者就永远等下去了
+            finishFlight(justDownloadResult);
         }
 
         if (isCanceled()) {
@@ -216,8 +293,22 @@ public class DownloadRequest extends AsyncRequest {
         downloadComplete();
     }
 
+    /**
+     * 领头的下载结束了，通知跟随者
+     */
+    private void finishFlight(DownloadResult justDownloadResult) {
+        if (flight == null) {
+            return;
+        }
+        if (justDownloadResult != null && justDownloadResult.getDiskCacheEntry() == null
+                && justDownloadResult.getImageData() == null) {
+            justDownloadResult = null;
+        }
+        getSketch().getConfiguration().getRequestExecutor().getDownloadCoalescer().finish(this, justDownloadResult);
+    }
+
     private DownloadResult download(DiskCache diskCache, String diskCacheKey){
-        if (isCanceled()) {
+        if (isDownloadCanceled()) {
             Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
                     " - ", "runDownload",
                     " - ", "canceled",
@@ -230,6 +321,7 @@ public class DownloadRequest extends AsyncRequest {
             setStatus(Status.CHECK_DISK_CACHE);
             DiskCache.Entry diskCacheEntry = diskCache.get(diskCacheKey);
             if (diskCacheEntry != null) {
+                onDiskCacheHit();
                 return new DownloadResult(diskCacheEntry, false);
             }
         }
@@ -246,7 +338,7 @@ public class DownloadRequest extends AsyncRequest {
             } catch (Throwable e) {
                 e.printStackTrace();
 
-                if (isCanceled()) {
+                if (isDownloadCanceled()) {
                     if (Sketch.isDebugMode()) {
                         Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
                                 " - ", "runDownload",
@@ -279,14 +371,46 @@ public class DownloadRequest extends AsyncRequest {
             }
         }
 
+        // 磁盘缓存里的数据换成新的了，未解码图片缓存里的旧数据不能再用了
+        if (justDownloadResult != null && justDownloadResult.getDiskCacheEntry() != null) {
+            getSketch().getConfiguration().getEncodedMemoryCache().remove(diskCacheKey);
+        }
+
         return justDownloadResult;
     }
 
+    /**
+     * 命中磁盘缓存后检查是否过期，过期了就在后台更新，当前请求照常使用旧的缓存
+     */
+    private void onDiskCacheHit() {
+        HttpCacheRevalidator httpCacheRevalidator = getSketch().getConfiguration().getHttpCacheRevalidator();
+        if (httpCacheRevalidator.canUse(getOptions())) {
+            httpCacheRevalidator.onDiskCacheHit(getSketch(), getAttrs().getUri(), getAttrs().getRealUri());
+        }
+    }
+
     private DownloadResult realDownload(HttpStack httpStack, DiskCache diskCache, String diskCacheKey) throws IOException, DiskLruCache.EditorChangedException {
         setStatus(Status.DOWNLOADING);
-        HttpStack.ImageHttpResponse httpResponse = httpStack.getHttpResponse(getAttrs().getRealUri());
 
-        if (isCanceled()) {
+        // 上次没下载完的话带上Range接着下载
+        DownloadResumer downloadResumer = getSketch().getConfiguration().getDownloadResumer();
+        boolean canResume = downloadResumer.canUse(getOptions(), httpStack);
+        DownloadResumer.Partial partial = canResume ? downloadResumer.readPartial(diskCache, diskCacheKey) : null;
+
+        // 要分段下载的话先探测服务器是否支持Range，探测的响应包含整个文件，不支持的话照常下载
+        SegmentedDownloader segmentedDownloader = getSketch().getConfiguration().getSegmentedDownloader();
+        boolean probe = partial == null && segmentedDownloader.canUse(getOptions(), httpStack);
+
+        HttpStack.ImageHttpResponse httpResponse;
+        if (partial != null) {
+            httpResponse = ((HttpStack.HeaderHttpStack) httpStack).getHttpResponse(getAttrs().getRealUri(), partial.getRangeHeaders());
+        } else if (probe) {
+            httpResponse = ((HttpStack.HeaderHttpStack) httpStack).getHttpResponse(getAttrs().getRealUri(), segmentedDownloader.getProbeHeaders());
+        } else {
+            httpResponse = httpStack.getHttpResponse(getAttrs().getRealUri());
+        }
+
+        if (isDownloadCanceled()) {
             httpResponse.releaseConnection();
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
@@ -329,7 +453,21 @@ public class DownloadRequest extends AsyncRequest {
             }
             return null;
         }
-        if (responseCode != 200) {
+        boolean resume = partial != null && downloadResumer.isResumeResponse(httpResponse, responseCode, partial);
+        if (partial != null && !resume) {
+            // 服务器不支持续传或者文件已经变了，只能从头下载
+            downloadResumer.remove(diskCache, diskCacheKey);
+            partial = null;
+            if (Sketch.isDebugMode()) {
+                Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
+                        " - ", "runDownload",
+                        " - ", "resume refused",
+                        " - ", "responseCode:", String.valueOf(responseCode),
+                        " - ", getAttrs().getId()));
+            }
+        }
+        long probeTotalLength = probe ? segmentedDownloader.getTotalLength(httpResponse, responseCode) : -1;
+        if (responseCode != 200 && !resume && probeTotalLength <= 0) {
             httpResponse.releaseConnection();
             if (Sketch.isDebugMode()) {
                 Log.e(Sketch.TAG, SketchUtils.concat(getLogName(),
@@ -343,9 +481,17 @@ public class DownloadRequest extends AsyncRequest {
             return null;
         }
 
-        // 检查内容长度
-        long contentLength = httpResponse.getContentLength();
-        if (contentLength <= 0) {
+        // 检查内容长度，chunked、gzip等没有Content-Length的响应长度是-1，只能边下载边检查
+        long contentLength;
+        if (resume) {
+            contentLength = partial.getTotalLength();
+        } else if (probeTotalLength > 0) {
+            contentLength = probeTotalLength;
+        } else {
+            contentLength = httpResponse.getContentLength();
+        }
+        int maxDownloadSize = getSketch().getConfiguration().getMaxDownloadSize();
+        if (contentLength == 0 || contentLength > maxDownloadSize) {
             httpResponse.releaseConnection();
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
@@ -358,10 +504,18 @@ public class DownloadRequest extends AsyncRequest {
             return null;
         }
 
+        // 服务器支持Range并且文件够大就分段下载
+        if (probeTotalLength > 0) {
+            String validator = downloadResumer.getValidator(httpResponse);
+            if (segmentedDownloader.isSegmentable(probeTotalLength, validator)) {
+                return segmentedDownload(segmentedDownloader, (HttpStack.HeaderHttpStack) httpStack, diskCache, diskCacheKey, httpResponse, probeTotalLength, validator);
+            }
+        }
+
         // 获取输入流
         InputStream inputStream = httpResponse.getContent();
 
-        if (isCanceled()) {
+        if (isDownloadCanceled()) {
             SketchUtils.close(inputStream);
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
@@ -373,39 +527,91 @@ public class DownloadRequest extends AsyncRequest {
             return null;
         }
 
+        // 照常写到磁盘缓存里，支持续传的话中断时再把已经收到的数据保留下来；续传时直接追加到上次保留的文件后面
+        String validator = null;
+        if (resume) {
+            validator = partial.getValidator();
+        } else if (canResume && downloadResumer.isResumable(httpResponse, contentLength)) {
+            validator = downloadResumer.getValidator(httpResponse);
+        }
+
         DiskCache.Editor diskCacheEditor = null;
         if (!getOptions().isDisableCacheInDisk()) {
             diskCacheEditor = diskCache.edit(diskCacheKey);
         }
+        boolean keepPartial = validator != null && downloadResumer.canSavePartial(diskCacheEditor);
+        boolean appendPartial = resume && keepPartial;
         OutputStream outputStream;
-        if (diskCacheEditor != null) {
+        PoolingByteArrayOutputStream memoryOutputStream = null;
+        MessageDigest messageDigest = null;
+        if (appendPartial) {
             try {
-                outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                outputStream = downloadResumer.openPartial(partial);
             } catch (FileNotFoundException e) {
                 SketchUtils.close(inputStream);
                 diskCacheEditor.abort();
+                downloadResumer.remove(diskCache, diskCacheKey);
                 throw e;
             }
+            outputStream = new BufferedOutputStream(outputStream, 8 * 1024);
+        } else if (diskCacheEditor != null) {
+            try {
+                outputStream = diskCacheEditor.newOutputStream();
+            } catch (FileNotFoundException e) {
+                SketchUtils.close(inputStream);
+                diskCacheEditor.abort();
+                throw e;
+            }
+
+            // 按内容存储的磁盘缓存需要内容摘要，边写边算，省得提交时再读一遍文件
+            if (diskCacheEditor instanceof DiskCache.DigestEditor) {
+                try {
+                    messageDigest = MessageDigest.getInstance(((DiskCache.DigestEditor) diskCacheEditor).getDigestAlgorithm());
+                    outputStream = new DigestOutputStream(outputStream, messageDigest);
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                }
+            }
+            outputStream = new BufferedOutputStream(outputStream, 8 * 1024);
         } else {
-            // 不需要将数据缓存到本地或本地缓存不可用的时候就使用ByteArrayOutputStream来存储数据
-            outputStream = new ByteArrayOutputStream();
+            // 不需要将数据缓存到本地或本地缓存不可用的时候就存在内存里，缓冲区从复用池里取，不知道长度的话按需扩大
+            memoryOutputStream = new PoolingByteArrayOutputStream(getSketch().getConfiguration().getByteArrayPool(),
+                    contentLength > 0 ? (int) contentLength : PoolingByteArrayOutputStream.DEFAULT_SIZE);
+            outputStream = memoryOutputStream;
         }
 
-        // 读取数据
+        // 读取数据，续传但不能追加的话先把上次的数据写进去
+        int startLength = 0;
         int completedLength = 0;
+        byte[] imageData = null;
         try {
-            completedLength = readData(inputStream, outputStream, (int) contentLength);
-        } catch (IOException e) {
-            if (diskCacheEditor != null) {
-                diskCacheEditor.abort();
+            if (appendPartial) {
+                startLength = (int) partial.getLength();
+            } else if (resume) {
+                try {
+                    startLength = (int) downloadResumer.copyPartial(partial, outputStream);
+                } catch (IOException e) {
+                    // 上次的数据读不出来了，下次从头下载
+                    downloadResumer.remove(diskCache, diskCacheKey);
+                    throw e;
+                }
             }
+            completedLength = readData(inputStream, outputStream, (int) contentLength, maxDownloadSize, startLength);
+            if (memoryOutputStream != null) {
+                // 关闭之后缓冲区就还回去了，所以要先取出来
+                imageData = memoryOutputStream.toByteArray();
+            }
+        } catch (IOException e) {
+            // 超时或者连接断开了，已经收到的数据留着下次接着下载
+            stopDownload(downloadResumer, diskCache, diskCacheKey, diskCacheEditor, outputStream, keepPartial && !appendPartial, validator, contentLength);
             throw e;
         } finally {
             SketchUtils.close(outputStream);
             SketchUtils.close(inputStream);
         }
 
-        if (isCanceled()) {
+        if (isDownloadCanceled()) {
+            stopDownload(downloadResumer, diskCache, diskCacheKey, diskCacheEditor, outputStream, keepPartial && !appendPartial, validator, contentLength);
             if (Sketch.isDebugMode()) {
                 Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
                         " - ", "runDownload",
@@ -416,49 +622,169 @@ public class DownloadRequest extends AsyncRequest {
             return null;
         }
 
+        // 没有读到数据，或者长度不够说明连接中断了
+        if (completedLength <= 0 || (contentLength > 0 && completedLength < contentLength)) {
+            stopDownload(downloadResumer, diskCache, diskCacheKey, diskCacheEditor, outputStream, keepPartial && !appendPartial, validator, contentLength);
+            if (Sketch.isDebugMode()) {
+                Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
+                        " - ", "runDownload",
+                        " - ", "data incomplete",
+                        " - ", "fileLength:", completedLength, "/", contentLength,
+                        " - ", getAttrs().getId()));
+            }
+            return null;
+        }
+
         if (Sketch.isDebugMode()) {
             Log.i(Sketch.TAG, SketchUtils.concat(getLogName(),
                     " - ", "runDownload",
                     " - ", "download success",
                     " - ", "fileLength:", completedLength, "/", contentLength,
+                    " - ", "resumeFrom:", startLength,
                     " - ", getAttrs().getId()));
         }
 
         // 返回结果
         if (!getOptions().isDisableCacheInDisk() && diskCacheEditor != null) {
+            if (appendPartial) {
+                // 数据是追加在未完成的文件里的，移到Editor里再提交
+                try {
+                    downloadResumer.complete(diskCache, diskCacheKey, partial, diskCacheEditor);
+                } catch (IOException e) {
+                    diskCacheEditor.abort();
+                    throw e;
+                }
+            } else if (partial != null) {
+                downloadResumer.remove(diskCache, diskCacheKey);
+            }
+            if (messageDigest != null) {
+                ((DiskCache.DigestEditor) diskCacheEditor).setDigest(messageDigest.digest());
+            }
             diskCacheEditor.commit();
+
+            // 记下校验值和过期时间，以后用来判断缓存是否过期
+            HttpCacheRevalidator httpCacheRevalidator = getSketch().getConfiguration().getHttpCacheRevalidator();
+            if (httpCacheRevalidator.canUse(getOptions())) {
+                httpCacheRevalidator.saveInfo(diskCache, diskCacheKey, HttpCacheInfo.fromResponse(httpResponse, System.currentTimeMillis()));
+            }
             return new DownloadResult(diskCache.get(diskCacheKey), true);
-        } else if (outputStream instanceof ByteArrayOutputStream) {
-            return new DownloadResult(((ByteArrayOutputStream) outputStream).toByteArray(), true);
+        } else if (imageData != null) {
+            return new DownloadResult(imageData, true);
         } else {
             return null;
         }
     }
 
-    private int readData(InputStream inputStream, OutputStream outputStream, int contentLength) throws IOException {
+    /**
+     * 分段并行下载，直接存入磁盘缓存
+     */
+    private DownloadResult segmentedDownload(SegmentedDownloader segmentedDownloader, HttpStack.HeaderHttpStack httpStack,
+                                             DiskCache diskCache, String diskCacheKey,
+                                             HttpStack.ImageHttpResponse probeResponse, long totalLength,
+                                             String validator) throws IOException {
+        boolean saved = segmentedDownloader.download(httpStack, diskCache, diskCacheKey, getAttrs().getRealUri(),
+                probeResponse, totalLength, validator, new SegmentedDownloader.Callback() {
+                    @Override
+                    public boolean isCanceled() {
+                        return isDownloadCanceled();
+                    }
+
+                    @Override
+                    public void onUpdateProgress(long totalLength, long completedLength) {
+                        updateProgress((int) totalLength, (int) completedLength);
+                    }
+                });
+
+        if (isDownloadCanceled()) {
+            if (Sketch.isDebugMode()) {
+                Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
+                        " - ", "runDownload",
+                        " - ", "canceled",
+                        " - ", "segmented download after",
+                        " - ", getAttrs().getId()));
+            }
+            return null;
+        }
+
+        if (!saved) {
+            if (Sketch.isDebugMode()) {
+                Log.w(Sketch.TAG, SketchUtils.concat(getLogName(),
+                        " - ", "runDownload",
+                        " - ", "segmented download save failed",
+                        " - ", getAttrs().getId()));
+            }
+            return null;
+        }
+
+        if (Sketch.isDebugMode()) {
+            Log.i(Sketch.TAG, SketchUtils.concat(getLogName(),
+                    " - ", "runDownload",
+                    " - ", "segmented download success",
+                    " - ", "fileLength:", totalLength,
+                    " - ", getAttrs().getId()));
+        }
+
+        // 记下校验值和过期时间，以后用来判断缓存是否过期
+        HttpCacheRevalidator httpCacheRevalidator = getSketch().getConfiguration().getHttpCacheRevalidator();
+        if (httpCacheRevalidator.canUse(getOptions())) {
+            httpCacheRevalidator.saveInfo(diskCache, diskCacheKey, HttpCacheInfo.fromResponse(probeResponse, System.currentTimeMillis()));
+        }
+        return new DownloadResult(diskCache.get(diskCacheKey), true);
+    }
+
+    /**
+     * 下载中断了，放弃这次编辑，可以续传的话先把已经收到的数据移出来保留着，下次接着下载
+     *
+     * @param savePartial 是否要保留Editor里的数据，续传时数据是直接追加在未完成的文件里的，不用再保留
+     */
+    private void stopDownload(DownloadResumer downloadResumer, DiskCache diskCache, String diskCacheKey,
+                              DiskCache.Editor diskCacheEditor, OutputStream outputStream,
+                              boolean savePartial, String validator, long contentLength) {
+        SketchUtils.close(outputStream);
+        if (diskCacheEditor == null) {
+            return;
+        }
+        if (savePartial) {
+            downloadResumer.savePartial(diskCache, diskCacheKey, diskCacheEditor, validator, contentLength);
+        } else {
+            diskCacheEditor.abort();
+        }
+    }
+
+    /**
+     * 读取数据
+     *
+     * @param contentLength   内容长度，-1表示未知，进度回调的总长度也是-1
+     * @param maxDownloadSize 最大长度，超过的话抛出IOException
+     * @param startLength     续传时已经写入的长度
+     */
+    private int readData(InputStream inputStream, OutputStream outputStream, int contentLength, int maxDownloadSize, int startLength) throws IOException {
         int realReadCount;
-        int completedLength = 0;
+        int completedLength = startLength;
         long lastCallbackTime = 0;
         byte[] buffer = new byte[8 * 1024];
         while (true) {
-            if (isCanceled()) {
+            if (isDownloadCanceled()) {
                 break;
             }
 
             realReadCount = inputStream.read(buffer);
             if (realReadCount != -1) {
-                outputStream.write(buffer, 0, realReadCount);
                 completedLength += realReadCount;
+                if (completedLength > maxDownloadSize) {
+                    throw new IOException("content too large, more than " + maxDownloadSize);
+                }
+                outputStream.write(buffer, 0, realReadCount);
 
                 // 每秒钟回调一次进度
                 long currentTime = System.currentTimeMillis();
                 if (currentTime - lastCallbackTime >= 1000) {
                     lastCallbackTime = currentTime;
-                    updateProgress(contentLength, completedLength);
+                    updateProgress(contentLength > 0 ? contentLength : -1, completedLength);
                 }
             } else {
-                // 结束的时候再次回调一下进度，确保页面上能显示100%
-                updateProgress(contentLength, completedLength);
+                // 结束的时候再次回调一下进度，确保页面上能显示100%，长度未知的话就按已完成的算
+                updateProgress(contentLength > 0 ? contentLength : completedLength, completedLength);
                 break;
             }
         }
@@ -474,13 +800,18 @@ public class DownloadRequest extends AsyncRequest {
     /**
      * 更新进度
      *
-     * @param totalLength     文件总长度
+     * @param totalLength     文件总长度，-1表示未知
      * @param completedLength 已完成长度
      */
     private void updateProgress(int totalLength, int completedLength) {
-        if (downloadProgressListener != null) {
+        if (downloadProgressListener != null && !isFinished()) {
             postRunUpdateProgress(totalLength, completedLength);
         }
+
+        DownloadCoalescer.Flight flight = this.flight;
+        if (flight != null) {
+            flight.updateProgress(totalLength, completedLength);
+        }
     }
 
     /**
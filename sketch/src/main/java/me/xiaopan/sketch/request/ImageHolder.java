@@ -24,6 +24,7 @@ import android.widget.ImageView;
 
 import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.CacheKey;
 import me.xiaopan.sketch.cache.MemoryCache;
 import me.xiaopan.sketch.display.ImageDisplayer;
 import me.xiaopan.sketch.drawable.BindFixedRecycleBitmapDrawable;
@@ -35,7 +36,7 @@ import me.xiaopan.sketch.util.SketchUtils;
 public class ImageHolder {
     private int resId;
     private Resize resize;
-    private String memoryCacheId;
+    private CacheKey memoryCacheKey;
     private boolean lowQualityImage;
     private boolean forceUseResize;
     private ImageProcessor imageProcessor;
@@ -115,18 +116,18 @@ public class ImageHolder {
         }
 
         // 从内存缓存中取
-        if (memoryCacheId == null) {
-            memoryCacheId = generateMemoryCacheId(resId, resize, forceUseResize, lowQualityImage, imageProcessor);
+        if (memoryCacheKey == null) {
+            memoryCacheKey = new CacheKey(generateMemoryCacheId(resId, resize, forceUseResize, lowQualityImage, imageProcessor));
         }
         Configuration configuration = sketch.getConfiguration();
         MemoryCache lruMemoryCache = configuration.getPlaceholderImageMemoryCache();
-        RecycleBitmapDrawable newDrawable = (RecycleBitmapDrawable) lruMemoryCache.get(memoryCacheId);
+        RecycleBitmapDrawable newDrawable = (RecycleBitmapDrawable) lruMemoryCache.get(memoryCacheKey);
         if (newDrawable != null) {
             if (!newDrawable.isRecycled()) {
                 this.drawable = newDrawable;
                 return drawable;
             } else {
-                lruMemoryCache.remove(memoryCacheId);
+                lruMemoryCache.remove(memoryCacheKey);
             }
         }
 
@@ -161,7 +162,7 @@ public class ImageHolder {
             newDrawable = new RecycleBitmapDrawable(bitmap);
             newDrawable.setAllowRecycle(canRecycle);
             if (canRecycle) {
-                lruMemoryCache.put(memoryCacheId, newDrawable);
+                lruMemoryCache.put(memoryCacheKey, newDrawable);
             }
             drawable = newDrawable;
         }
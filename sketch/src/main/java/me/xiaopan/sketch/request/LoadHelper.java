@@ -63,6 +63,24 @@ public class LoadHelper {
         return this;
     }
 
+    /**
+     * 按照HTTP缓存协议检查磁盘缓存是否过期，过期了先用旧的，同时在后台更新
+     */
+    @SuppressWarnings("unused")
+    public LoadHelper revalidateDiskCache() {
+        loadOptions.setRevalidateDiskCache(true);
+        return this;
+    }
+
+    /**
+     * 服务器支持Range的话把大图片分成几段同时下载
+     */
+    @SuppressWarnings("unused")
+    public LoadHelper segmentedDownload() {
+        loadOptions.setSegmentedDownload(true);
+        return this;
+    }
+
     /**
      * 设置请求Level
      */
@@ -154,6 +172,15 @@ public class LoadHelper {
         return this;
     }
 
+    /**
+     * 将经过ImageProcessor处理后的图片缓存到磁盘
+     */
+    @SuppressWarnings("unused")
+    public LoadHelper cacheProcessedImageInDisk() {
+        loadOptions.setCacheProcessedImageInDisk(true);
+        return this;
+    }
+
     /**
      * 批量设置加载参数，这会是一个合并的过程，并不会完全覆盖
      */
@@ -265,9 +292,7 @@ public class LoadHelper {
         }
 
         // 根据URI和加载选项生成请求ID
-        if (requestAttrs.getId() == null) {
-            requestAttrs.setId(requestAttrs.generateId(loadOptions));
-        }
+        requestAttrs.generateKey(loadOptions);
     }
 
     private boolean checkUri() {
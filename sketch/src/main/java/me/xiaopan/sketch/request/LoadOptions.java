@@ -18,6 +18,7 @@ package me.xiaopan.sketch.request;
 
 import android.graphics.Bitmap;
 
+import me.xiaopan.sketch.cache.CacheKey;
 import me.xiaopan.sketch.process.ImageProcessor;
 
 /**
@@ -32,6 +33,7 @@ public class LoadOptions extends DownloadOptions {
     private boolean inPreferQualityOverSpeed;
     private ImageProcessor imageProcessor;
     private Bitmap.Config bitmapConfig;
+    private boolean cacheProcessedImageInDisk;
 
     public LoadOptions() {
         reset();
@@ -48,6 +50,18 @@ public class LoadOptions extends DownloadOptions {
         return this;
     }
 
+    @Override
+    public LoadOptions setRevalidateDiskCache(boolean revalidateDiskCache) {
+        super.setRevalidateDiskCache(revalidateDiskCache);
+        return this;
+    }
+
+    @Override
+    public LoadOptions setSegmentedDownload(boolean segmentedDownload) {
+        super.setSegmentedDownload(segmentedDownload);
+        return this;
+    }
+
     @Override
     public LoadOptions setRequestLevel(RequestLevel requestLevel) {
         super.setRequestLevel(requestLevel);
@@ -202,6 +216,22 @@ public class LoadOptions extends DownloadOptions {
         return this;
     }
 
+    /**
+     * 是否将经过ImageProcessor处理后的图片缓存到磁盘
+     */
+    public boolean isCacheProcessedImageInDisk() {
+        return cacheProcessedImageInDisk;
+    }
+
+    /**
+     * 设置是否将经过ImageProcessor处理后的图片缓存到磁盘，下次再加载时直接解码处理后的图片，不用再解码原图和处理了，
+     * 适合模糊、圆角、裁剪等处理比较耗时的图片
+     */
+    public LoadOptions setCacheProcessedImageInDisk(boolean cacheProcessedImageInDisk) {
+        this.cacheProcessedImageInDisk = cacheProcessedImageInDisk;
+        return this;
+    }
+
     @Override
     public void reset() {
         super.reset();
@@ -214,6 +244,7 @@ public class LoadOptions extends DownloadOptions {
         forceUseResize = false;
         bitmapConfig = null;
         inPreferQualityOverSpeed = false;
+        cacheProcessedImageInDisk = false;
     }
 
     /**
@@ -234,6 +265,7 @@ public class LoadOptions extends DownloadOptions {
         forceUseResize = options.forceUseResize;
         bitmapConfig = options.bitmapConfig;
         inPreferQualityOverSpeed = options.inPreferQualityOverSpeed;
+        cacheProcessedImageInDisk = options.cacheProcessedImageInDisk;
     }
 
     /**
@@ -284,40 +316,27 @@ public class LoadOptions extends DownloadOptions {
         if (!inPreferQualityOverSpeed) {
             inPreferQualityOverSpeed = options.inPreferQualityOverSpeed;
         }
+
+        if (!cacheProcessedImageInDisk) {
+            cacheProcessedImageInDisk = options.cacheProcessedImageInDisk;
+        }
     }
 
     @Override
-    public StringBuilder appendOptionsToId(StringBuilder builder) {
-        super.appendOptionsToId(builder);
+    public CacheKey appendOptionsToKey(CacheKey key) {
+        super.appendOptionsToKey(key);
 
         if (maxSize != null) {
-            builder.append("_");
-            maxSize.appendIdentifier(builder);
+            key.setMaxSize(maxSize.getWidth(), maxSize.getHeight());
         }
         if (resize != null) {
-            builder.append("_");
-            resize.appendIdentifier(builder);
-        }
-        if (forceUseResize) {
-            builder.append("_");
-            builder.append("forceUseResize");
-        }
-        if (lowQualityImage) {
-            builder.append("_");
-            builder.append("lowQualityImage");
-        }
-        if (inPreferQualityOverSpeed) {
-            builder.append("_");
-            builder.append("preferQuality");
-        }
-        if (bitmapConfig != null) {
-            builder.append("_");
-            builder.append(bitmapConfig.name());
-        }
-        if (imageProcessor != null) {
-            builder.append("_");
-            imageProcessor.appendIdentifier(builder);
+            key.setResize(resize.getWidth(), resize.getHeight(), resize.getScaleType());
         }
-        return builder;
+        key.setForceUseResize(forceUseResize);
+        key.setLowQualityImage(lowQualityImage);
+        key.setInPreferQualityOverSpeed(inPreferQualityOverSpeed);
+        key.setBitmapConfig(bitmapConfig);
+        key.setImageProcessor(imageProcessor);
+        return key;
     }
 }
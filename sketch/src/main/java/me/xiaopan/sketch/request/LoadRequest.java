@@ -19,23 +19,36 @@ package me.xiaopan.sketch.request;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.decode.DecodeResult;
 import me.xiaopan.sketch.drawable.RecycleBitmapDrawable;
 import me.xiaopan.sketch.feature.ImagePreprocessor;
 import me.xiaopan.sketch.feature.PreProcessResult;
+import me.xiaopan.sketch.feature.ProcessedImageCache;
 import me.xiaopan.sketch.process.ImageProcessor;
+import me.xiaopan.sketch.process.PoolingImageProcessor;
 import me.xiaopan.sketch.util.SketchUtils;
 
 /**
  * 加载请求
  */
 public class LoadRequest extends DownloadRequest {
+    // 各个处理器类能不能走带bitmapPool的process方法，用反射判断一次就记下来
+    private static final Map<Class<?>, Boolean> POOLING_PROCESSOR_CLASS_MAP =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+
     private LoadOptions loadOptions;
     private LoadListener loadListener;
 
     private DataSource dataSource;
     private LoadResult loadResult;
+    private boolean deriveChecked;
 
     public LoadRequest(
             Sketch sketch, RequestAttrs requestAttrs,
@@ -49,6 +62,34 @@ public class LoadRequest extends DownloadRequest {
         setLogName("LoadRequest");
     }
 
+    /**
+     * 能不能调用带bitmapPool的process方法
+     * <br>继承了内置处理器的子类可能只重写了五个参数的process方法，这时候要是调用带bitmapPool的process方法，子类的处理就被跳过了，
+     * 所以只有当带bitmapPool的process方法是在重写五个参数的process方法的那个类或者它的子类里声明的时候才可以
+     */
+    private static boolean canProcessWithPool(ImageProcessor imageProcessor) {
+        if (!(imageProcessor instanceof PoolingImageProcessor)) {
+            return false;
+        }
+
+        Class<?> processorClass = imageProcessor.getClass();
+        Boolean result = POOLING_PROCESSOR_CLASS_MAP.get(processorClass);
+        if (result == null) {
+            try {
+                Class<?> plainDeclaringClass = processorClass.getMethod("process", Sketch.class, Bitmap.class,
+                        Resize.class, boolean.class, boolean.class).getDeclaringClass();
+                Class<?> poolingDeclaringClass = processorClass.getMethod("process", Sketch.class, Bitmap.class,
+                        Resize.class, boolean.class, boolean.class, BitmapPool.class).getDeclaringClass();
+                result = plainDeclaringClass.isAssignableFrom(poolingDeclaringClass);
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace();
+                result = false;
+            }
+            POOLING_PROCESSOR_CLASS_MAP.put(processorClass, result);
+        }
+        return result;
+    }
+
     /**
      * 获取加载选项
      */
@@ -114,6 +155,19 @@ public class LoadRequest extends DownloadRequest {
             return;
         }
 
+        // 内存中有同一张图片的其它尺寸的话先到本地线程看看能不能直接得到，能的话就不用读磁盘缓存和下载了
+        if (!deriveChecked && canDeriveFromMemory()) {
+            deriveChecked = true;
+            if (Sketch.isDebugMode()) {
+                Log.d(Sketch.TAG, SketchUtils.concat(getLogName(),
+                        " - ", "runDispatch",
+                        " - ", "derive from memory",
+                        " - ", getAttrs().getId()));
+            }
+            submitRunLoad();
+            return;
+        }
+
         super.runDispatch();
     }
 
@@ -153,27 +207,48 @@ public class LoadRequest extends DownloadRequest {
 
         setStatus(Status.LOADING);
 
-        // 尝试用图片预处理器处理一下特殊的本地图片，并得到他们的缓存
-        ImagePreprocessor imagePreprocessor = getSketch().getConfiguration().getImagePreprocessor();
-        if (imagePreprocessor.isSpecific(this)) {
-            PreProcessResult prePrecessResult = imagePreprocessor.prePrecess(this);
-            if (prePrecessResult != null) {
-                if (prePrecessResult.diskCacheEntry != null) {
-                    dataSource = new DataSource(prePrecessResult.diskCacheEntry, prePrecessResult.imageFrom);
-                } else if (prePrecessResult.imageData != null) {
-                    dataSource = new DataSource(prePrecessResult.imageData, prePrecessResult.imageFrom);
+        // 分发前已经来试过内存和处理后图片的缓存了，下载完就不用再试一次
+        boolean alreadyTried = deriveChecked && dataSource != null;
+
+        // 先看看能不能从内存中已有的图片得到，能的话就不用读取和解码了
+        DecodeResult decodeResult = !alreadyTried ? deriveFromMemory() : null;
+
+        // 再看看磁盘缓存中有没有处理好的图片
+        ProcessedImageCache processedImageCache = getSketch().getConfiguration().getProcessedImageCache();
+        boolean canUseProcessedImageCache = processedImageCache.canUse(this);
+        if (decodeResult == null && canUseProcessedImageCache && !alreadyTried) {
+            decodeResult = processedImageCache.decode(this);
+        }
+
+        // 是分发前提前来试的，没能得到的话就回去接着分发，读磁盘缓存或者下载
+        if (decodeResult == null && isDeriveProbe()) {
+            submitRunDispatch();
+            return;
+        }
+
+        if (decodeResult == null) {
+            // 尝试用图片预处理器处理一下特殊的本地图片，并得到他们的缓存
+            ImagePreprocessor imagePreprocessor = getSketch().getConfiguration().getImagePreprocessor();
+            if (imagePreprocessor.isSpecific(this)) {
+                PreProcessResult prePrecessResult = imagePreprocessor.prePrecess(this);
+                if (prePrecessResult != null) {
+                    if (prePrecessResult.diskCacheEntry != null) {
+                        dataSource = new DataSource(prePrecessResult.diskCacheEntry, prePrecessResult.imageFrom);
+                    } else if (prePrecessResult.imageData != null) {
+                        dataSource = new DataSource(prePrecessResult.imageData, prePrecessResult.imageFrom);
+                    } else {
+                        failed(FailedCause.NOT_GET_SPECIFIC_LOCAL_IMAGE_CACHE_FILE);
+                        return;
+                    }
                 } else {
                     failed(FailedCause.NOT_GET_SPECIFIC_LOCAL_IMAGE_CACHE_FILE);
                     return;
                 }
-            } else {
-                failed(FailedCause.NOT_GET_SPECIFIC_LOCAL_IMAGE_CACHE_FILE);
-                return;
             }
-        }
 
-        // 解码
-        DecodeResult decodeResult = getSketch().getConfiguration().getImageDecoder().decode(this);
+            // 解码
+            decodeResult = getSketch().getConfiguration().getImageDecoder().decode(this);
+        }
         if (decodeResult == null || (decodeResult.getBitmap() == null && decodeResult.getGifDrawable() == null)) {
             failed(FailedCause.DECODE_FAIL);
             return;
@@ -181,6 +256,8 @@ public class LoadRequest extends DownloadRequest {
 
         // 是Bitmap
         if (decodeResult.getBitmap() != null) {
+            BitmapPool bitmapPool = getSketch().getConfiguration().getBitmapPool();
+
             // 过滤已回收
             if (decodeResult.getBitmap().isRecycled()) {
                 if (Sketch.isDebugMode()) {
@@ -213,17 +290,26 @@ public class LoadRequest extends DownloadRequest {
                             " - ", RecycleBitmapDrawable.getInfo(decodeResult.getBitmap(), decodeResult.getMimeType()),
                             " - ", getAttrs().getId()));
                 }
-                decodeResult.getBitmap().recycle();
+                BitmapPoolUtils.freeBitmapToPool(decodeResult.getBitmap(), bitmapPool);
                 return;
             }
 
             // 处理
             ImageProcessor imageProcessor = loadOptions.getImageProcessor();
-            if (imageProcessor != null) {
-                Bitmap newBitmap = imageProcessor.process(
-                        getSketch(), decodeResult.getBitmap(),
-                        loadOptions.getResize(), loadOptions.isForceUseResize(),
-                        loadOptions.isLowQualityImage());
+            boolean needSaveProcessedImage = false;
+            if (imageProcessor != null && !decodeResult.isProcessed()) {
+                Bitmap newBitmap;
+                if (canProcessWithPool(imageProcessor)) {
+                    newBitmap = ((PoolingImageProcessor) imageProcessor).process(
+                            getSketch(), decodeResult.getBitmap(),
+                            loadOptions.getResize(), loadOptions.isForceUseResize(),
+                            loadOptions.isLowQualityImage(), bitmapPool);
+                } else {
+                    newBitmap = imageProcessor.process(
+                            getSketch(), decodeResult.getBitmap(),
+                            loadOptions.getResize(), loadOptions.isForceUseResize(),
+                            loadOptions.isLowQualityImage());
+                }
 
                 // 确实是一张新图片，就替换掉旧图片
                 if (newBitmap != null && !newBitmap.isRecycled() && newBitmap != decodeResult.getBitmap()) {
@@ -237,9 +323,10 @@ public class LoadRequest extends DownloadRequest {
                                 " - ", getAttrs().getId()));
                     }
 
-                    decodeResult.getBitmap().recycle();
+                    BitmapPoolUtils.freeBitmapToPool(decodeResult.getBitmap(), bitmapPool);
                     decodeResult.setBitmap(newBitmap);
                 }
+                needSaveProcessedImage = canUseProcessedImageCache;
             }
 
             if (isCanceled()) {
@@ -252,7 +339,7 @@ public class LoadRequest extends DownloadRequest {
                             " - ", RecycleBitmapDrawable.getInfo(decodeResult.getBitmap(), decodeResult.getMimeType()),
                             " - ", getAttrs().getId()));
                 }
-                decodeResult.getBitmap().recycle();
+                BitmapPoolUtils.freeBitmapToPool(decodeResult.getBitmap(), bitmapPool);
                 return;
             }
 
@@ -262,6 +349,11 @@ public class LoadRequest extends DownloadRequest {
                 return;
             }
 
+            // 把处理好的图片存到磁盘缓存，下次就不用再解码原图和处理了
+            if (needSaveProcessedImage) {
+                processedImageCache.save(this, decodeResult.getBitmap(), decodeResult.getMimeType());
+            }
+
             loadResult = new LoadResult(decodeResult.getBitmap(), decodeResult.getImageFrom(), decodeResult.getMimeType());
             loadCompleted();
             return;
@@ -299,6 +391,28 @@ public class LoadRequest extends DownloadRequest {
         }
     }
 
+    /**
+     * 是否是分发前提前到本地线程来试着从内存得到解码结果的，没能得到的话会回去接着分发
+     */
+    protected boolean isDeriveProbe() {
+        return deriveChecked && dataSource == null;
+    }
+
+    /**
+     * 内存中是否可能有能直接得到解码结果的图片，返回true的话网络图片会在分发之前先到本地线程调用deriveFromMemory()，
+     * 这里只能做简单的检查，不能读磁盘或者解码，默认不支持
+     */
+    protected boolean canDeriveFromMemory() {
+        return false;
+    }
+
+    /**
+     * 从内存中已有的图片直接得到解码结果，得到的Bitmap必须是新的，之后会和解码出来的一样经过处理，默认不支持
+     */
+    protected DecodeResult deriveFromMemory() {
+        return null;
+    }
+
     protected void loadCompleted() {
         postRunCompleted();
     }
@@ -316,7 +430,7 @@ public class LoadRequest extends DownloadRequest {
             // 已经取消了就直接把图片回收了
             if (loadResult != null) {
                 if (loadResult.getBitmap() != null) {
-                    loadResult.getBitmap().recycle();
+                    BitmapPoolUtils.freeBitmapToPool(loadResult.getBitmap(), getSketch().getConfiguration().getBitmapPool());
                 }
                 if (loadResult.getGifDrawable() != null) {
                     loadResult.getGifDrawable().recycle();
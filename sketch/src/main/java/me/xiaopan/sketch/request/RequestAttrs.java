@@ -16,8 +16,12 @@
 
 package me.xiaopan.sketch.request;
 
+import me.xiaopan.sketch.cache.CacheKey;
+
 public class RequestAttrs {
-    private String id;
+    private String id;  // 字符串形式的请求ID，只用于打印日志，需要的时候才根据key生成
+    private boolean customId;   // id是否是通过setId()指定的
+    private final CacheKey key = new CacheKey();
     private String uri;
     private String realUri;    // 真正的图片地址，例如原图片uri是asset://test.png的，realUri就是test.png
     private UriScheme uriScheme;    // Uri协议类型
@@ -31,6 +35,8 @@ public class RequestAttrs {
     }
 
     void reset(String uri) {
+        this.customId = false;
+        this.key.reset(null);
         if (uri != null) {
             this.id = null;
             this.uri = uri;
@@ -46,26 +52,49 @@ public class RequestAttrs {
 
     void copy(RequestAttrs requestAttrs) {
         this.id = requestAttrs.id;
+        this.customId = requestAttrs.customId;
+        this.key.set(requestAttrs.key);
         this.uri = requestAttrs.uri;
         this.realUri = requestAttrs.realUri;
         this.uriScheme = requestAttrs.uriScheme;
     }
 
-    String generateId(DownloadOptions options) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(uri);
+    /**
+     * 根据uri和选项生成key，整个过程不会拼接字符串，如果已经通过setId()指定了id就不再生成
+     */
+    void generateKey(DownloadOptions options) {
+        if (customId) {
+            return;
+        }
+
+        id = null;
+        key.reset(uri);
         if (options != null) {
-            options.appendOptionsToId(builder);
+            options.appendOptionsToKey(key);
         }
-        return builder.toString();
     }
 
+    /**
+     * 获取字符串形式的请求ID，只用于打印日志
+     */
     public String getId() {
+        if (id == null && !key.isEmpty()) {
+            id = key.getIdentifier();
+        }
         return id;
     }
 
     void setId(String id) {
         this.id = id;
+        this.customId = id != null;
+        this.key.reset(id);
+    }
+
+    /**
+     * 获取请求key，内存缓存、编辑锁以及重复请求检查都用它
+     */
+    public CacheKey getKey() {
+        return key;
     }
 
     public String getUri() {
@@ -44,6 +44,8 @@ public class RequestExecutor implements Identifier {
     private boolean shutdown;
     private int localThreadPoolSize;
     private int netThreadPoolSize;
+    private final DownloadCoalescer downloadCoalescer = new DownloadCoalescer();
+    private final DecodeCoalescer decodeCoalescer = new DecodeCoalescer();
 
     public RequestExecutor(int localThreadPoolSize, int netThreadPoolSize) {
         this.localThreadPoolSize = localThreadPoolSize;
@@ -104,6 +106,36 @@ public class RequestExecutor implements Identifier {
         netTaskExecutor.execute(runnable);
     }
 
+    /**
+     * 获取下载合并器，同一个地址的下载只占用一个网络线程
+     */
+    DownloadCoalescer getDownloadCoalescer() {
+        return downloadCoalescer;
+    }
+
+    /**
+     * 获取解码合并器，同一个id的解码只占用一个本地线程
+     */
+    DecodeCoalescer getDecodeCoalescer() {
+        return decodeCoalescer;
+    }
+
+    /**
+     * 是否空闲，本地任务和网络任务都没有正在执行或排队的
+     */
+    public boolean isIdle() {
+        return isIdle(localTaskExecutor) && isIdle(netTaskExecutor);
+    }
+
+    private static boolean isIdle(ExecutorService executorService) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executorService;
+            return threadPoolExecutor.getActiveCount() == 0 && threadPoolExecutor.getQueue().isEmpty();
+        }
+        // 自定义的执行器无法判断，当作空闲
+        return true;
+    }
+
     @SuppressWarnings("unused")
     public void setLocalTaskExecutor(ExecutorService localTaskExecutor) {
         if (shutdown) {
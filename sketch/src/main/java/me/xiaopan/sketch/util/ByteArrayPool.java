@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import me.xiaopan.sketch.Identifier;
+
+/**
+ * byte数组复用池，避免下载时频繁创建大的临时数组
+ * <br>取的时候给出至少需要的大小，返回的数组可能更大；池里的总大小超过上限时最久没用的先丢掉
+ */
+public class ByteArrayPool implements Identifier {
+    public static final int DEFAULT_SIZE_LIMIT = 512 * 1024;
+
+    private static final Comparator<byte[]> LENGTH_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length < rhs.length ? -1 : (lhs.length == rhs.length ? 0 : 1);
+        }
+    };
+
+    protected String logName = "ByteArrayPool";
+
+    // 按使用顺序排列，用来淘汰
+    private final LinkedList<byte[]> buffersByLastUse = new LinkedList<byte[]>();
+    // 按大小排列，用来查找
+    private final List<byte[]> buffersBySize = new ArrayList<byte[]>(64);
+
+    private final int sizeLimit;
+    private int currentSize;
+
+    public ByteArrayPool(int sizeLimit) {
+        this.sizeLimit = sizeLimit;
+    }
+
+    public ByteArrayPool() {
+        this(DEFAULT_SIZE_LIMIT);
+    }
+
+    /**
+     * 获取一个长度至少是len的数组，池里没有合适的就新建一个
+     */
+    public synchronized byte[] getBuf(int len) {
+        for (int w = 0, size = buffersBySize.size(); w < size; w++) {
+            byte[] buf = buffersBySize.get(w);
+            if (buf.length >= len) {
+                currentSize -= buf.length;
+                buffersBySize.remove(w);
+                buffersByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[len];
+    }
+
+    /**
+     * 还回一个数组，太大的直接丢掉
+     */
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > sizeLimit) {
+            return;
+        }
+        buffersByLastUse.add(buf);
+        int position = Collections.binarySearch(buffersBySize, buf, LENGTH_COMPARATOR);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        buffersBySize.add(position, buf);
+        currentSize += buf.length;
+        trim();
+    }
+
+    private void trim() {
+        while (currentSize > sizeLimit) {
+            byte[] buf = buffersByLastUse.remove(0);
+            buffersBySize.remove(buf);
+            currentSize -= buf.length;
+        }
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear() {
+        buffersByLastUse.clear();
+        buffersBySize.clear();
+        currentSize = 0;
+    }
+
+    public int getSizeLimit() {
+        return sizeLimit;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return appendIdentifier(new StringBuilder()).toString();
+    }
+
+    @Override
+    public StringBuilder appendIdentifier(StringBuilder builder) {
+        return builder.append(logName)
+                .append("(")
+                .append("sizeLimit").append("=").append(sizeLimit)
+                .append(")");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 从ByteBuffer中读取数据的输入流，不会修改原ByteBuffer的position
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int markPosition = -1;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.buffer.rewind();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int readLength = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, readLength);
+        return readLength;
+    }
+
+    @Override
+    public long skip(long byteCount) {
+        int skipLength = (int) Math.min(byteCount, buffer.remaining());
+        buffer.position(buffer.position() + skipLength);
+        return skipLength;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markPosition = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(markPosition != -1 ? markPosition : 0);
+    }
+}
@@ -42,8 +42,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -109,9 +111,13 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String REFETCH_COST_PREFIX = "c";
+    private static final String ACCESS_COUNT_PREFIX = "a";
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int MAINTENANCE_BATCH_SIZE = 16;
+    private static final long MAINTENANCE_BATCH_INTERVAL_MILLIS = 50;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -143,8 +149,12 @@ public final class DiskLruCache implements Closeable {
      *     temporary files may need to be deleted.
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
+     *     its values, and optionally by the refetch cost hint of the entry
+     *     prefixed with 'c', e.g. "CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 c1".
+     *     Compacted journals also carry the access count of the entry prefixed
+     *     with 'a', e.g. "CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 c1 a12",
+     *     since the READ lines it was counted from are dropped.
+     *   o READ lines track accesses for LRU and access frequency.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
@@ -159,11 +169,23 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int fanOutLength;
     private long size = 0;
     private Writer journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * Keys of all readable entries, kept in sync with {@code lruEntries} so
+     * that {@link #exist} can answer without taking the cache monitor.
+     */
+    private final ConcurrentHashMap<String, Boolean> readableKeys
+            = new ConcurrentHashMap<String, Boolean>();
     private int redundantOpCount;
+    private EvictionPolicy evictionPolicy;
+    private MaintenanceScheduler maintenanceScheduler;
+    private float softOvershootRatio;
+    private boolean maintenanceScheduled;
+    private boolean urgentMaintenanceScheduled;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -291,8 +313,48 @@ public final class DiskLruCache implements Closeable {
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /**
+     * Evicts entries in small batches, releasing the cache monitor and pausing
+     * between batches so that the file deletes do not compete with requests
+     * for the disk, then compacts the journal if required.
+     */
+    private final Runnable maintenanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (DiskLruCache.this) {
+                        if (journalWriter == null) {
+                            return; // closed
+                        }
+                        if (!trimToSize(MAINTENANCE_BATCH_SIZE)) {
+                            if (journalRebuildRequired()) {
+                                rebuildJournal();
+                                redundantOpCount = 0;
+                            }
+                            maintenanceScheduled = false;
+                            urgentMaintenanceScheduled = false;
+                            return;
+                        }
+                    }
+                    Thread.sleep(MAINTENANCE_BATCH_INTERVAL_MILLIS);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (DiskLruCache.this) {
+                    maintenanceScheduled = false;
+                    urgentMaintenanceScheduled = false;
+                }
+            }
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, int fanOutLength) {
         this.directory = directory;
+        this.fanOutLength = fanOutLength;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
@@ -312,6 +374,23 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, 0);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. Entry files are spread over sub directories named by the first
+     * {@code fanOutLength} characters of their key, so keys should be
+     * fixed-length hashes when fan-out is used.
+     *
+     * @param fanOutLength the length of the key prefix used as sub directory
+     *                     name, 0 means all files are put in {@code directory}
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize, int fanOutLength)
+            throws IOException {
+        if (fanOutLength < 0) {
+            throw new IllegalArgumentException("fanOutLength < 0");
+        }
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -320,7 +399,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, fanOutLength);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
@@ -337,7 +416,7 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, fanOutLength);
         cache.rebuildJournal();
         return cache;
     }
@@ -389,14 +468,16 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(CLEAN) && parts.length >= 2 + valueCount && parts.length <= 4 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.setLengths(copyOfRange(parts, 2, 2 + valueCount));
+            entry.setOptionalFields(copyOfRange(parts, 2 + valueCount, parts.length));
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
             // this work was already done by calling lruEntries.get()
+            entry.accessCount++;
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -423,6 +504,11 @@ public final class DiskLruCache implements Closeable {
                 i.remove();
             }
         }
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                readableKeys.put(entry.key, Boolean.TRUE);
+            }
+        }
     }
 
     /**
@@ -449,7 +535,8 @@ public final class DiskLruCache implements Closeable {
             if (entry.currentEditor != null) {
                 writer.write(DIRTY + ' ' + entry.key + '\n');
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getRefetchCostField()
+                        + entry.getAccessCountField() + '\n');
             }
         }
 
@@ -504,9 +591,10 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
+        entry.accessCount++;
         journalWriter.append(READ + ' ' + key + '\n');
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleMaintenance();
         }
 
         return new Snapshot(key, entry.sequenceNumber, ins);
@@ -540,22 +628,22 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
+        entry.accessCount++;
         journalWriter.append(READ + ' ' + key + '\n');
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleMaintenance();
         }
 
         return new SimpleSnapshot(key, entry.sequenceNumber, cleanFiles, this);
     }
 
     /**
-     * Returns exisr of the entry named {@code key}
+     * Returns exisr of the entry named {@code key}. This method never blocks
+     * on the cache monitor and does not touch the file system, and it does
+     * not change the access order.
      */
-    public synchronized boolean exist(String key) {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        return entry != null && entry.readable;
+    public boolean exist(String key) {
+        return key != null && readableKeys.containsKey(key);
     }
 
     /**
@@ -648,19 +736,24 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
+        if (success) {
+            entry.refetchCost = editor.refetchCost;
+        }
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            readableKeys.put(entry.key, Boolean.TRUE);
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getRefetchCostField() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
+            readableKeys.remove(entry.key);
             journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
 
         if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleMaintenance();
         }
     }
 
@@ -700,9 +793,10 @@ public final class DiskLruCache implements Closeable {
         redundantOpCount++;
         journalWriter.append(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
+        readableKeys.remove(key);
 
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleMaintenance();
         }
 
         return true;
@@ -726,7 +820,11 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
-        trimToSize();
+        if (maintenanceScheduler == null) {
+            trimToSize();
+        } else if (size > maxSize) {
+            scheduleMaintenance();
+        }
         journalWriter.flush();
     }
 
@@ -752,11 +850,116 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void trimToSize() throws IOException {
+        trimToSize(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evicts at most {@code maxCount} entries.
+     *
+     * @return true if the cache is still over its maximum size and there are
+     * entries left that can be evicted.
+     */
+    private boolean trimToSize(int maxCount) throws IOException {
+        int count = 0;
         while (size > maxSize) {
+            if (count >= maxCount) {
+                return true;
+            }
+            String evictKey = evictionPolicy != null ? selectEvictionKey() : null;
+            if (evictKey == null) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor == null) {
+                        evictKey = entry.key;
+                        break;
+                    }
+                }
+            }
+            if (evictKey == null || !remove(evictKey)) {
+                // every entry is being edited, try again when an edit completes
+                return false;
+            }
+            count++;
+        }
+        return false;
+    }
+
+    /**
+     * Hands eviction and journal compaction to the maintenance scheduler, or
+     * to this cache's own executor if there is none. Must be called while
+     * holding the cache monitor.
+     */
+    private void scheduleMaintenance() {
+        if (maintenanceScheduler == null) {
+            executorService.submit(cleanupCallable);
+            return;
+        }
+
+        // Past the soft limit the scheduler must not keep waiting for idle.
+        boolean urgent = size > maxSize + (long) (maxSize * softOvershootRatio);
+        if (urgentMaintenanceScheduled || (maintenanceScheduled && !urgent)) {
+            return;
+        }
+        maintenanceScheduled = true;
+        urgentMaintenanceScheduled = urgent;
+        maintenanceScheduler.schedule(maintenanceRunnable, urgent);
+    }
+
+    /**
+     * Asks the eviction policy to choose among the least recently used
+     * entries that are not being edited. Returns null if there is no such
+     * entry or the policy did not choose one.
+     */
+    private String selectEvictionKey() {
+        int sampleSize = Math.max(1, evictionPolicy.getSampleSize());
+        List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(sampleSize);
+        for (Entry entry : lruEntries.values()) {
+            if (!entry.readable || entry.currentEditor != null) {
+                continue;
+            }
+            long entrySize = 0;
+            for (long length : entry.lengths) {
+                entrySize += length;
+            }
+            candidates.add(new EvictionCandidate(entry.key, entrySize, entry.accessCount, entry.refetchCost, candidates.size()));
+            if (candidates.size() >= sampleSize) {
+                break;
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
         }
+
+        int index = evictionPolicy.selectVictim(candidates);
+        return index >= 0 && index < candidates.size() ? candidates.get(index).getKey() : null;
+    }
+
+    /**
+     * Sets the policy used to choose which entry to evict when the cache is
+     * over its maximum size, null means plain LRU order. Eviction always runs
+     * in the background, see {@link #setMaintenanceScheduler}.
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Sets the scheduler that runs eviction and journal compaction, null
+     * means they run on this cache's background executor as soon as they are
+     * needed.
+     *
+     * @param softOvershootRatio how far, as a fraction of the maximum size,
+     *                           the cache may grow before maintenance is
+     *                           requested as urgent.
+     */
+    public synchronized void setMaintenanceScheduler(MaintenanceScheduler maintenanceScheduler, float softOvershootRatio) {
+        if (softOvershootRatio < 0) {
+            throw new IllegalArgumentException("softOvershootRatio < 0");
+        }
+        this.maintenanceScheduler = maintenanceScheduler;
+        this.softOvershootRatio = softOvershootRatio;
+        maintenanceScheduled = false;
+        urgentMaintenanceScheduled = false;
     }
 
     /**
@@ -766,6 +969,7 @@ public final class DiskLruCache implements Closeable {
      */
     public void delete() throws IOException {
         close();
+        readableKeys.clear();
         deleteContents(directory);
     }
 
@@ -886,6 +1090,7 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        private int refetchCost;
 
         private Editor(Entry entry) {
             this.entry = entry;
@@ -924,11 +1129,28 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
+            return new FaultHidingOutputStream(new FileOutputStream(getFile(index)));
+        }
+
+        /**
+         * Returns the file that {@link #newOutputStream} writes to for the value
+         * at {@code index}. Callers may write or replace this file directly
+         * instead of using an output stream; whatever it holds when
+         * {@link #commit} is called becomes the new value.
+         */
+        public File getFile(int index) throws IOException {
             synchronized (DiskLruCache.this) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                File dirtyFile = entry.getDirtyFile(index);
+                if (fanOutLength > 0) {
+                    File parentDir = dirtyFile.getParentFile();
+                    if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) {
+                        throw new IOException("failed to create directory: " + parentDir);
+                    }
+                }
+                return dirtyFile;
             }
         }
 
@@ -945,6 +1167,15 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Sets a hint of how expensive the value is to fetch again, which is
+         * kept with the entry and offered to the {@link EvictionPolicy}.
+         * Values below 1 mean no hint.
+         */
+        public void setRefetchCost(int refetchCost) {
+            this.refetchCost = Math.max(refetchCost, 0);
+        }
+
         /**
          * Commits this edit so it is visible to readers.  This releases the
          * edit lock so another edit may be started on the same key.
@@ -1032,6 +1263,18 @@ public final class DiskLruCache implements Closeable {
          */
         private long sequenceNumber;
 
+        /**
+         * How many times this entry has been read, including the READ lines
+         * replayed from the journal.
+         */
+        private int accessCount;
+
+        /**
+         * The refetch cost hint given by the editor that published this entry,
+         * 0 if none was given.
+         */
+        private int refetchCost;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
@@ -1062,16 +1305,136 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns the optional refetch cost field of the CLEAN line, starting
+         * with a space, or an empty string if no hint was given.
+         */
+        public String getRefetchCostField() {
+            return refetchCost > 0 ? " " + REFETCH_COST_PREFIX + refetchCost : "";
+        }
+
+        /**
+         * Returns the optional access count field of the CLEAN line, starting
+         * with a space, or an empty string if the entry was never read.
+         */
+        public String getAccessCountField() {
+            return accessCount > 0 ? " " + ACCESS_COUNT_PREFIX + accessCount : "";
+        }
+
+        /**
+         * Set the optional fields following the lengths of a CLEAN line. A
+         * missing refetch cost means no hint was given; a missing access count
+         * keeps the count replayed so far.
+         */
+        private void setOptionalFields(String[] strings) throws IOException {
+            refetchCost = 0;
+            try {
+                for (String string : strings) {
+                    if (string.startsWith(REFETCH_COST_PREFIX)) {
+                        refetchCost = Integer.parseInt(string.substring(REFETCH_COST_PREFIX.length()));
+                    } else if (string.startsWith(ACCESS_COUNT_PREFIX)) {
+                        accessCount = Integer.parseInt(string.substring(ACCESS_COUNT_PREFIX.length()));
+                    } else {
+                        throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+            }
+        }
+
         private IOException invalidLengths(String[] strings) throws IOException {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
         public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+            return new File(getEntryDirectory(), key + "." + i);
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+            return new File(getEntryDirectory(), key + "." + i + ".tmp");
+        }
+
+        private File getEntryDirectory() {
+            if (fanOutLength > 0 && key.length() > fanOutLength) {
+                return new File(directory, key.substring(0, fanOutLength));
+            }
+            return directory;
+        }
+    }
+
+    /**
+     * Decides when eviction and journal compaction run.
+     */
+    public interface MaintenanceScheduler {
+        /**
+         * Runs {@code task} on a background thread at a time of the
+         * scheduler's choosing.
+         *
+         * @param urgent true if the cache has grown past its soft limit and
+         *               the task should run as soon as possible.
+         */
+        void schedule(Runnable task, boolean urgent);
+    }
+
+    /**
+     * Chooses which entry to evict when the cache is over its maximum size.
+     */
+    public interface EvictionPolicy {
+        /**
+         * Returns how many of the least recently used entries are offered to
+         * {@link #selectVictim}.
+         */
+        int getSampleSize();
+
+        /**
+         * Returns the index of the entry to evict.
+         *
+         * @param candidates the least recently used entries, the least
+         *                   recently used one first
+         */
+        int selectVictim(List<EvictionCandidate> candidates);
+    }
+
+    public static final class EvictionCandidate {
+        private final String key;
+        private final long size;
+        private final int accessCount;
+        private final int refetchCost;
+        private final int lruRank;
+
+        EvictionCandidate(String key, long size, int accessCount, int refetchCost, int lruRank) {
+            this.key = key;
+            this.size = size;
+            this.accessCount = accessCount;
+            this.refetchCost = refetchCost;
+            this.lruRank = lruRank;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getAccessCount() {
+            return accessCount;
+        }
+
+        /**
+         * The hint set by {@link Editor#setRefetchCost}, 0 if none was given.
+         */
+        public int getRefetchCost() {
+            return refetchCost;
+        }
+
+        /**
+         * 0 for the least recently used candidate.
+         */
+        public int getLruRank() {
+            return lruRank;
         }
     }
 
@@ -16,7 +16,9 @@
 
 package me.xiaopan.sketch.util;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -137,6 +139,23 @@ public class LruCache<K, V> {
         return previous;
     }
 
+    /**
+     * Sets the size of the cache, evicting the eldest entries if the new size
+     * is smaller than the current size.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * Remove the eldest entries until the total of remaining entries is at or
      * below the requested size.
@@ -291,6 +310,24 @@ public class LruCache<K, V> {
         return missCount;
     }
 
+    /**
+     * Returns the least recently used keys that would have to be evicted to
+     * free at least {@code size}, in eviction order, or all keys if the cache
+     * does not hold that much. This does not affect the access order.
+     */
+    public synchronized final List<K> eldestKeys(int size) {
+        List<K> keys = new ArrayList<K>();
+        int freedSize = 0;
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            if (freedSize >= size) {
+                break;
+            }
+            keys.add(entry.getKey());
+            freedSize += safeSizeOf(entry.getKey(), entry.getValue());
+        }
+        return keys;
+    }
+
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
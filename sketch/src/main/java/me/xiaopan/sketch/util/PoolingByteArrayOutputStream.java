@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 从ByteArrayPool里取缓冲区的ByteArrayOutputStream，长度不够时成倍扩大，关闭时把缓冲区还回去
+ * <br>关闭之后就不能再调用toByteArray()了
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+    public static final int DEFAULT_SIZE = 8 * 1024;
+
+    private final ByteArrayPool pool;
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool) {
+        this(pool, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size 预计的大小，知道的话可以避免扩容
+     */
+    public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
+        super(0);
+        this.pool = pool;
+        buf = pool.getBuf(Math.max(size, 256));
+    }
+
+    private void expand(int extra) {
+        if (count + extra <= buf.length) {
+            return;
+        }
+        byte[] newBuf = pool.getBuf((count + extra) * 2);
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        pool.returnBuf(buf);
+        buf = newBuf;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int len) {
+        expand(len);
+        super.write(buffer, offset, len);
+    }
+
+    @Override
+    public synchronized void write(int oneByte) {
+        expand(1);
+        super.write(oneByte);
+    }
+
+    @Override
+    public void close() {
+        pool.returnBuf(buf);
+        buf = null;
+    }
+}
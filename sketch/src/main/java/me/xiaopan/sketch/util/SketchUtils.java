@@ -19,18 +19,29 @@ import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.decode.ImageFormat;
 import me.xiaopan.sketch.display.ImageDisplayer;
 import me.xiaopan.sketch.display.TransitionImageDisplayer;
+import me.xiaopan.sketch.http.HttpStack;
 import me.xiaopan.sketch.drawable.RecycleDrawable;
 import me.xiaopan.sketch.request.FixedSize;
 
@@ -211,6 +222,122 @@ public class SketchUtils {
         }
     }
 
+    /**
+     * 获取指定的响应头，响应不支持读取单个响应头或者没有的话返回null
+     */
+    public static String getResponseHeader(HttpStack.ImageHttpResponse response, String name) {
+        return response instanceof HttpStack.HeaderHttpResponse ? ((HttpStack.HeaderHttpResponse) response).getResponseHeader(name) : null;
+    }
+
+    /**
+     * 把输入流的数据写到磁盘缓存里，按内容存储的磁盘缓存需要的摘要边写边算
+     *
+     * @return false：磁盘缓存不可编辑或者提交失败了
+     */
+    public static boolean writeToDiskCache(DiskCache diskCache, String key, InputStream inputStream) throws IOException {
+        DiskCache.Editor diskCacheEditor = diskCache.edit(key);
+        return diskCacheEditor != null && writeToDiskCache(diskCacheEditor, inputStream);
+    }
+
+    /**
+     * 把输入流的数据写到Editor里并提交，失败了会放弃这次编辑
+     *
+     * @return false：提交失败了
+     */
+    public static boolean writeToDiskCache(DiskCache.Editor diskCacheEditor, InputStream inputStream) throws IOException {
+        OutputStream outputStream = null;
+        try {
+            outputStream = diskCacheEditor.newOutputStream();
+            MessageDigest messageDigest = null;
+            if (diskCacheEditor instanceof DiskCache.DigestEditor) {
+                try {
+                    messageDigest = MessageDigest.getInstance(((DiskCache.DigestEditor) diskCacheEditor).getDigestAlgorithm());
+                    outputStream = new DigestOutputStream(outputStream, messageDigest);
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                }
+            }
+            outputStream = new BufferedOutputStream(outputStream, 8 * 1024);
+
+            int readLength;
+            byte[] buffer = new byte[8 * 1024];
+            while ((readLength = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readLength);
+            }
+            // 写入失败的话不能提交，所以不能用close(Closeable)，异常要抛出去
+            outputStream.flush();
+            outputStream.close();
+            outputStream = null;
+
+            if (messageDigest != null) {
+                ((DiskCache.DigestEditor) diskCacheEditor).setDigest(messageDigest.digest());
+            }
+            diskCacheEditor.commit();
+            return true;
+        } catch (IOException e) {
+            diskCacheEditor.abort();
+            throw e;
+        } catch (DiskLruCache.EditorChangedException e) {
+            e.printStackTrace();
+            diskCacheEditor.abort();
+            return false;
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * 把文件读到堆内的ByteBuffer中
+     */
+    public static ByteBuffer readByteBuffer(File file) throws IOException {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("file length changed while reading: " + file.getPath());
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * 把文件读到堆外的direct ByteBuffer中
+     */
+    public static ByteBuffer readDirectByteBuffer(File file) throws IOException {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("file length changed while reading: " + file.getPath());
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * 把字节数组复制到堆外的direct ByteBuffer中
+     */
+    public static ByteBuffer toDirectByteBuffer(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
     public static boolean isGifDrawable(Drawable drawable) {
         if (drawable != null) {
             LayerDrawable layerDrawable;